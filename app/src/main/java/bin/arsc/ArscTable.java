@@ -0,0 +1,586 @@
+package bin.arsc;
+
+import android.util.TypedValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import bin.util.StreamUtil;
+import bin.util.StringDecoder;
+import bin.zip.ZipEntry;
+import bin.zip.ZipFile;
+
+/**
+ * Read-only view of a compiled resource table (resources.arsc).
+ * <p>
+ * Opening a table only walks its top level chunks. The type chunks of a
+ * package are indexed the first time one of its resources is looked up,
+ * strings are decoded when used and entries are read in place, so
+ * resolving a few ids such as the app label or icon touches a small part
+ * of even a large table. The table is read from a buffer, possibly a
+ * mapping of the file, whose content must not change while it is used.
+ * <p>
+ * All methods are thread safe.
+ */
+public class ArscTable {
+    public static final String FILE_NAME = "resources.arsc";
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_TABLE_TYPE = 0x0002;
+    private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    private static final int RES_TABLE_TYPE_TYPE = 0x0201;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int PACKAGE_NAME_LENGTH = 128;
+    private static final int TYPE_FLAG_SPARSE = 0x01;
+    private static final int TYPE_FLAG_OFFSET16 = 0x02;
+    private static final int ENTRY_FLAG_COMPLEX = 0x0001;
+    private static final int ENTRY_FLAG_COMPACT = 0x0008;
+    private static final int NO_ENTRY = 0xFFFFFFFF;
+    private static final int NO_ENTRY16 = 0xFFFF;
+    /**
+     * Density given to the default config, as the framework does.
+     */
+    private static final int DENSITY_DEFAULT = 160;
+    private static final int MAX_REFERENCE_DEPTH = 16;
+
+    private final ByteBuffer data;
+    private final StringDecoder strings;
+    private final Package[] packages;
+
+    /**
+     * Reads the table from the buffer's position to its limit, the buffer
+     * itself is left untouched.
+     */
+    public ArscTable(ByteBuffer buffer) throws IOException {
+        data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (data.limit() < 12 || getShort(0) != RES_TABLE_TYPE)
+                throw new IOException("Not a resource table");
+            int size = checkChunk(0, data.limit());
+            StringDecoder strings = null;
+            List<Package> packages = new ArrayList<>(data.getInt(8));
+            for (int off = getShort(2); off < size; ) {
+                int chunkSize = checkChunk(off, size);
+                int type = getShort(off);
+                if (type == RES_STRING_POOL_TYPE && strings == null)
+                    strings = readStrings(off);
+                else if (type == RES_TABLE_PACKAGE_TYPE)
+                    packages.add(new Package(off, chunkSize));
+                off += chunkSize;
+            }
+            if (strings == null)
+                throw new IOException("No string pool");
+            this.strings = strings;
+            this.packages = packages.toArray(new Package[0]);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated resource table", e);
+        }
+    }
+
+    /**
+     * Maps the file and reads the table from the mapping.
+     */
+    public static ArscTable open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid once the file is closed
+            return new ArscTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static ArscTable read(InputStream is) throws IOException {
+        return new ArscTable(ByteBuffer.wrap(StreamUtil.readBytes(is)));
+    }
+
+    /**
+     * Reads the table of an APK, in place if it is stored as it should
+     * be. Returns null if the APK has no table.
+     */
+    public static ArscTable read(ZipFile apk) throws IOException {
+        ZipEntry entry = apk.getEntry(FILE_NAME);
+        if (entry == null)
+            return null;
+        ByteBuffer mapped = apk.getMappedData(entry);
+        if (mapped != null)
+            return new ArscTable(mapped);
+        try (InputStream is = apk.getInputStream(entry)) {
+            return new ArscTable(ByteBuffer.wrap(StreamUtil.readBytes(is, entry.getSize())));
+        }
+    }
+
+    /**
+     * Resolves a reference from the manifest of an APK to a string, like
+     * {@code android:name="@string/app_class"}.
+     *
+     * @throws IOException if the APK has no table or the reference doesn't
+     *                     resolve to a string in it
+     */
+    public static String resolveManifestString(ZipFile apk, int resId) throws IOException {
+        ArscTable table = read(apk);
+        String s = table != null ? table.resolveString(resId) : null;
+        if (s == null)
+            throw new IOException(String.format("Unresolved reference @0x%08x", resId));
+        return s;
+    }
+
+    /**
+     * The global string pool, holding the values of string resources.
+     */
+    public StringDecoder getStrings() {
+        return strings;
+    }
+
+    /**
+     * Values of {@code resId} in every config, empty if it isn't defined.
+     */
+    public List<Value> getValues(int resId) throws IOException {
+        List<Value> values = new ArrayList<>();
+        Package pkg = getPackage(resId >>> 24);
+        if (pkg == null)
+            return values;
+        int entryIndex = resId & 0xFFFF;
+        try {
+            for (int chunk : pkg.getTypeChunks((resId >>> 16) & 0xFF)) {
+                int entry = findEntry(chunk, entryIndex);
+                if (entry != -1)
+                    values.add(readValue(pkg, resId, chunk, entry));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException(String.format("Bad entry 0x%08x", resId), e);
+        }
+        return values;
+    }
+
+    /**
+     * Value of {@code resId} in the default config, or in the first one
+     * defining it if the default doesn't. Null if it isn't defined.
+     */
+    public Value getValue(int resId) throws IOException {
+        Value first = null;
+        for (Value value : getValues(resId)) {
+            if (value.getConfig().isDefault())
+                return value;
+            if (first == null)
+                first = value;
+        }
+        return first;
+    }
+
+    /**
+     * Follows references from {@code resId} through {@link #getValue}.
+     * Returns null if one isn't defined in this table, like framework
+     * resources, or references loop.
+     */
+    public Value resolve(int resId) throws IOException {
+        for (int depth = 0; depth < MAX_REFERENCE_DEPTH; depth++) {
+            Value value = getValue(resId);
+            if (value == null || value.getType() != TypedValue.TYPE_REFERENCE)
+                return value;
+            resId = value.getData();
+        }
+        return null;
+    }
+
+    /**
+     * The string {@code resId} resolves to, null if it doesn't resolve to
+     * a string.
+     */
+    public String resolveString(int resId) throws IOException {
+        Value value = resolve(resId);
+        return value != null ? value.getString() : null;
+    }
+
+    /**
+     * Path in the APK of the file behind a drawable or mipmap, such as the
+     * app icon, taking the highest density at each step. Bitmaps are
+     * preferred to the density independent XML of adaptive icons. Null if
+     * it doesn't resolve to a file.
+     */
+    public String resolveFile(int resId) throws IOException {
+        for (int depth = 0; depth < MAX_REFERENCE_DEPTH; depth++) {
+            Value best = null;
+            int bestDensity = Integer.MIN_VALUE;
+            for (Value value : getValues(resId)) {
+                int density = value.getConfig().getDensity();
+                if (density == 0)
+                    density = DENSITY_DEFAULT;
+                else if (density == Config.DENSITY_ANY)
+                    density = -1;
+                else if (density == Config.DENSITY_NONE)
+                    density = 0;
+                if (density > bestDensity) {
+                    best = value;
+                    bestDensity = density;
+                }
+            }
+            if (best == null || best.getType() != TypedValue.TYPE_REFERENCE)
+                return best != null ? best.getString() : null;
+            resId = best.getData();
+        }
+        return null;
+    }
+
+    /**
+     * Name of {@code resId} as in {@code package:type/entry}, null if it
+     * isn't defined.
+     */
+    public String getResourceName(int resId) throws IOException {
+        List<Value> values = getValues(resId);
+        if (values.isEmpty())
+            return null;
+        Package pkg = getPackage(resId >>> 24);
+        return pkg.getName() + ":"
+                + pkg.getTypeStrings().getString(((resId >>> 16) & 0xFF) - 1) + "/"
+                + pkg.getKeyStrings().getString(values.get(0).key);
+    }
+
+    private Package getPackage(int id) {
+        for (Package pkg : packages) {
+            if (pkg.id == id)
+                return pkg;
+        }
+        return null;
+    }
+
+    /**
+     * Offset of entry {@code index} of the type chunk, -1 if the chunk
+     * has no such entry.
+     */
+    private int findEntry(int chunk, int index) {
+        int flags = data.get(chunk + 9) & 0xFF;
+        int entryCount = data.getInt(chunk + 12);
+        int entriesStart = data.getInt(chunk + 16);
+        int offsets = chunk + getShort(chunk + 2);
+        int offset;
+        if ((flags & TYPE_FLAG_SPARSE) != 0) {
+            // (index, offset / 4) pairs sorted by index
+            offset = NO_ENTRY;
+            int low = 0;
+            int high = entryCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midIndex = getShort(offsets + mid * 4);
+                if (midIndex < index) {
+                    low = mid + 1;
+                } else if (midIndex > index) {
+                    high = mid - 1;
+                } else {
+                    offset = getShort(offsets + mid * 4 + 2) * 4;
+                    break;
+                }
+            }
+        } else if (index >= entryCount) {
+            return -1;
+        } else if ((flags & TYPE_FLAG_OFFSET16) != 0) {
+            int offset16 = getShort(offsets + index * 2);
+            offset = offset16 == NO_ENTRY16 ? NO_ENTRY : offset16 * 4;
+        } else {
+            offset = data.getInt(offsets + index * 4);
+        }
+        return offset == NO_ENTRY ? -1 : chunk + entriesStart + offset;
+    }
+
+    private Value readValue(Package pkg, int resId, int chunk, int entry) {
+        int size = getShort(entry);
+        int flags = getShort(entry + 2);
+        int key;
+        int type;
+        int valueData;
+        if ((flags & ENTRY_FLAG_COMPACT) != 0) {
+            // key in place of the size, type in the high byte of the flags
+            key = size;
+            type = flags >>> 8;
+            valueData = data.getInt(entry + 4);
+        } else if ((flags & ENTRY_FLAG_COMPLEX) != 0) {
+            key = data.getInt(entry + 4);
+            type = TypedValue.TYPE_NULL;
+            // parent of the bag
+            valueData = data.getInt(entry + 8);
+        } else {
+            key = data.getInt(entry + 4);
+            type = data.get(entry + size + 3) & 0xFF;
+            valueData = data.getInt(entry + size + 4);
+        }
+        int config = chunk + 20;
+        byte[] raw = new byte[data.getInt(config)];
+        ByteBuffer view = data.duplicate();
+        view.position(config);
+        view.get(raw);
+        return new Value(resId, new Config(raw), key, (flags & ENTRY_FLAG_COMPLEX) != 0, type, valueData);
+    }
+
+    /**
+     * Size of the chunk at {@code offset}, checked to end by {@code end}.
+     */
+    private int checkChunk(int offset, int end) throws IOException {
+        int headerSize = getShort(offset + 2);
+        int size = data.getInt(offset + 4);
+        if (headerSize < CHUNK_HEADER_SIZE || size < headerSize || size > end - offset)
+            throw new IOException(String.format("Bad chunk at 0x%x", offset));
+        return size;
+    }
+
+    private StringDecoder readStrings(int offset) throws IOException {
+        ByteBuffer view = data.duplicate();
+        view.position(offset);
+        return StringDecoder.read(view);
+    }
+
+    private int getShort(int offset) {
+        return data.getShort(offset) & 0xFFFF;
+    }
+
+    /**
+     * A package chunk, indexed on first use.
+     */
+    private class Package {
+        final int offset;
+        final int size;
+        final int id;
+        private volatile boolean indexed;
+        private String name;
+        private StringDecoder typeStrings;
+        private StringDecoder keyStrings;
+        /**
+         * Offsets of the type chunks of each type, by type id - 1.
+         */
+        private int[][] types;
+
+        Package(int offset, int size) {
+            this.offset = offset;
+            this.size = size;
+            this.id = data.getInt(offset + 8);
+        }
+
+        int[] getTypeChunks(int typeId) throws IOException {
+            index();
+            return typeId >= 1 && typeId <= types.length ? types[typeId - 1] : new int[0];
+        }
+
+        String getName() throws IOException {
+            index();
+            return name;
+        }
+
+        StringDecoder getTypeStrings() throws IOException {
+            index();
+            return typeStrings;
+        }
+
+        StringDecoder getKeyStrings() throws IOException {
+            index();
+            return keyStrings;
+        }
+
+        private void index() throws IOException {
+            if (indexed)
+                return;
+            synchronized (this) {
+                if (indexed)
+                    return;
+                try {
+                    indexChunks();
+                } catch (IndexOutOfBoundsException e) {
+                    throw new IOException(String.format("Bad package 0x%02x", id), e);
+                }
+                indexed = true;
+            }
+        }
+
+        private void indexChunks() throws IOException {
+            char[] chars = new char[PACKAGE_NAME_LENGTH];
+            int length = 0;
+            while (length < PACKAGE_NAME_LENGTH) {
+                char c = data.getChar(offset + 12 + length * 2);
+                if (c == 0)
+                    break;
+                chars[length++] = c;
+            }
+            name = new String(chars, 0, length);
+            typeStrings = readStrings(offset + data.getInt(offset + 268));
+            keyStrings = readStrings(offset + data.getInt(offset + 276));
+
+            int[][] types = new int[typeStrings.getSize()][];
+            int[] counts = new int[types.length];
+            int end = offset + size;
+            for (int off = offset + getShort(offset + 2); off < end; ) {
+                int chunkSize = checkChunk(off, end);
+                int typeId = data.get(off + 8) & 0xFF;
+                if (getShort(off) == RES_TABLE_TYPE_TYPE && typeId >= 1) {
+                    if (typeId > types.length) {
+                        types = Arrays.copyOf(types, typeId);
+                        counts = Arrays.copyOf(counts, typeId);
+                    }
+                    int[] chunks = types[typeId - 1];
+                    int count = counts[typeId - 1];
+                    if (chunks == null)
+                        chunks = types[typeId - 1] = new int[4];
+                    else if (count == chunks.length)
+                        chunks = types[typeId - 1] = Arrays.copyOf(chunks, count * 2);
+                    chunks[count] = off;
+                    counts[typeId - 1] = count + 1;
+                }
+                off += chunkSize;
+            }
+            for (int i = 0; i < types.length; i++) {
+                types[i] = types[i] == null ? new int[0] : Arrays.copyOf(types[i], counts[i]);
+            }
+            this.types = types;
+        }
+    }
+
+    /**
+     * A resource value in one config. Bags (styles, arrays, ...) are
+     * {@link #isComplex()}, their data is the parent bag.
+     */
+    public class Value {
+        private final int resId;
+        private final Config config;
+        private final int key;
+        private final boolean complex;
+        private final int type;
+        private final int data;
+
+        Value(int resId, Config config, int key, boolean complex, int type, int data) {
+            this.resId = resId;
+            this.config = config;
+            this.key = key;
+            this.complex = complex;
+            this.type = type;
+            this.data = data;
+        }
+
+        public int getResourceId() {
+            return resId;
+        }
+
+        public Config getConfig() {
+            return config;
+        }
+
+        public boolean isComplex() {
+            return complex;
+        }
+
+        /**
+         * One of the {@link TypedValue} types.
+         */
+        public int getType() {
+            return type;
+        }
+
+        public int getData() {
+            return data;
+        }
+
+        /**
+         * The string of a string value, null for other types.
+         */
+        public String getString() {
+            return type == TypedValue.TYPE_STRING ? strings.getString(data) : null;
+        }
+    }
+
+    /**
+     * The part of a ResTable_config that is commonly needed.
+     */
+    public static class Config {
+        public static final int DENSITY_ANY = 0xFFFE;
+        public static final int DENSITY_NONE = 0xFFFF;
+
+        private final byte[] raw;
+
+        Config(byte[] raw) {
+            this.raw = raw;
+        }
+
+        /**
+         * Whether this is the config without qualifiers.
+         */
+        public boolean isDefault() {
+            // after the size field
+            for (int i = 4; i < raw.length; i++) {
+                if (raw[i] != 0)
+                    return false;
+            }
+            return true;
+        }
+
+        public int getMcc() {
+            return getShort(4);
+        }
+
+        public int getMnc() {
+            return getShort(6);
+        }
+
+        /**
+         * The language code, empty if any.
+         */
+        public String getLanguage() {
+            return unpackLocale(8, 'a');
+        }
+
+        /**
+         * The region code, empty if any.
+         */
+        public String getCountry() {
+            return unpackLocale(10, '0');
+        }
+
+        public int getDensity() {
+            return getShort(14);
+        }
+
+        public int getSdkVersion() {
+            return getShort(24);
+        }
+
+        private int getShort(int offset) {
+            return offset + 1 < raw.length ? (raw[offset] & 0xFF) | (raw[offset + 1] & 0xFF) << 8 : 0;
+        }
+
+        private String unpackLocale(int offset, char base) {
+            if (offset + 1 >= raw.length || raw[offset] == 0)
+                return "";
+            int first = raw[offset] & 0xFF;
+            int second = raw[offset + 1] & 0xFF;
+            if ((first & 0x80) == 0)
+                return new String(new char[]{(char) first, (char) second});
+            // three letters packed into 5 bits each
+            return new String(new char[]{
+                    (char) (base + (second & 0x1F)),
+                    (char) (base + ((second & 0xE0) >> 5) + ((first & 0x03) << 3)),
+                    (char) (base + ((first & 0x7C) >> 2))});
+        }
+
+        @Override
+        public String toString() {
+            if (isDefault())
+                return "default";
+            StringBuilder sb = new StringBuilder();
+            String language = getLanguage();
+            if (!language.isEmpty())
+                sb.append('-').append(language);
+            String country = getCountry();
+            if (!country.isEmpty())
+                sb.append("-r").append(country);
+            int density = getDensity();
+            if (density != 0)
+                sb.append("-").append(density == DENSITY_ANY ? "anydpi" :
+                        density == DENSITY_NONE ? "nodpi" : density + "dpi");
+            int sdkVersion = getSdkVersion();
+            if (sdkVersion != 0)
+                sb.append("-v").append(sdkVersion);
+            return sb.length() != 0 ? sb.substring(1) : "other";
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package bin.signer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import bin.util.StreamUtil;
+import bin.zip.ZipEntry;
+import bin.zip.ZipFile;
+
+/**
+ * Reads the signer certificates of an APK without verifying it.
+ * <p>
+ * The APK Signing Block right before the central directory is tried first
+ * (v3, then v2, the same preference as the platform), and only if it has no
+ * usable signer the PKCS#7 blocks in {@code META-INF/*.RSA|DSA|EC} are
+ * parsed. Apart from the signature block file no entry is ever read, so the
+ * cost does not depend on the size of the APK.
+ */
+public class ApkCertificates {
+    private static final long APK_SIG_BLOCK_MAGIC_LO = 0x20676953204b5041L; // "APK Sig "
+    private static final long APK_SIG_BLOCK_MAGIC_HI = 0x3234206b636f6c42L; // "Block 42"
+    private static final int APK_SIG_BLOCK_MIN_SIZE = 32;
+    private static final int APK_SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int APK_SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+    private static final Pattern SIGNATURE_BLOCK_FILE = Pattern
+            .compile("^META-INF/[^/]+[.](RSA|DSA|EC)$");
+
+    private ApkCertificates() {
+    }
+
+    /**
+     * Returns the certificate of every signer, in signing order. For the v2
+     * and v3 schemes only each signer's own certificate is returned, like
+     * {@code PackageManager} does; for v1 all certificates of the PKCS#7
+     * blocks are returned.
+     *
+     * @throws CertificateException if the APK is not signed or a
+     *                              certificate cannot be decoded.
+     */
+    public static X509Certificate[] getCertificates(ZipFile zipFile)
+            throws IOException, CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        ByteBuffer signingBlock = findSigningBlock(zipFile);
+        if (signingBlock != null) {
+            List<X509Certificate> certificates = findSchemeCertificates(cf, signingBlock,
+                    APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+            if (certificates == null)
+                certificates = findSchemeCertificates(cf, signingBlock, APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+            if (certificates != null)
+                return certificates.toArray(new X509Certificate[0]);
+        }
+        List<X509Certificate> certificates = getJarCertificates(cf, zipFile);
+        if (certificates.isEmpty())
+            throw new CertificateException("APK is not signed");
+        return certificates.toArray(new X509Certificate[0]);
+    }
+
+    /**
+     * Returns the ID-value pairs of the APK Signing Block, or null if the
+     * archive has none.
+     */
+    private static ByteBuffer findSigningBlock(ZipFile zipFile) throws IOException {
+        long centralDirOffset = zipFile.getCentralDirectoryOffset();
+        if (centralDirOffset < APK_SIG_BLOCK_MIN_SIZE)
+            return null;
+        byte[] footer = new byte[24];
+        zipFile.readFully(centralDirOffset - footer.length, footer, 0, footer.length);
+        ByteBuffer footerBuf = ByteBuffer.wrap(footer).order(ByteOrder.LITTLE_ENDIAN);
+        if (footerBuf.getLong(8) != APK_SIG_BLOCK_MAGIC_LO
+                || footerBuf.getLong(16) != APK_SIG_BLOCK_MAGIC_HI)
+            return null;
+        long blockSize = footerBuf.getLong(0);
+        if (blockSize < footer.length || blockSize > Integer.MAX_VALUE - 8)
+            throw new IOException("APK Signing Block size out of range: " + blockSize);
+        long blockOffset = centralDirOffset - blockSize - 8;
+        if (blockOffset < 0)
+            throw new IOException("APK Signing Block offset out of range: " + blockOffset);
+        byte[] block = new byte[(int) blockSize - footer.length + 8];
+        zipFile.readFully(blockOffset, block, 0, block.length);
+        ByteBuffer buf = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.getLong() != blockSize)
+            throw new IOException("APK Signing Block sizes in header and footer do not match");
+        return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static List<X509Certificate> findSchemeCertificates(CertificateFactory cf, ByteBuffer pairs,
+                                                                int blockId) throws IOException, CertificateException {
+        ByteBuffer buf = pairs.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (buf.remaining() >= 8) {
+                long len = buf.getLong();
+                if (len < 4 || len > buf.remaining())
+                    throw new IOException("APK Signing Block entry size out of range: " + len);
+                int next = buf.position() + (int) len;
+                if (buf.getInt() == blockId) {
+                    ByteBuffer value = slice(buf, (int) len - 4);
+                    List<X509Certificate> certificates = parseSigners(cf, value);
+                    return certificates.isEmpty() ? null : certificates;
+                }
+                buf.position(next);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed APK Signing Block", e);
+        }
+        return null;
+    }
+
+    /**
+     * v2 and v3 signers share the layout this needs: every signer starts
+     * with its signed data, which starts with the digests followed by the
+     * certificate chain.
+     */
+    private static List<X509Certificate> parseSigners(CertificateFactory cf, ByteBuffer value)
+            throws CertificateException {
+        List<X509Certificate> certificates = new ArrayList<>();
+        ByteBuffer signers = lengthPrefixed(value);
+        while (signers.hasRemaining()) {
+            ByteBuffer signer = lengthPrefixed(signers);
+            ByteBuffer signedData = lengthPrefixed(signer);
+            lengthPrefixed(signedData); // digests
+            ByteBuffer chain = lengthPrefixed(signedData);
+            if (chain.hasRemaining())
+                certificates.add(generateCertificate(cf, lengthPrefixed(chain)));
+        }
+        return certificates;
+    }
+
+    private static List<X509Certificate> getJarCertificates(CertificateFactory cf, ZipFile zipFile)
+            throws IOException, CertificateException {
+        List<String> names = new ArrayList<>();
+        for (Enumeration<ZipEntry> e = zipFile.getEntries(); e.hasMoreElements(); ) {
+            String name = e.nextElement().getName();
+            if (SIGNATURE_BLOCK_FILE.matcher(name).matches())
+                names.add(name);
+        }
+        Collections.sort(names);
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (String name : names) {
+            byte[] data;
+            ZipEntry ze = zipFile.getEntry(name);
+            try (InputStream is = zipFile.getInputStream(ze)) {
+                data = StreamUtil.readBytes(is, ze.getSize());
+            }
+            for (Certificate certificate : cf.generateCertificates(new ByteArrayInputStream(data))) {
+                certificates.add((X509Certificate) certificate);
+            }
+        }
+        return certificates;
+    }
+
+    private static X509Certificate generateCertificate(CertificateFactory cf, ByteBuffer encoded)
+            throws CertificateException {
+        byte[] data = new byte[encoded.remaining()];
+        encoded.get(data);
+        return (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(data));
+    }
+
+    private static ByteBuffer lengthPrefixed(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining())
+            throw new IllegalArgumentException("Length out of range: " + len);
+        return slice(buf, len);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int len) {
+        ByteBuffer slice = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(len);
+        buf.position(buf.position() + len);
+        return slice;
+    }
+}
@@ -0,0 +1,361 @@
+package bin.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipException;
+
+/**
+ * Signs an APK with APK Signature Scheme v2 and v3.
+ * <p>
+ * The APK is signed in place: only the central directory and the end of
+ * central directory record are moved to make room for the APK Signing Block,
+ * the entries themselves are never rewritten. An existing signing block is
+ * replaced. The 1 MiB chunk digests of the entries are computed in parallel
+ * with positional reads, the central directory and the end of central
+ * directory record are digested from memory.
+ * <p>
+ * ZIP64 archives are not supported. Apply v1 signing, if any, first: it
+ * changes the entries and would invalidate the signing block.
+ */
+public class ApkSignatureSchemeSigner {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int DIGEST_SIZE = 32;
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int EOCD_CD_SIZE_OFFSET = 12;
+    private static final int EOCD_CD_OFFSET_OFFSET = 16;
+    private static final int EOCD_COMMENT_LENGTH_OFFSET = 20;
+    private static final int ZIP64_EOCD_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final long APK_SIG_BLOCK_MAGIC_LO = 0x20676953204b5041L;
+    private static final long APK_SIG_BLOCK_MAGIC_HI = 0x3234206b636f6c42L;
+    private static final int APK_SIG_BLOCK_FOOTER_SIZE = 24;
+    private static final int APK_SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int APK_SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+    private static final int STRIPPING_PROTECTION_ATTR_ID = 0xbeeff00d;
+    private static final int V3_MIN_SDK_VERSION = 28;
+
+    private final PrivateKey privateKey;
+    private final X509Certificate certificate;
+    private final int algorithmId;
+    private final String jcaSignatureAlgorithm;
+    private boolean v2Enabled = true;
+    private boolean v3Enabled = true;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    public ApkSignatureSchemeSigner(PrivateKey privateKey, X509Certificate certificate)
+            throws InvalidKeyException {
+        this.privateKey = privateKey;
+        this.certificate = certificate;
+        switch (privateKey.getAlgorithm()) {
+            case "RSA":
+                algorithmId = 0x0103;
+                jcaSignatureAlgorithm = "SHA256withRSA";
+                break;
+            case "EC":
+                algorithmId = 0x0201;
+                jcaSignatureAlgorithm = "SHA256withECDSA";
+                break;
+            case "DSA":
+                algorithmId = 0x0301;
+                jcaSignatureAlgorithm = "SHA256withDSA";
+                break;
+            default:
+                throw new InvalidKeyException("Unsupported key algorithm: " + privateKey.getAlgorithm());
+        }
+    }
+
+    public void setV2Enabled(boolean v2Enabled) {
+        this.v2Enabled = v2Enabled;
+    }
+
+    public void setV3Enabled(boolean v3Enabled) {
+        this.v3Enabled = v3Enabled;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism < 1");
+        this.parallelism = parallelism;
+    }
+
+    public void sign(File apk) throws IOException, GeneralSecurityException {
+        if (!v2Enabled && !v3Enabled)
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(apk, "rw")) {
+            FileChannel channel = raf.getChannel();
+            long eocdOffset = findEocd(channel);
+            if (isZip64(channel, eocdOffset))
+                throw new ZipException("ZIP64 archives can't be signed with APK Signature Scheme v2/v3");
+            byte[] eocd = new byte[(int) (channel.size() - eocdOffset)];
+            readFully(channel, ByteBuffer.wrap(eocd), eocdOffset);
+            ByteBuffer eocdBuf = ByteBuffer.wrap(eocd).order(ByteOrder.LITTLE_ENDIAN);
+            long cdOffset = eocdBuf.getInt(EOCD_CD_OFFSET_OFFSET) & 0xffffffffL;
+            long cdSize = eocdBuf.getInt(EOCD_CD_SIZE_OFFSET) & 0xffffffffL;
+            if (cdOffset + cdSize != eocdOffset)
+                throw new ZipException("Central directory does not end at the end of central directory record");
+            byte[] centralDir = new byte[(int) cdSize];
+            readFully(channel, ByteBuffer.wrap(centralDir), cdOffset);
+            long contentsEnd = findContentsEnd(channel, cdOffset);
+
+            // The digested EOCD points at the signing block.
+            eocdBuf.putInt(EOCD_CD_OFFSET_OFFSET, (int) contentsEnd);
+            byte[] digest = computeDigest(channel, contentsEnd, centralDir, eocd);
+
+            List<byte[]> pairs = new ArrayList<>();
+            if (v2Enabled)
+                pairs.add(pair(APK_SIGNATURE_SCHEME_V2_BLOCK_ID, signersV2(digest)));
+            if (v3Enabled)
+                pairs.add(pair(APK_SIGNATURE_SCHEME_V3_BLOCK_ID, signersV3(digest)));
+            byte[] signingBlock = signingBlock(pairs);
+
+            eocdBuf.putInt(EOCD_CD_OFFSET_OFFSET, (int) (contentsEnd + signingBlock.length));
+            long pos = contentsEnd;
+            pos += writeFully(channel, ByteBuffer.wrap(signingBlock), pos);
+            pos += writeFully(channel, ByteBuffer.wrap(centralDir), pos);
+            pos += writeFully(channel, ByteBuffer.wrap(eocd), pos);
+            channel.truncate(pos);
+        }
+    }
+
+    private static long findEocd(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < EOCD_MIN_SIZE)
+            throw new ZipException("Archive too short");
+        int tailSize = (int) Math.min(size, EOCD_MIN_SIZE + 0xffff);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, size - tailSize);
+        for (int off = tailSize - EOCD_MIN_SIZE; off >= 0; off--) {
+            if (tail.getInt(off) == EOCD_SIG
+                    && (tail.getShort(off + EOCD_COMMENT_LENGTH_OFFSET) & 0xffff) == tailSize - off - EOCD_MIN_SIZE)
+                return size - tailSize + off;
+        }
+        throw new ZipException("archive is not a ZIP archive");
+    }
+
+    private static boolean isZip64(FileChannel channel, long eocdOffset) throws IOException {
+        if (eocdOffset < ZIP64_EOCD_LOCATOR_SIZE)
+            return false;
+        ByteBuffer locator = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, locator, eocdOffset - ZIP64_EOCD_LOCATOR_SIZE);
+        return locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIG;
+    }
+
+    /**
+     * Returns the offset of the existing APK Signing Block, or
+     * {@code cdOffset} if there is none.
+     */
+    private static long findContentsEnd(FileChannel channel, long cdOffset) throws IOException {
+        if (cdOffset < APK_SIG_BLOCK_FOOTER_SIZE + 8)
+            return cdOffset;
+        ByteBuffer footer = ByteBuffer.allocate(APK_SIG_BLOCK_FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, footer, cdOffset - APK_SIG_BLOCK_FOOTER_SIZE);
+        if (footer.getLong(8) != APK_SIG_BLOCK_MAGIC_LO || footer.getLong(16) != APK_SIG_BLOCK_MAGIC_HI)
+            return cdOffset;
+        long blockOffset = cdOffset - footer.getLong(0) - 8;
+        if (blockOffset < 0 || blockOffset > cdOffset - APK_SIG_BLOCK_FOOTER_SIZE - 8)
+            throw new ZipException("APK Signing Block offset out of range: " + blockOffset);
+        return blockOffset;
+    }
+
+    private byte[] computeDigest(FileChannel channel, long contentsEnd, byte[] centralDir, byte[] eocd)
+            throws IOException, GeneralSecurityException {
+        int contentsChunks = chunkCount(contentsEnd);
+        int centralDirChunks = chunkCount(centralDir.length);
+        int chunkCount = contentsChunks + centralDirChunks + chunkCount(eocd.length);
+        byte[] digests = new byte[5 + chunkCount * DIGEST_SIZE];
+        digests[0] = 0x5a;
+        ByteBuffer.wrap(digests, 1, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(chunkCount);
+
+        int threads = Math.max(1, Math.min(parallelism, contentsChunks));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(threads);
+            int perTask = (contentsChunks + threads - 1) / Math.max(1, threads);
+            for (int first = 0; first < contentsChunks; first += perTask) {
+                int from = first;
+                int to = Math.min(contentsChunks, first + perTask);
+                futures.add(executor.submit(() -> {
+                    digestFileChunks(channel, contentsEnd, from, to, digests);
+                    return null;
+                }));
+            }
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            digestMemoryChunks(md, centralDir, contentsChunks, digests);
+            digestMemoryChunks(md, eocd, contentsChunks + centralDirChunks, digests);
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof GeneralSecurityException)
+                        throw (GeneralSecurityException) cause;
+                    throw new IllegalStateException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+            md.update(digests);
+            return md.digest();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void digestFileChunks(FileChannel channel, long end, int from, int to, byte[] out)
+            throws IOException, GeneralSecurityException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+        for (int i = from; i < to; i++) {
+            long offset = (long) i * CHUNK_SIZE;
+            int size = (int) Math.min(CHUNK_SIZE, end - offset);
+            buf.clear();
+            buf.limit(size);
+            readFully(channel, buf, offset);
+            md.update(chunkPrefix(size));
+            md.update(buf.array(), 0, size);
+            md.digest(out, 5 + i * DIGEST_SIZE, DIGEST_SIZE);
+        }
+    }
+
+    private static void digestMemoryChunks(MessageDigest md, byte[] data, int firstIndex, byte[] out)
+            throws GeneralSecurityException {
+        for (int offset = 0, i = firstIndex; offset < data.length; offset += CHUNK_SIZE, i++) {
+            int size = Math.min(CHUNK_SIZE, data.length - offset);
+            md.update(chunkPrefix(size));
+            md.update(data, offset, size);
+            md.digest(out, 5 + i * DIGEST_SIZE, DIGEST_SIZE);
+        }
+    }
+
+    private static byte[] chunkPrefix(int size) {
+        byte[] prefix = new byte[5];
+        prefix[0] = (byte) 0xa5;
+        ByteBuffer.wrap(prefix, 1, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(size);
+        return prefix;
+    }
+
+    private static int chunkCount(long size) {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private byte[] signersV2(byte[] digest) throws GeneralSecurityException {
+        byte[] attributes = v3Enabled
+                ? lengthPrefixed(concat(int32(STRIPPING_PROTECTION_ATTR_ID), int32(3)))
+                : new byte[0];
+        byte[] signedData = concat(
+                lengthPrefixed(lengthPrefixed(concat(int32(algorithmId), lengthPrefixed(digest)))),
+                lengthPrefixed(lengthPrefixed(certificate.getEncoded())),
+                lengthPrefixed(attributes));
+        byte[] signer = concat(
+                lengthPrefixed(signedData),
+                lengthPrefixed(signature(signedData)),
+                lengthPrefixed(certificate.getPublicKey().getEncoded()));
+        return lengthPrefixed(lengthPrefixed(signer));
+    }
+
+    private byte[] signersV3(byte[] digest) throws GeneralSecurityException {
+        byte[] sdkRange = concat(int32(V3_MIN_SDK_VERSION), int32(Integer.MAX_VALUE));
+        byte[] signedData = concat(
+                lengthPrefixed(lengthPrefixed(concat(int32(algorithmId), lengthPrefixed(digest)))),
+                lengthPrefixed(lengthPrefixed(certificate.getEncoded())),
+                sdkRange,
+                lengthPrefixed(new byte[0]));
+        byte[] signer = concat(
+                lengthPrefixed(signedData),
+                sdkRange,
+                lengthPrefixed(signature(signedData)),
+                lengthPrefixed(certificate.getPublicKey().getEncoded()));
+        return lengthPrefixed(lengthPrefixed(signer));
+    }
+
+    /**
+     * A length-prefixed sequence holding one length-prefixed signature.
+     */
+    private byte[] signature(byte[] signedData) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(jcaSignatureAlgorithm);
+        signature.initSign(privateKey);
+        signature.update(signedData);
+        return lengthPrefixed(concat(int32(algorithmId), lengthPrefixed(signature.sign())));
+    }
+
+    private static byte[] pair(int id, byte[] value) {
+        ByteBuffer buf = ByteBuffer.allocate(12 + value.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putLong(4 + value.length);
+        buf.putInt(id);
+        buf.put(value);
+        return buf.array();
+    }
+
+    private static byte[] signingBlock(List<byte[]> pairs) {
+        int pairsSize = 0;
+        for (byte[] pair : pairs) {
+            pairsSize += pair.length;
+        }
+        long blockSize = pairsSize + APK_SIG_BLOCK_FOOTER_SIZE;
+        ByteBuffer buf = ByteBuffer.allocate((int) blockSize + 8).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putLong(blockSize);
+        for (byte[] pair : pairs) {
+            buf.put(pair);
+        }
+        buf.putLong(blockSize);
+        buf.putLong(APK_SIG_BLOCK_MAGIC_LO);
+        buf.putLong(APK_SIG_BLOCK_MAGIC_HI);
+        return buf.array();
+    }
+
+    private static byte[] int32(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte[] lengthPrefixed(byte[] data) {
+        return concat(int32(data.length), data);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int written = channel.write(buf, position + total);
+            total += written;
+        }
+        return total;
+    }
+}
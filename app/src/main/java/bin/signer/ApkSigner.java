@@ -2,17 +2,12 @@ package bin.signer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyFactory;
-import java.security.MessageDigest;
 import java.security.PrivateKey;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
@@ -22,11 +17,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.jar.Attributes;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
 import java.util.regex.Pattern;
 
 import javax.crypto.Cipher;
@@ -35,20 +25,11 @@ import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 
 import bin.signer.key.BaseSignatureKey;
-import bin.util.StreamUtil;
 import bin.zip.ZipEntry;
 import bin.zip.ZipFile;
 import bin.zip.ZipOutputStream;
 
-/*import sun.security.pkcs.ContentInfo;
-import sun.security.pkcs.PKCS7;
-import sun.security.pkcs.SignerInfo;
-import sun.security.x509.AlgorithmId;
-import sun.security.x509.X500Name;*/
-
 public class ApkSigner {
-    private static final String CERT_RSA_NAME = "META-INF/CERT.RSA";
-    private static final String CERT_SF_NAME = "META-INF/CERT.SF";
     private static final ApkSignCallback SIGN_CALLBACK = new ApkSignCallback() {
         @Override
         public void onStep(Step step) {
@@ -60,77 +41,8 @@ public class ApkSigner {
 
         }
     };
-    private static Pattern stripPattern = Pattern
-            .compile("^META-INF/(.*)[.](SF|RSA|DSA)$");
-
-    private static Manifest addDigestsToManifest(ZipFile zipFile, ApkSignCallback callback)
-            throws IOException, GeneralSecurityException {
-        Manifest input = null;
-        Manifest output = new Manifest();
-        ZipEntry zipEntry = zipFile.getEntry(JarFile.MANIFEST_NAME);
-        Attributes main = output.getMainAttributes();
-        if (zipEntry != null) {
-            input = new Manifest();
-            input.read(zipFile.getInputStream(zipEntry));
-            main.putAll(input.getMainAttributes());
-        } else {
-            main.putValue("Manifest-Version", "1.0");
-            main.putValue("Created-By", "1.0 (MT)");
-        }
-
-        MessageDigest md = MessageDigest.getInstance("SHA1");
-        byte[] buffer = new byte[4096];
-        int num;
-
-        TreeMap<String, ZipEntry> byName = new TreeMap<>();
-
-        int total = 0;
-        for (Enumeration<ZipEntry> e = zipFile.getEntries(); e.hasMoreElements(); ) {
-            ZipEntry entry = e.nextElement();
-            byName.put(entry.getName(), entry);
-            total++;
-        }
-
-        int progress = 0;
-        for (ZipEntry entry : byName.values()) {
-            String name = entry.getName();
-            if (!entry.isDirectory()
-                    && !name.equals(JarFile.MANIFEST_NAME)
-                    && !name.equals(ApkSigner.CERT_SF_NAME)
-                    && !name.equals(ApkSigner.CERT_RSA_NAME)
-                    && (ApkSigner.stripPattern == null || !ApkSigner.stripPattern
-                    .matcher(name).matches())) {
-                InputStream data = zipFile.getInputStream(entry);
-                while ((num = data.read(buffer)) > 0) {
-                    md.update(buffer, 0, num);
-                }
-                Attributes attr = null;
-                if (input != null) {
-                    attr = input.getAttributes(name);
-                }
-                attr = attr != null ? new Attributes(attr) : new Attributes();
-                //attr.putValue("SHA1-Digest", Base64.getEncoder().encodeToString(md.digest()));
-                output.getEntries().put(name, attr);
-            }
-            callback.onProgress(++progress, total);
-        }
-        return output;
-    }
-
-    private static void copyFiles(Manifest manifest, ZipFile in, ZipOutputStream out,
-                                  long timestamp, ApkSignCallback callback) throws IOException {
-        Map<String, Attributes> entries = manifest.getEntries();
-        List<String> names = new ArrayList<>(entries.keySet());
-        Collections.sort(names);
-        int progress = 0;
-        int total = names.size();
-        for (String name : names) {
-            ZipEntry inEntry = in.getEntry(name);
-            inEntry.setTime(timestamp);
-            out.copyZipEntry(inEntry, in);
-            callback.onProgress(++progress, total);
-        }
-    }
+    private static final Pattern stripPattern = Pattern
+            .compile("^META-INF/(MANIFEST[.]MF|[^/]+[.](SF|RSA|DSA|EC))$");
 
     private static KeySpec decryptPrivateKey(byte[] encryptedPrivateKey)
             throws GeneralSecurityException {
@@ -165,7 +77,11 @@ public class ApkSigner {
             try {
                 return KeyFactory.getInstance("RSA").generatePrivate(spec);
             } catch (InvalidKeySpecException ex) {
-                return KeyFactory.getInstance("DSA").generatePrivate(spec);
+                try {
+                    return KeyFactory.getInstance("EC").generatePrivate(spec);
+                } catch (InvalidKeySpecException ex2) {
+                    return KeyFactory.getInstance("DSA").generatePrivate(spec);
+                }
             }
         } finally {
             input.close();
@@ -183,112 +99,63 @@ public class ApkSigner {
     }
 
     public static void signApk(File input, File output, BaseSignatureKey key, ApkSignCallback callback) throws Exception {
-        ZipFile inputJar = null;
-        ZipOutputStream outputJar;
-        FileOutputStream outputFile = null;
+        signApk(input, output, key, 1, callback);
+    }
+
+    /**
+     * Signs with v1, digesting entries while they are copied, then adds the
+     * v2/v3 APK Signing Block.
+     *
+     * @param minSdkVersion selects SHA-256 (API 18+) or SHA-1 for v1
+     */
+    public static void signApk(File input, File output, BaseSignatureKey key, int minSdkVersion,
+                               ApkSignCallback callback) throws Exception {
         if (callback == null)
             callback = ApkSigner.SIGN_CALLBACK;
-        try {
-            callback.onStep(Step.START);
-            //Load key
-            X509Certificate publicKey = ApkSigner.readPublicKey(key.getPublicKey());
-            PrivateKey privateKey = ApkSigner.readPrivateKey(key.getPrivateKey());
-            key.recycle();
-            //Calculate SHA1-Digest
-            inputJar = new ZipFile(input);
-            callback.onStep(Step.SIGN_FILE);
-            Manifest manifest = ApkSigner.addDigestsToManifest(inputJar, callback);
-            //Write out signature files
-            long timestamp = publicKey.getNotBefore().getTime() + 3600L * 1000;
-            outputFile = new FileOutputStream(output);
-            outputJar = new ZipOutputStream(outputFile);
-            outputJar.setZipEncoding(inputJar.getZipEncoding());
-            outputJar.setMethod(ZipOutputStream.DEFLATED);
-            outputJar.setLevel(9);
-            //META-INF/MANIFEST.MF
-            ZipEntry je = new ZipEntry(JarFile.MANIFEST_NAME);
-            je.setTime(timestamp);
-            outputJar.putNextEntry(je);
-            manifest.write(outputJar);
-            //META-INF/CERT.SF
-            je = new ZipEntry(ApkSigner.CERT_SF_NAME);
-            je.setTime(timestamp);
-            outputJar.putNextEntry(je);
-            Signature signature = Signature.getInstance("SHA1withRSA");
-            signature.initSign(privateKey);
-            ApkSigner.writeSignatureFile(manifest, new SignatureOutputStream(
-                    outputJar, signature));
-            //META-INF/CERT.RSA
-            je = new ZipEntry(ApkSigner.CERT_RSA_NAME);
-            je.setTime(timestamp);
-            outputJar.putNextEntry(je);
-            ApkSigner.writeSignatureBlock(signature, publicKey, outputJar);
-            //Write out other files
+        callback.onStep(Step.START);
+        //Load key
+        X509Certificate publicKey = ApkSigner.readPublicKey(key.getPublicKey());
+        PrivateKey privateKey = ApkSigner.readPrivateKey(key.getPrivateKey());
+        key.recycle();
+        long timestamp = publicKey.getNotBefore().getTime() + 3600L * 1000;
+        try (ZipFile inputJar = new ZipFile(input)) {
+            List<ZipEntry> entries = new ArrayList<>();
+            for (Enumeration<ZipEntry> e = inputJar.getEntries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory() && !ApkSigner.stripPattern.matcher(entry.getName()).matches())
+                    entries.add(entry);
+            }
+            Collections.sort(entries, (a, b) -> a.getName().compareTo(b.getName()));
+            //Copy files, digesting them on the way
             callback.onStep(Step.OUTPUT);
-            ApkSigner.copyFiles(manifest, inputJar, outputJar, timestamp, callback);
-            outputJar.close();
-            outputFile.flush();
-            callback.onStep(Step.FINISH);
-        } finally {
-            StreamUtil.close(inputJar);
-            StreamUtil.close(outputFile);
-        }
-    }
-
-    private static void writeSignatureBlock(Signature signature,
-                                            X509Certificate publicKey, OutputStream out) throws IOException,
-            GeneralSecurityException {
-        /*SignerInfo signerInfo = new SignerInfo(new X500Name(publicKey
-                .getIssuerX500Principal().getName()),
-                publicKey.getSerialNumber(), AlgorithmId.get("SHA1"),
-                AlgorithmId.get("RSA"), signature.sign());
-        PKCS7 pkcs7 = new PKCS7(new AlgorithmId[]{AlgorithmId.get("SHA1")},
-                new ContentInfo(ContentInfo.DATA_OID, null),
-                new X509Certificate[]{publicKey},
-                new SignerInfo[]{signerInfo});
-        pkcs7.encodeSignedData(out);*/
-    }
-
-    private static void writeSignatureFile(Manifest manifest,
-                                           SignatureOutputStream out) throws IOException,
-            GeneralSecurityException {
-        /*out.write("Signature-Version: 1.0\r\n".getBytes());
-        out.write("Created-By: 1.0 (MT_Bin)\r\n".getBytes());
-
-        MessageDigest md = MessageDigest.getInstance("SHA1");
-        PrintStream print = new PrintStream(new DigestOutputStream(
-                new ByteArrayOutputStream(), md), true, "UTF-8");
-        manifest.write(print);
-        print.flush();
-
-        out.write(("SHA1-Digest-Manifest: " + Base64.getEncoder().encodeToString(md.digest())
-                + "\r\n\r\n").getBytes());
-        Map<String, Attributes> entries = manifest.getEntries();
-        for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
-            // Digest of the manifest stanza for this entry.
-            String nameEntry = "Name: " + entry.getKey() + "\r\n";
-            print.print(nameEntry);
-            for (Map.Entry<Object, Object> att : entry.getValue().entrySet()) {
-                print.print(att.getKey() + ": " + att.getValue() + "\r\n");
+            try (SigningZipOutputStream outputJar = new SigningZipOutputStream(output, privateKey, publicKey,
+                    minSdkVersion)) {
+                outputJar.setZipEncoding(inputJar.getZipEncoding());
+                outputJar.setMethod(ZipOutputStream.DEFLATED);
+                outputJar.setLevel(9);
+                outputJar.setAlignmentPolicy(ZipOutputStream.APK_ALIGNMENT);
+                outputJar.setApkSignedSchemes("2, 3");
+                int progress = 0;
+                for (ZipEntry entry : entries) {
+                    entry.setTime(timestamp);
+                    outputJar.copyZipEntry(entry, inputJar);
+                    callback.onProgress(++progress, entries.size());
+                }
+                //META-INF/MANIFEST.MF, CERT.SF, CERT.RSA
+                callback.onStep(Step.SIGN_FILE);
             }
-            print.print("\r\n");
-            print.flush();
-
-            out.write(nameEntry.getBytes());
-
-            out.write(("SHA1-Digest: " + Base64.getEncoder().encodeToString(md.digest())
-                    + "\r\n\r\n").getBytes());
         }
-        if (out.size() % 1024 == 0) {
-            out.write('\r');
-            out.write('\n');
-        }*/
+        //APK Signing Block
+        callback.onStep(Step.SIGNING_BLOCK);
+        new ApkSignatureSchemeSigner(privateKey, publicKey).sign(output);
+        callback.onStep(Step.FINISH);
     }
 
     public enum Step {
         START,
         SIGN_FILE,
         OUTPUT,
+        SIGNING_BLOCK,
         FINISH
     }
 
@@ -298,42 +165,4 @@ public class ApkSigner {
 
         void onProgress(int progress, int total);
     }
-
-    private static class SignatureOutputStream extends OutputStream {
-        private int mCount;
-        private Signature mSignature;
-        private OutputStream out;
-
-        public SignatureOutputStream(OutputStream out, Signature sig) {
-            this.out = out;
-            mSignature = sig;
-            mCount = 0;
-        }
-
-        public int size() {
-            return mCount;
-        }
-
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            try {
-                mSignature.update(b, off, len);
-            } catch (SignatureException e) {
-                throw new IOException("SignatureException: " + e);
-            }
-            out.write(b, off, len);
-            mCount += len;
-        }
-
-        @Override
-        public void write(int b) throws IOException {
-            try {
-                mSignature.update((byte) b);
-            } catch (SignatureException e) {
-                throw new IOException("SignatureException: " + e);
-            }
-            out.write(b);
-            mCount++;
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,120 @@
+package bin.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.security.InvalidKeyException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Minimal DER encoder for the detached PKCS#7 SignedData of a JAR signature
+ * block ({@code META-INF/CERT.RSA}), so v1 signing does not depend on the
+ * {@code sun.security.pkcs} classes missing on Android.
+ */
+final class Pkcs7 {
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_NULL = 0x05;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_SET = 0x31;
+    private static final int TAG_CONTEXT_0 = 0xa0;
+
+    private static final String OID_DATA = "1.2.840.113549.1.7.1";
+    private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String OID_SHA1 = "1.3.14.3.2.26";
+    private static final String OID_SHA256 = "2.16.840.1.101.3.4.2.1";
+    private static final String OID_RSA = "1.2.840.113549.1.1.1";
+    private static final String OID_ECDSA_SHA1 = "1.2.840.10045.4.1";
+    private static final String OID_ECDSA_SHA256 = "1.2.840.10045.4.3.2";
+    private static final String OID_DSA_SHA1 = "1.2.840.10040.4.3";
+    private static final String OID_DSA_SHA256 = "2.16.840.1.101.3.4.3.2";
+
+    private Pkcs7() {
+    }
+
+    /**
+     * @param sha256    whether {@code signature} was made with SHA-256 (else SHA-1)
+     * @param signature the raw signature over the signed file
+     */
+    static byte[] encodeSignedData(X509Certificate certificate, String keyAlgorithm, boolean sha256,
+                                   byte[] signature) throws CertificateEncodingException, InvalidKeyException {
+        byte[] digestAlgorithm = algorithmIdentifier(sha256 ? OID_SHA256 : OID_SHA1, true);
+        byte[] signerInfo = sequence(
+                integer(new byte[]{1}),
+                sequence(certificate.getIssuerX500Principal().getEncoded(),
+                        integer(certificate.getSerialNumber().toByteArray())),
+                digestAlgorithm,
+                signatureAlgorithm(keyAlgorithm, sha256),
+                tlv(TAG_OCTET_STRING, signature));
+        byte[] signedData = sequence(
+                integer(new byte[]{1}),
+                tlv(TAG_SET, digestAlgorithm),
+                sequence(oid(OID_DATA)),
+                tlv(TAG_CONTEXT_0, certificate.getEncoded()),
+                tlv(TAG_SET, signerInfo));
+        return sequence(oid(OID_SIGNED_DATA), tlv(TAG_CONTEXT_0, signedData));
+    }
+
+    private static byte[] signatureAlgorithm(String keyAlgorithm, boolean sha256) throws InvalidKeyException {
+        switch (keyAlgorithm) {
+            case "RSA":
+                return algorithmIdentifier(OID_RSA, true);
+            case "EC":
+                return algorithmIdentifier(sha256 ? OID_ECDSA_SHA256 : OID_ECDSA_SHA1, false);
+            case "DSA":
+                return algorithmIdentifier(sha256 ? OID_DSA_SHA256 : OID_DSA_SHA1, false);
+            default:
+                throw new InvalidKeyException("Unsupported key algorithm: " + keyAlgorithm);
+        }
+    }
+
+    private static byte[] algorithmIdentifier(String oid, boolean nullParameters) {
+        return nullParameters ? sequence(oid(oid), new byte[]{TAG_NULL, 0}) : sequence(oid(oid));
+    }
+
+    private static byte[] oid(String oid) {
+        String[] parts = oid.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            long value = Long.parseLong(parts[i]);
+            int shift = 63 - Long.numberOfLeadingZeros(value | 1);
+            shift -= shift % 7;
+            for (; shift > 0; shift -= 7) {
+                out.write((int) ((value >>> shift) & 0x7f) | 0x80);
+            }
+            out.write((int) (value & 0x7f));
+        }
+        return tlv(TAG_OID, out.toByteArray());
+    }
+
+    private static byte[] integer(byte[] twosComplement) {
+        return tlv(TAG_INTEGER, twosComplement);
+    }
+
+    private static byte[] sequence(byte[]... items) {
+        return tlv(TAG_SEQUENCE, items);
+    }
+
+    private static byte[] tlv(int tag, byte[]... contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (39 - Integer.numberOfLeadingZeros(length)) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (i * 8));
+            }
+        }
+        for (byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+}
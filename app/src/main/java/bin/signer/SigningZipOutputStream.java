@@ -0,0 +1,263 @@
+package bin.signer;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import bin.zip.ZipEntry;
+import bin.zip.ZipOutputStream;
+import bin.zip.ZipPool;
+
+/**
+ * A {@link ZipOutputStream} that JAR-signs (v1) the archive while it is being
+ * written.
+ * <p>
+ * The digest of every entry is computed from the data passing through
+ * {@link #write(byte[], int, int)} and {@link #writeRaw(byte[], int, int)};
+ * raw-copied deflated entries are inflated on the fly for that, so
+ * {@link #copyZipEntry} reads every entry once and never transfers it
+ * between the files directly. The output is never read back. {@link #finish()} appends
+ * {@code META-INF/MANIFEST.MF}, {@code META-INF/CERT.SF} and the signature
+ * block. Signature files must not be written by the caller.
+ */
+public class SigningZipOutputStream extends ZipOutputStream {
+    public static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    public static final String CERT_SF_NAME = "META-INF/CERT.SF";
+    private static final Pattern SIGNATURE_FILE = Pattern
+            .compile("^META-INF/(MANIFEST[.]MF|[^/]+[.](SF|RSA|DSA|EC))$");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int MAX_LINE_LENGTH = 72;
+
+    private final PrivateKey privateKey;
+    private final X509Certificate certificate;
+    private final boolean sha256;
+    private final String digestName;
+    private final MessageDigest md;
+    private final Map<String, byte[]> digests = new LinkedHashMap<>();
+    private final Inflater inflater = ZipPool.obtainInflater();
+    private final byte[] inflateBuf = ZipPool.obtainBuffer();
+    private String createdBy = "1.0 (MT_Bin)";
+    private String apkSignedSchemes;
+    private String digestedName;
+    private boolean inflating;
+    private boolean finished;
+
+    /**
+     * @param minSdkVersion SHA-256 digests need API 18, older APKs get SHA-1
+     */
+    public SigningZipOutputStream(File file, PrivateKey privateKey, X509Certificate certificate,
+                                  int minSdkVersion) throws IOException, NoSuchAlgorithmException {
+        super(file);
+        this.privateKey = privateKey;
+        this.certificate = certificate;
+        sha256 = minSdkVersion >= 18;
+        digestName = sha256 ? "SHA-256" : "SHA1";
+        md = MessageDigest.getInstance(sha256 ? "SHA-256" : "SHA-1");
+    }
+
+    public void setCreatedBy(String createdBy) {
+        this.createdBy = createdBy;
+    }
+
+    /**
+     * Adds {@code X-Android-APK-Signed: <schemes>} to {@code CERT.SF}, e.g.
+     * {@code "2, 3"} when the APK is going to be signed with
+     * {@link ApkSignatureSchemeSigner} as well, so the v1 signature cannot be
+     * used on its own once that signature is stripped.
+     */
+    public void setApkSignedSchemes(String apkSignedSchemes) {
+        this.apkSignedSchemes = apkSignedSchemes;
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry ze) throws IOException {
+        super.putNextEntry(ze);
+        startDigest(ze, false);
+    }
+
+    @Override
+    public void putNextRawEntry(ZipEntry ze) throws IOException {
+        super.putNextRawEntry(ze);
+        startDigest(ze, true);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        super.write(b, offset, length);
+        if (digestedName != null)
+            md.update(b, offset, length);
+    }
+
+    @Override
+    public void writeRaw(byte[] b, int offset, int length) throws IOException {
+        super.writeRaw(b, offset, length);
+        if (digestedName == null)
+            return;
+        if (!inflating) {
+            md.update(b, offset, length);
+            return;
+        }
+        inflater.setInput(b, offset, length);
+        inflateAvailable();
+    }
+
+    @Override
+    protected boolean isRawTransferAllowed() {
+        return false;
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        if (digestedName != null) {
+            if (inflating && !inflater.finished()) {
+                // nowrap inflaters may need one extra byte to finish
+                inflater.setInput(new byte[1]);
+                inflateAvailable();
+            }
+            digests.put(digestedName, md.digest());
+            digestedName = null;
+        }
+        super.closeEntry();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        closeEntry();
+        try {
+            writeSignatureFiles();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to sign", e);
+        }
+        ZipPool.recycle(inflater);
+        ZipPool.recycle(inflateBuf);
+        finished = true;
+        super.finish();
+    }
+
+    private void startDigest(ZipEntry ze, boolean raw) throws ZipException {
+        String name = ze.getName();
+        if (SIGNATURE_FILE.matcher(name).matches())
+            throw new ZipException("Signature files are written by finish(): " + name);
+        md.reset();
+        inflating = raw && ze.getMethod() == DEFLATED;
+        if (inflating)
+            inflater.reset();
+        digestedName = ze.isDirectory() ? null : name;
+    }
+
+    private void inflateAvailable() throws IOException {
+        try {
+            int len;
+            while ((len = inflater.inflate(inflateBuf)) > 0) {
+                md.update(inflateBuf, 0, len);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Bad deflated data in " + digestedName + ": " + e.getMessage());
+        }
+    }
+
+    private void writeSignatureFiles() throws IOException, GeneralSecurityException {
+        long timestamp = certificate.getNotBefore().getTime() + 3600L * 1000;
+        BaseEncoding base64 = BaseEncoding.base64();
+
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeAttribute(manifest, "Manifest-Version", "1.0");
+        writeAttribute(manifest, "Created-By", createdBy);
+        manifest.write(CRLF);
+        Map<String, byte[]> sections = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : digests.entrySet()) {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            writeAttribute(section, "Name", entry.getKey());
+            writeAttribute(section, digestName + "-Digest", base64.encode(entry.getValue()));
+            section.write(CRLF);
+            byte[] bytes = section.toByteArray();
+            sections.put(entry.getKey(), bytes);
+            manifest.write(bytes);
+        }
+        byte[] manifestBytes = manifest.toByteArray();
+
+        ByteArrayOutputStream sf = new ByteArrayOutputStream();
+        writeAttribute(sf, "Signature-Version", "1.0");
+        writeAttribute(sf, "Created-By", createdBy);
+        if (apkSignedSchemes != null)
+            writeAttribute(sf, "X-Android-APK-Signed", apkSignedSchemes);
+        writeAttribute(sf, digestName + "-Digest-Manifest", base64.encode(md.digest(manifestBytes)));
+        sf.write(CRLF);
+        for (Map.Entry<String, byte[]> entry : sections.entrySet()) {
+            writeAttribute(sf, "Name", entry.getKey());
+            writeAttribute(sf, digestName + "-Digest", base64.encode(md.digest(entry.getValue())));
+            sf.write(CRLF);
+        }
+        byte[] sfBytes = sf.toByteArray();
+
+        String keyAlgorithm = privateKey.getAlgorithm();
+        Signature signature = Signature.getInstance(jcaSignatureAlgorithm(keyAlgorithm));
+        signature.initSign(privateKey);
+        signature.update(sfBytes);
+        byte[] block = Pkcs7.encodeSignedData(certificate, keyAlgorithm, sha256, signature.sign());
+
+        writeSignatureFile(MANIFEST_NAME, manifestBytes, timestamp);
+        writeSignatureFile(CERT_SF_NAME, sfBytes, timestamp);
+        writeSignatureFile("META-INF/CERT." + keyAlgorithm, block, timestamp);
+    }
+
+    private String jcaSignatureAlgorithm(String keyAlgorithm) throws InvalidKeyException {
+        String digest = sha256 ? "SHA256" : "SHA1";
+        switch (keyAlgorithm) {
+            case "RSA":
+                return digest + "withRSA";
+            case "EC":
+                return digest + "withECDSA";
+            case "DSA":
+                return digest + "withDSA";
+            default:
+                throw new InvalidKeyException("Unsupported key algorithm: " + keyAlgorithm);
+        }
+    }
+
+    private void writeSignatureFile(String name, byte[] data, long timestamp) throws IOException {
+        ZipEntry ze = new ZipEntry(name);
+        ze.setTime(timestamp);
+        super.putNextEntry(ze);
+        super.write(data, 0, data.length);
+        super.closeEntry();
+    }
+
+    /**
+     * Writes {@code name: value} wrapped at 72 bytes per line, as required for
+     * manifests and signature files.
+     */
+    private static void writeAttribute(OutputStream out, String name, String value) throws IOException {
+        byte[] line = (name + ": " + value).getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        int max = MAX_LINE_LENGTH;
+        while (line.length - offset > max) {
+            out.write(line, offset, max);
+            out.write(CRLF);
+            out.write(' ');
+            offset += max;
+            max = MAX_LINE_LENGTH - 1;
+        }
+        out.write(line, offset, line.length - offset);
+        out.write(CRLF);
+    }
+}
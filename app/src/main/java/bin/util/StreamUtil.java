@@ -4,20 +4,57 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import bin.zip.ZipFile;
+import bin.zip.ZipPool;
 
 public class StreamUtil {
+    /**
+     * Largest size hint trusted for allocating up front, a bogus size
+     * in a broken archive mustn't take gigabytes.
+     */
+    private static final int MAX_PRESIZE = 16 * 1024 * 1024;
 
     public static byte[] readBytes(InputStream is) throws IOException {
-        byte[] buf = new byte[10240];
-        int num;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        while ((num = is.read(buf)) != -1)
-            baos.write(buf, 0, num);
-        byte[] b = baos.toByteArray();
-        baos.close();
-        return b;
+        return readBytes(is, -1);
+    }
+
+    /**
+     * Reads {@code is} to the end. With the expected length known, as for
+     * zip entries, the result is read straight into an array of that
+     * length; a stream that turns out longer or shorter is still read
+     * correctly.
+     *
+     * @param sizeHint expected length, -1 if unknown
+     */
+    public static byte[] readBytes(InputStream is, long sizeHint) throws IOException {
+        byte[] buf = ZipPool.obtainBuffer();
+        try {
+            int num;
+            if (sizeHint >= 0 && sizeHint <= MAX_PRESIZE) {
+                byte[] b = new byte[(int) sizeHint];
+                int off = 0;
+                while (off < b.length && (num = is.read(b, off, b.length - off)) != -1)
+                    off += num;
+                if (off < b.length)
+                    return Arrays.copyOf(b, off);
+                if ((num = is.read(buf)) == -1)
+                    return b;
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(b.length + num + buf.length);
+                baos.write(b);
+                do {
+                    baos.write(buf, 0, num);
+                } while ((num = is.read(buf)) != -1);
+                return baos.toByteArray();
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(buf.length);
+            while ((num = is.read(buf)) != -1)
+                baos.write(buf, 0, num);
+            return baos.toByteArray();
+        } finally {
+            ZipPool.recycle(buf);
+        }
     }
 
     public static void close(InputStream is) {
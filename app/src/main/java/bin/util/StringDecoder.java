@@ -3,23 +3,58 @@ package bin.util;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import bin.io.ZInput;
 import bin.io.ZOutput;
 
+/**
+ * The string pool of a binary XML or resource table.
+ * <p>
+ * Strings are decoded from the raw pool data on first access, so large
+ * resource tables open fast and only the strings a pass touches are
+ * decoded. Reading is thread safe; {@link #setString} is not.
+ */
 public class StringDecoder {
     public static final int IS_UTF8 = 0x100;
-    private static final CharsetDecoder UTF16LE_DECODER = Charset.forName(
-            "UTF-16LE").newDecoder();
-    private static final CharsetDecoder UTF8_DECODER = Charset.forName("UTF-8")
-            .newDecoder();
+    // CharsetDecoders keep state while decoding, one per thread
+    private static final ThreadLocal<CharsetDecoder> UTF16LE_DECODER = new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return Charset.forName("UTF-16LE").newDecoder();
+        }
+    };
+    private static final ThreadLocal<CharsetDecoder> UTF8_DECODER = new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return Charset.forName("UTF-8").newDecoder();
+        }
+    };
     private static final int CHUNK_STRINGPOOL_TYPE = 0x001C0001;
     private static final int CHUNK_NULL_TYPE = 0x00000000;
+    /**
+     * Marks a string that failed to decode, {@link #getString} returns null.
+     */
+    private static final String UNDECODABLE = new String();
+    /**
+     * Decoded strings, null where not decoded yet.
+     */
     private String[] m_strings;
+    private int[] m_stringOffsets;
+    /**
+     * Raw string data, little endian, starting at the first string.
+     */
+    private ByteBuffer m_data;
+    /**
+     * First index of each string, built by the first {@link #find}.
+     */
+    private volatile Map<String, Integer> m_index;
     private int[] m_styleOffsets;
     private int[] m_styles;
     private boolean m_isUTF8;
@@ -66,32 +101,97 @@ public class StringDecoder {
         }
         // System.out.println();
 
-        int i = 0;
         block.m_strings = new String[m_stringOffsets.length];
-        for (int offset : m_stringOffsets) {
-            int length;
-            if (!block.m_isUTF8) {
-                length = getShort(data, offset) * 2;
-                offset += 2;
-            } else {
-                offset += getVarint(data, offset)[1];
-                int[] varint = getVarint(data, offset);
-                offset += varint[1];
-                length = varint[0];
+        block.m_stringOffsets = m_stringOffsets;
+        block.m_data = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        return block;
+    }
+
+    /**
+     * Reads the pool at the buffer's position and moves the position past
+     * its chunk. String data is not copied, the buffer's content must not
+     * change while the pool is used.
+     */
+    public static StringDecoder read(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int chunkStart = in.position();
+            int type = in.getInt();
+            if (type == CHUNK_NULL_TYPE) {
+                chunkStart = in.position();
+                type = in.getInt();
             }
-            block.m_strings[i++] = decodeString(offset, length, block.m_isUTF8,
-                    data);
+            if (type != CHUNK_STRINGPOOL_TYPE)
+                throw new IOException(String.format(
+                        "Expected: 0x%08x, got: 0x%08x", CHUNK_STRINGPOOL_TYPE, type));
+            StringDecoder block = new StringDecoder();
+            int chunkSize = block.chunkSize = in.getInt();
+            if (chunkSize < 28 || chunkSize > buffer.limit() - chunkStart)
+                throw new IOException("Bad string pool size: " + chunkSize);
+
+            int stringCount = in.getInt();
+            int styleCount = block.styleOffsetCount = in.getInt();
+            int flags = block.flags = in.getInt();
+            int stringsOffset = in.getInt();
+            int stylesOffset = block.stylesOffset = in.getInt();
+
+            block.m_isUTF8 = (flags & IS_UTF8) != 0;
+            int[] m_stringOffsets = new int[stringCount];
+            for (int i = 0; i < stringCount; i++)
+                m_stringOffsets[i] = in.getInt();
+            if (styleCount != 0) {
+                block.m_styleOffsets = new int[styleCount];
+                for (int i = 0; i < styleCount; i++)
+                    block.m_styleOffsets[i] = in.getInt();
+            }
+
+            int size = ((stylesOffset == 0) ? chunkSize : stylesOffset) - stringsOffset;
+            in.limit(chunkStart + stringsOffset + size);
+            in.position(chunkStart + stringsOffset);
+            block.m_data = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+            block.m_strings_size = size;
+
+            if (stylesOffset != 0) {
+                in.limit(chunkStart + chunkSize);
+                in.position(chunkStart + stylesOffset);
+                block.m_styles = new int[(chunkSize - stylesOffset) / 4];
+                for (int i = 0; i < block.m_styles.length; i++)
+                    block.m_styles[i] = in.getInt();
+            }
+
+            block.m_strings = new String[stringCount];
+            block.m_stringOffsets = m_stringOffsets;
+            buffer.position(chunkStart + chunkSize);
+            return block;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException or a bad offset
+            throw new IOException("Bad string pool", e);
         }
-        data = null;
-        return block;
     }
 
-    private static int[] getVarint(byte[] array, int offset) {
-        if ((array[offset] & 0x80) == 0)
-            return new int[]{array[offset] & 0x7f, 1};
+    private String decodeString(int index) {
+        ByteBuffer data = m_data;
+        int offset = m_stringOffsets[index];
+        int length;
+        if (!m_isUTF8) {
+            length = getShort(data, offset) * 2;
+            offset += 2;
+        } else {
+            offset += getVarint(data, offset)[1];
+            int[] varint = getVarint(data, offset);
+            offset += varint[1];
+            length = varint[0];
+        }
+        String s = decodeString(offset, length, m_isUTF8, data);
+        return s != null ? s : UNDECODABLE;
+    }
+
+    private static int[] getVarint(ByteBuffer array, int offset) {
+        if ((array.get(offset) & 0x80) == 0)
+            return new int[]{array.get(offset) & 0x7f, 1};
         else {
             return new int[]{
-                    ((array[offset] & 0x7f) << 8) | array[offset + 1] & 0xFF, 2};
+                    ((array.get(offset) & 0x7f) << 8) | array.get(offset + 1) & 0xFF, 2};
         }
 
         // int val = array[offset];
@@ -115,17 +215,20 @@ public class StringDecoder {
     }
 
     private static String decodeString(int offset, int length, boolean utf8,
-                                       byte[] data) {
+                                       ByteBuffer data) {
         try {
-            return (utf8 ? UTF8_DECODER : UTF16LE_DECODER).decode(
-                    ByteBuffer.wrap(data, offset, length)).toString();
-        } catch (CharacterCodingException ignored) {
+            // a view, data itself is shared between threads
+            ByteBuffer view = data.duplicate();
+            view.position(offset);
+            view.limit(offset + length);
+            return (utf8 ? UTF8_DECODER : UTF16LE_DECODER).get().decode(view).toString();
+        } catch (CharacterCodingException | IllegalArgumentException ignored) {
         }
         return null;
     }
 
-    private static int getShort(byte[] array, int offset) {
-        return (array[offset + 1] & 0xFF) << 8 | array[offset] & 0xFF;
+    private static int getShort(ByteBuffer array, int offset) {
+        return array.getShort(offset) & 0xFFFF;
     }
 
     public boolean isUtf8() {
@@ -139,11 +242,18 @@ public class StringDecoder {
         if (string == null) {
             return -1;
         }
-        for (int i = 0; i < m_strings.length; i++) {
-            if (getString(i).equals(string))
-                return i;
+        Map<String, Integer> index = m_index;
+        if (index == null) {
+            index = new HashMap<>(m_strings.length * 4 / 3 + 1);
+            for (int i = m_strings.length - 1; i >= 0; i--) {
+                String s = getString(i);
+                if (s != null)
+                    index.put(s, i);
+            }
+            m_index = index;
         }
-        return -1;
+        Integer i = index.get(string);
+        return i != null ? i : -1;
     }
 
     public void getStrings(List<String> list) {
@@ -153,9 +263,10 @@ public class StringDecoder {
     }
 
     public void write(ZOutput out) throws IOException {
-        // List<String> list = new ArrayList<String>(getSize());
-        // getStrings(list);
-        write(m_strings, out);
+        String[] strings = new String[getSize()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = getString(i);
+        write(strings, out);
     }
 
     public void write(String[] s, ZOutput out) throws IOException {
@@ -248,13 +359,20 @@ public class StringDecoder {
     }
 
     public void setString(int index, String s) {
-        m_strings[index] = s;
+        m_strings[index] = s != null ? s : UNDECODABLE;
+        m_index = null;
     }
 
     public String getString(int index) {
-        if (index >= 0)
-            return m_strings[index];
-        return null;
+        if (index < 0)
+            return null;
+        String s = m_strings[index];
+        if (s == null) {
+            // racing threads decode the same string, either result will do
+            s = decodeString(index);
+            m_strings[index] = s;
+        }
+        return s == UNDECODABLE ? null : s;
     }
 
     public int getSize() {
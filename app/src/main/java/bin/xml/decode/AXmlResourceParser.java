@@ -20,6 +20,8 @@ import android.util.TypedValue;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import bin.io.ZInput;
 import bin.util.StringDecoder;
@@ -35,6 +37,12 @@ import bin.util.StringDecoder;
  * (2) Closed state, which parser obtains after open(), close(), or failed
  * call to next(). In this state methods return invalid values or throw exceptions.
  * <p/>
+ * Input is either a stream or a {@link ByteBuffer}, see
+ * {@link #open(ByteBuffer)}. Reading from a buffer copies nothing but the
+ * current tag's attributes, and {@link #getChunkOffset()} and
+ * {@link #getAttributeOffset(int)} tell where in the input an event lies,
+ * for in-place patching.
+ * <p/>
  * TODO:
  * * check all methods in closed state
  */
@@ -59,10 +67,20 @@ public class AXmlResourceParser implements XmlPullParser {
             CHUNK_XML_END_TAG = 0x00100103,
             CHUNK_XML_TEXT = 0x00100104,
             CHUNK_XML_LAST = 0x00100104;
+    /**
+     * Offset of the current tag's first attribute in the input.
+     *
+     * @deprecated use {@link #getAttributeOffset(int)}
+     */
+    @Deprecated
     public int currentAttributeStart;
 
     /////////////////////////////////// iteration
     private ZInput m_reader;
+    /**
+     * Little endian view of the input when opened on a buffer, else null.
+     */
+    private ByteBuffer m_buffer;
     private boolean m_operational = false;
     private StringDecoder m_strings;
     private int[] m_resourceIDs;
@@ -72,7 +90,13 @@ public class AXmlResourceParser implements XmlPullParser {
     private int m_lineNumber;
     private int m_name;
     private int m_namespaceUri;
+    /**
+     * Attributes of the current tag, reused from tag to tag and so
+     * possibly longer than {@link #m_attributeCount} of them.
+     */
     private int[] m_attributes;
+    private int m_attributeCount;
+    private int m_chunkOffset;
     private int m_idAttribute;
     private int m_classAttribute;
     private int m_styleAttribute;
@@ -81,8 +105,8 @@ public class AXmlResourceParser implements XmlPullParser {
         resetEventInfo();
     }
 
-    private static void readCheckType(ZInput reader, int expectedType) throws IOException {
-        int type = reader.readInt();
+    private void readCheckType(int expectedType) throws IOException {
+        int type = readInt();
         if (type != expectedType) {
             throw new IOException(
                     "Expected chunk of type 0x" + Integer.toHexString(expectedType) +
@@ -92,6 +116,7 @@ public class AXmlResourceParser implements XmlPullParser {
 
     public void open(InputStream stream) throws IOException {
         close();
+        m_buffer = null;
         if (stream != null) {
             m_reader = new ZInput(stream);
         }
@@ -99,12 +124,39 @@ public class AXmlResourceParser implements XmlPullParser {
 
     public void open(InputStream stream, StringDecoder strings) throws IOException {
         close();
+        m_buffer = null;
         m_reader = new ZInput(stream);
         m_strings = strings;
         m_namespaces.increaseDepth();
         m_operational = true;
     }
 
+    /**
+     * Parses the binary xml from the buffer's position to its limit. The
+     * buffer itself is left untouched, its content must not change while
+     * parsing. Offsets reported are relative to the buffer's position.
+     */
+    public void open(ByteBuffer buffer) throws IOException {
+        close();
+        m_reader = null;
+        if (buffer != null) {
+            m_buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Parses xml chunks following a string pool already read, like
+     * {@link #open(InputStream, StringDecoder)}.
+     */
+    public void open(ByteBuffer buffer, StringDecoder strings) throws IOException {
+        close();
+        m_reader = null;
+        m_buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        m_strings = strings;
+        m_namespaces.increaseDepth();
+        m_operational = true;
+    }
+
     /////////////////////////////////// attributes
 
     public void close() {
@@ -112,11 +164,14 @@ public class AXmlResourceParser implements XmlPullParser {
             return;
         }
         m_operational = false;
-        try {
-            m_reader.close();
-        } catch (IOException e) {
+        if (m_reader != null) {
+            try {
+                m_reader.close();
+            } catch (IOException e) {
+            }
+            m_reader = null;
         }
-        m_reader = null;
+        m_buffer = null;
         m_strings = null;
         m_resourceIDs = null;
         m_namespaces.reset();
@@ -124,7 +179,7 @@ public class AXmlResourceParser implements XmlPullParser {
     }
 
     public int next() throws IOException {
-        if (m_reader == null) {
+        if (m_reader == null && m_buffer == null) {
             throw new IOException("Parser is not opened.");
         }
         try {
@@ -133,6 +188,10 @@ public class AXmlResourceParser implements XmlPullParser {
         } catch (IOException e) {
             close();
             throw e;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException and the like from a buffer
+            close();
+            throw new IOException("Truncated or invalid binary xml.", e);
         }
     }
 
@@ -247,7 +306,7 @@ public class AXmlResourceParser implements XmlPullParser {
         if (m_classAttribute == -1) {
             return null;
         }
-        int offset = getAttributeOffset(m_classAttribute);
+        int offset = getAttributeIndex(m_classAttribute);
         int value = m_attributes[offset + ATTRIBUTE_IX_VALUE_STRING];
         return m_strings.getString(value);
     }
@@ -256,7 +315,7 @@ public class AXmlResourceParser implements XmlPullParser {
         if (m_idAttribute == -1) {
             return null;
         }
-        int offset = getAttributeOffset(m_idAttribute);
+        int offset = getAttributeIndex(m_idAttribute);
         int value = m_attributes[offset + ATTRIBUTE_IX_VALUE_STRING];
         return m_strings.getString(value);
     }
@@ -265,7 +324,7 @@ public class AXmlResourceParser implements XmlPullParser {
         if (m_idAttribute == -1) {
             return defaultValue;
         }
-        int offset = getAttributeOffset(m_idAttribute);
+        int offset = getAttributeIndex(m_idAttribute);
         int valueType = m_attributes[offset + ATTRIBUTE_IX_VALUE_TYPE];
         if (valueType != TypedValue.TYPE_REFERENCE) {
             return defaultValue;
@@ -277,7 +336,7 @@ public class AXmlResourceParser implements XmlPullParser {
         if (m_styleAttribute == -1) {
             return 0;
         }
-        int offset = getAttributeOffset(m_styleAttribute);
+        int offset = getAttributeIndex(m_styleAttribute);
         return m_attributes[offset + ATTRIBUTE_IX_VALUE_DATA];
     }
 
@@ -285,11 +344,31 @@ public class AXmlResourceParser implements XmlPullParser {
         if (m_event != START_TAG) {
             return -1;
         }
-        return m_attributes.length / ATTRIBUTE_LENGHT;
+        return m_attributeCount;
+    }
+
+    /**
+     * Offset in the input of the current event's chunk, -1 for
+     * START_DOCUMENT and END_DOCUMENT.
+     */
+    public int getChunkOffset() {
+        if (m_event == START_DOCUMENT || m_event == END_DOCUMENT) {
+            return -1;
+        }
+        return m_chunkOffset;
+    }
+
+    /**
+     * Offset in the input of the current tag's attribute at {@code index},
+     * its value type is at +15 and its value data at +16.
+     */
+    public int getAttributeOffset(int index) {
+        getAttributeIndex(index);
+        return currentAttributeStart + index * ATTRIBUTE_LENGHT * 4;
     }
 
     public String getAttributeNamespace(int index) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         int namespace = m_attributes[offset + ATTRIBUTE_IX_NAMESPACE_URI];
         if (namespace == -1) {
             return "";
@@ -298,7 +377,7 @@ public class AXmlResourceParser implements XmlPullParser {
     }
 
     public String getAttributePrefix(int index) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         int uri = m_attributes[offset + ATTRIBUTE_IX_NAMESPACE_URI];
         int prefix = m_namespaces.findPrefix(uri);
         if (prefix == -1) {
@@ -308,7 +387,7 @@ public class AXmlResourceParser implements XmlPullParser {
     }
 
     public String getAttributeName(int index) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         int name = m_attributes[offset + ATTRIBUTE_IX_NAME];
         if (name == -1) {
             return "";
@@ -321,7 +400,7 @@ public class AXmlResourceParser implements XmlPullParser {
     }
 
     public int getAttributeNameResource(int index) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         int name = m_attributes[offset + ATTRIBUTE_IX_NAME];
         if (m_resourceIDs == null ||
                 name < 0 || name >= m_resourceIDs.length) {
@@ -341,24 +420,24 @@ public class AXmlResourceParser implements XmlPullParser {
     }
 
     public int getAttributeValueType(int index) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         return m_attributes[offset + ATTRIBUTE_IX_VALUE_TYPE];
     }
 
     /////////////////////////////////// dummies
 
     public int getAttributeValueData(int index) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         return m_attributes[offset + ATTRIBUTE_IX_VALUE_DATA];
     }
 
     public int getAttributeValueString(int index) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         return m_attributes[offset + ATTRIBUTE_IX_VALUE_STRING];
     }
 
     public String getAttributeValue(int index) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         int valueType = m_attributes[offset + ATTRIBUTE_IX_VALUE_TYPE];
         if (valueType == TypedValue.TYPE_STRING) {
             int valueString = m_attributes[offset + ATTRIBUTE_IX_VALUE_STRING];
@@ -373,7 +452,7 @@ public class AXmlResourceParser implements XmlPullParser {
     }
 
     public float getAttributeFloatValue(int index, float defaultValue) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         int valueType = m_attributes[offset + ATTRIBUTE_IX_VALUE_TYPE];
         if (valueType == TypedValue.TYPE_FLOAT) {
             int valueData = m_attributes[offset + ATTRIBUTE_IX_VALUE_DATA];
@@ -383,7 +462,7 @@ public class AXmlResourceParser implements XmlPullParser {
     }
 
     public int getAttributeIntValue(int index, int defaultValue) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         int valueType = m_attributes[offset + ATTRIBUTE_IX_VALUE_TYPE];
         if (valueType >= TypedValue.TYPE_FIRST_INT &&
                 valueType <= TypedValue.TYPE_LAST_INT) {
@@ -397,7 +476,7 @@ public class AXmlResourceParser implements XmlPullParser {
     }
 
     public int getAttributeResourceValue(int index, int defaultValue) {
-        int offset = getAttributeOffset(index);
+        int offset = getAttributeIndex(index);
         int valueType = m_attributes[offset + ATTRIBUTE_IX_VALUE_TYPE];
         if (valueType == TypedValue.TYPE_REFERENCE) {
             return m_attributes[offset + ATTRIBUTE_IX_VALUE_DATA];
@@ -570,15 +649,14 @@ public class AXmlResourceParser implements XmlPullParser {
         return m_strings;
     }
 
-    private final int getAttributeOffset(int index) {
+    private final int getAttributeIndex(int index) {
         if (m_event != START_TAG) {
             throw new IndexOutOfBoundsException("Current event is not START_TAG.");
         }
-        int offset = index * 5;
-        if (offset >= m_attributes.length) {
+        if (index < 0 || index >= m_attributeCount) {
             throw new IndexOutOfBoundsException("Invalid attribute index (" + index + ").");
         }
-        return offset;
+        return index * ATTRIBUTE_LENGHT;
     }
 
     private final int findAttribute(String namespace, String attribute) {
@@ -592,7 +670,8 @@ public class AXmlResourceParser implements XmlPullParser {
         int uri = (namespace != null) ?
                 m_strings.find(namespace) :
                 -1;
-        for (int o = 0; o != m_attributes.length; ++o) {
+        int length = m_attributeCount * ATTRIBUTE_LENGHT;
+        for (int o = 0; o != length; o += ATTRIBUTE_LENGHT) {
             if (name == m_attributes[o + ATTRIBUTE_IX_NAME] &&
                     (uri == -1 || uri == m_attributes[o + ATTRIBUTE_IX_NAMESPACE_URI])) {
                 return o / ATTRIBUTE_LENGHT;
@@ -606,7 +685,7 @@ public class AXmlResourceParser implements XmlPullParser {
         m_lineNumber = -1;
         m_name = -1;
         m_namespaceUri = -1;
-        m_attributes = null;
+        m_attributeCount = 0;
         m_idAttribute = -1;
         m_classAttribute = -1;
         m_styleAttribute = -1;
@@ -617,10 +696,12 @@ public class AXmlResourceParser implements XmlPullParser {
 
         //m_strings 字符常量池  为null进行第一次读取
         if (m_strings == null) {
-            readCheckType(m_reader, CHUNK_AXML_FILE);
+            readCheckType(CHUNK_AXML_FILE);
             /*chunkSize*/
-            m_reader.skipInt();
-            m_strings = StringDecoder.read(m_reader);
+            skipInt();
+            m_strings = m_buffer != null ?
+                    StringDecoder.read(m_buffer) :
+                    StringDecoder.read(m_reader);
             m_namespaces.increaseDepth();
             m_operational = true;
         }
@@ -653,15 +734,16 @@ public class AXmlResourceParser implements XmlPullParser {
                 // Fake event, see CHUNK_XML_START_TAG handler.
                 chunkType = CHUNK_XML_START_TAG;
             } else {
-                chunkType = m_reader.readInt();
+                m_chunkOffset = getOffset();
+                chunkType = readInt();
             }
 
             if (chunkType == CHUNK_RESOURCEIDS) {
-                int chunkSize = m_reader.readInt();
+                int chunkSize = readInt();
                 if (chunkSize < 8 || (chunkSize % 4) != 0) {
                     throw new IOException("Invalid resource ids size (" + chunkSize + ").");
                 }
-                m_resourceIDs = m_reader.readIntArray(chunkSize / 4 - 2);
+                m_resourceIDs = readIntArray(null, chunkSize / 4 - 2);
                 continue;
             }
 
@@ -677,22 +759,22 @@ public class AXmlResourceParser implements XmlPullParser {
 
             // Common header.
             /*chunkSize*/
-            m_reader.skipInt();//头部的大小
-            int lineNumber = m_reader.readInt();//等于命名空间开始标签在原来文本格式的Xml文件出现的行号
+            skipInt();//头部的大小
+            int lineNumber = readInt();//等于命名空间开始标签在原来文本格式的Xml文件出现的行号
             /*0xFFFFFFFF*/
-            m_reader.skipInt();
+            skipInt();
 
             if (chunkType == CHUNK_XML_START_NAMESPACE ||
                     chunkType == CHUNK_XML_END_NAMESPACE) {
                 if (chunkType == CHUNK_XML_START_NAMESPACE) {
-                    int prefix = m_reader.readInt();//等于字符串“android”在字符串资源池中的索引
-                    int uri = m_reader.readInt();//等于字符串“http://schemas.android.com/apk/res/android”在字符串资源池中的索引
+                    int prefix = readInt();//等于字符串“android”在字符串资源池中的索引
+                    int uri = readInt();//等于字符串“http://schemas.android.com/apk/res/android”在字符串资源池中的索引
                     m_namespaces.push(prefix, uri);
                 } else {
                     /*prefix*/
-                    m_reader.skipInt();
+                    skipInt();
                     /*uri*/
-                    m_reader.skipInt();
+                    skipInt();
                     m_namespaces.pop();
                 }
                 continue;
@@ -701,25 +783,27 @@ public class AXmlResourceParser implements XmlPullParser {
             m_lineNumber = lineNumber;
 
             if (chunkType == CHUNK_XML_START_TAG) {
-                m_namespaceUri = m_reader.readInt();
-                m_name = m_reader.readInt();
+                m_namespaceUri = readInt();
+                m_name = readInt();
 
                 /*flags?*/
-                m_reader.skipInt();
+                skipInt();
 
-                int attributeCount = m_reader.readInt();
+                int attributeCount = readInt();
                 m_idAttribute = (attributeCount >>> 16) - 1;
 
                 attributeCount &= 0xFFFF;
 
-                m_classAttribute = m_reader.readInt();
+                m_classAttribute = readInt();
                 m_styleAttribute = (m_classAttribute >>> 16) - 1;
                 m_classAttribute = (m_classAttribute & 0xFFFF) - 1;
 
 
-                currentAttributeStart = m_reader.getOffset();
-                m_attributes = m_reader.readIntArray(attributeCount * ATTRIBUTE_LENGHT);
-                for (int i = ATTRIBUTE_IX_VALUE_TYPE; i < m_attributes.length; ) {
+                currentAttributeStart = getOffset();
+                int length = attributeCount * ATTRIBUTE_LENGHT;
+                m_attributes = readIntArray(m_attributes, length);
+                m_attributeCount = attributeCount;
+                for (int i = ATTRIBUTE_IX_VALUE_TYPE; i < length; ) {
                     m_attributes[i] = (m_attributes[i] >>> 24);
                     i += ATTRIBUTE_LENGHT;
                 }
@@ -729,26 +813,64 @@ public class AXmlResourceParser implements XmlPullParser {
             }
 
             if (chunkType == CHUNK_XML_END_TAG) {
-                m_namespaceUri = m_reader.readInt();
-                m_name = m_reader.readInt();
+                m_namespaceUri = readInt();
+                m_name = readInt();
                 m_event = END_TAG;
                 m_decreaseDepth = true;
                 break;
             }
 
             if (chunkType == CHUNK_XML_TEXT) {
-                m_name = m_reader.readInt();
+                m_name = readInt();
 
                 /*?*/
-                m_reader.skipInt();
+                skipInt();
                 /*?*/
-                m_reader.skipInt();
+                skipInt();
                 m_event = TEXT;
                 break;
             }
         }
     }
 
+    private int readInt() throws IOException {
+        return m_buffer != null ? m_buffer.getInt() : m_reader.readInt();
+    }
+
+    private void skipInt() throws IOException {
+        if (m_buffer != null) {
+            // lenient at the end like DataInputStream.skipBytes, files
+            // cut within the last chunk still parse
+            m_buffer.position(Math.min(m_buffer.position() + 4, m_buffer.limit()));
+        } else {
+            m_reader.skipInt();
+        }
+    }
+
+    /**
+     * Reads {@code length} ints into {@code array}, or into a new array
+     * if it's null or too short.
+     */
+    private int[] readIntArray(int[] array, int length) throws IOException {
+        if (array == null || array.length < length) {
+            array = new int[length];
+        }
+        if (m_buffer != null) {
+            for (int i = 0; i < length; i++) {
+                array[i] = m_buffer.getInt();
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                array[i] = m_reader.readInt();
+            }
+        }
+        return array;
+    }
+
+    private int getOffset() throws IOException {
+        return m_buffer != null ? m_buffer.position() : m_reader.getOffset();
+    }
+
     /**
      * Namespace stack, holds prefix+uri pairs, as well as
      * depth information.
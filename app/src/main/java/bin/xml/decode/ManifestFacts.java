@@ -0,0 +1,338 @@
+package bin.xml.decode;
+
+import android.util.TypedValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import bin.util.StreamUtil;
+import bin.zip.ZipEntry;
+import bin.zip.ZipFile;
+
+/**
+ * What the tools and the UI need to know about an APK, read from its
+ * AndroidManifest.xml in one pass of {@link AXmlResourceParser} without
+ * decoding the whole file.
+ * <p>
+ * Values given as resource references, like a label, are kept as their
+ * resource id for {@link bin.arsc.ArscTable} to resolve. Class names are
+ * as written in the manifest, possibly relative to the package.
+ * <p>
+ * Instances are immutable.
+ */
+public final class ManifestFacts {
+    public static final String FILE_NAME = "AndroidManifest.xml";
+
+    private static final int ATTR_LABEL = 0x01010001;
+    private static final int ATTR_ICON = 0x01010002;
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_DEBUGGABLE = 0x0101000f;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_VERSION_NAME = 0x0101021c;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+    private static final int ATTR_EXTRACT_NATIVE_LIBS = 0x010104ea;
+
+    private String packageName;
+    private int versionCode;
+    private String versionName;
+    private int minSdkVersion = 1;
+    private int targetSdkVersion = -1;
+    private boolean hasApplication;
+    private String applicationName;
+    private int applicationNameResource;
+    private String label;
+    private int labelResource;
+    private int iconResource;
+    private boolean debuggable;
+    private boolean extractNativeLibs = true;
+    private List<String> activities = new ArrayList<>();
+    private List<String> services = new ArrayList<>();
+    private List<String> receivers = new ArrayList<>();
+    private List<String> providers = new ArrayList<>();
+
+    private ManifestFacts() {
+    }
+
+    /**
+     * Reads the manifest from the buffer's position to its limit, the
+     * buffer itself is left untouched.
+     */
+    public static ManifestFacts read(ByteBuffer buffer) throws IOException {
+        ManifestFacts facts = new ManifestFacts();
+        AXmlResourceParser parser = new AXmlResourceParser();
+        parser.open(buffer);
+        try {
+            facts.parse(parser);
+        } finally {
+            parser.close();
+        }
+        return facts;
+    }
+
+    public static ManifestFacts read(byte[] data) throws IOException {
+        return read(ByteBuffer.wrap(data));
+    }
+
+    public static ManifestFacts read(InputStream is) throws IOException {
+        return read(StreamUtil.readBytes(is));
+    }
+
+    /**
+     * Reads the manifest of an APK.
+     */
+    public static ManifestFacts read(ZipFile apk) throws IOException {
+        ZipEntry entry = apk.getEntry(FILE_NAME);
+        if (entry == null)
+            throw new IOException("No " + FILE_NAME);
+        ByteBuffer mapped = apk.getMappedData(entry);
+        if (mapped != null)
+            return read(mapped);
+        try (InputStream is = apk.getInputStream(entry)) {
+            return read(StreamUtil.readBytes(is, entry.getSize()));
+        }
+    }
+
+    private void parse(AXmlResourceParser parser) throws IOException {
+        int depth = 0;
+        boolean inApplication = false;
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.END_TAG) {
+                if (--depth < 2)
+                    inApplication = false;
+                continue;
+            }
+            if (event != XmlPullParser.START_TAG)
+                continue;
+            depth++;
+            String name = parser.getName();
+            if (depth == 1) {
+                if (!"manifest".equals(name))
+                    throw new IOException("Not a manifest: " + name);
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    if (parser.getAttributeNameResource(i) == 0 && "package".equals(parser.getAttributeName(i)))
+                        packageName = getString(parser, i);
+                }
+                versionCode = getInt(parser, ATTR_VERSION_CODE, 0);
+                int i = findAttribute(parser, ATTR_VERSION_NAME);
+                if (i != -1)
+                    versionName = getString(parser, i);
+            } else if (depth == 2 && "uses-sdk".equals(name)) {
+                minSdkVersion = getInt(parser, ATTR_MIN_SDK_VERSION, minSdkVersion);
+                targetSdkVersion = getInt(parser, ATTR_TARGET_SDK_VERSION, targetSdkVersion);
+            } else if (depth == 2 && "application".equals(name) && !hasApplication) {
+                hasApplication = true;
+                inApplication = true;
+                int i = findAttribute(parser, ATTR_NAME);
+                if (i != -1) {
+                    if (parser.getAttributeValueType(i) == TypedValue.TYPE_REFERENCE)
+                        applicationNameResource = parser.getAttributeValueData(i);
+                    else
+                        applicationName = parser.getAttributeValue(i);
+                }
+                i = findAttribute(parser, ATTR_LABEL);
+                if (i != -1) {
+                    if (parser.getAttributeValueType(i) == TypedValue.TYPE_REFERENCE)
+                        labelResource = parser.getAttributeValueData(i);
+                    else
+                        label = getString(parser, i);
+                }
+                i = findAttribute(parser, ATTR_ICON);
+                if (i != -1 && parser.getAttributeValueType(i) == TypedValue.TYPE_REFERENCE)
+                    iconResource = parser.getAttributeValueData(i);
+                debuggable = getBoolean(parser, ATTR_DEBUGGABLE, debuggable);
+                extractNativeLibs = getBoolean(parser, ATTR_EXTRACT_NATIVE_LIBS, extractNativeLibs);
+            } else if (depth == 3 && inApplication) {
+                List<String> components;
+                if ("activity".equals(name) || "activity-alias".equals(name))
+                    components = activities;
+                else if ("service".equals(name))
+                    components = services;
+                else if ("receiver".equals(name))
+                    components = receivers;
+                else if ("provider".equals(name))
+                    components = providers;
+                else
+                    continue;
+                int i = findAttribute(parser, ATTR_NAME);
+                components.add(i != -1 ? getString(parser, i) : null);
+            }
+        }
+        if (packageName == null)
+            throw new IOException("No package name");
+        if (targetSdkVersion == -1)
+            targetSdkVersion = minSdkVersion;
+        activities = Collections.unmodifiableList(activities);
+        services = Collections.unmodifiableList(services);
+        receivers = Collections.unmodifiableList(receivers);
+        providers = Collections.unmodifiableList(providers);
+    }
+
+    private static int findAttribute(AXmlResourceParser parser, int resId) {
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            if (parser.getAttributeNameResource(i) == resId)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The string value of attribute {@code i}, null if it has another type.
+     */
+    private static String getString(AXmlResourceParser parser, int i) {
+        return parser.getAttributeValueType(i) == TypedValue.TYPE_STRING ? parser.getAttributeValue(i) : null;
+    }
+
+    private static int getInt(AXmlResourceParser parser, int resId, int defaultValue) {
+        int i = findAttribute(parser, resId);
+        return i != -1 ? parser.getAttributeIntValue(i, defaultValue) : defaultValue;
+    }
+
+    private static boolean getBoolean(AXmlResourceParser parser, int resId, boolean defaultValue) {
+        int i = findAttribute(parser, resId);
+        if (i == -1 || parser.getAttributeValueType(i) != TypedValue.TYPE_INT_BOOLEAN)
+            return defaultValue;
+        return parser.getAttributeValueData(i) != 0;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public int getVersionCode() {
+        return versionCode;
+    }
+
+    /**
+     * The version name, null if there's none or it is a reference.
+     */
+    public String getVersionName() {
+        return versionName;
+    }
+
+    public int getMinSdkVersion() {
+        return minSdkVersion;
+    }
+
+    /**
+     * The target SDK, which defaults to the min SDK.
+     */
+    public int getTargetSdkVersion() {
+        return targetSdkVersion;
+    }
+
+    /**
+     * Whether android:name is set on the application, as a string or as
+     * a reference.
+     */
+    public boolean hasApplicationName() {
+        return applicationName != null || applicationNameResource != 0;
+    }
+
+    /**
+     * The application class as written, null if not set or a reference.
+     */
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    /**
+     * Resource id the application class is given by, 0 if none.
+     */
+    public int getApplicationNameResource() {
+        return applicationNameResource;
+    }
+
+    /**
+     * The fully qualified application class, null if not set or a
+     * reference.
+     */
+    public String getApplicationClassName() {
+        return qualify(applicationName);
+    }
+
+    /**
+     * The label as a string, null if not set or a reference.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Resource id of the label, 0 if none.
+     */
+    public int getLabelResource() {
+        return labelResource;
+    }
+
+    /**
+     * Resource id of the icon, 0 if none.
+     */
+    public int getIconResource() {
+        return iconResource;
+    }
+
+    public boolean isDebuggable() {
+        return debuggable;
+    }
+
+    public boolean isExtractNativeLibs() {
+        return extractNativeLibs;
+    }
+
+    /**
+     * Names of the activities and activity aliases, in manifest order.
+     * Names are null where not given as a string.
+     */
+    public List<String> getActivities() {
+        return activities;
+    }
+
+    public List<String> getServices() {
+        return services;
+    }
+
+    public List<String> getReceivers() {
+        return receivers;
+    }
+
+    public List<String> getProviders() {
+        return providers;
+    }
+
+    /**
+     * Qualifies a class name relative to the package like the framework
+     * does, ".App" and "App" both become "package.App".
+     */
+    public String qualify(String className) {
+        return qualify(packageName, className);
+    }
+
+    /**
+     * Same as {@link #qualify(String)}, for callers that only have the
+     * package name.
+     */
+    public static String qualify(String packageName, String className) {
+        if (className == null || className.isEmpty())
+            return className;
+        if (className.charAt(0) == '.')
+            return packageName + className;
+        if (className.indexOf('.') == -1)
+            return packageName + '.' + className;
+        return className;
+    }
+
+    @Override
+    public String toString() {
+        return packageName + " v" + versionCode + " sdk " + minSdkVersion + "-" + targetSdkVersion
+                + ", application " + (applicationNameResource != 0 ?
+                String.format("@0x%08x", applicationNameResource) : getApplicationClassName())
+                + ", " + activities.size() + " activities, " + services.size() + " services, "
+                + receivers.size() + " receivers, " + providers.size() + " providers";
+    }
+}
@@ -0,0 +1,718 @@
+package bin.xml.edit;
+
+import android.util.TypedValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import bin.util.StreamUtil;
+import bin.util.StringDecoder;
+
+/**
+ * Edits a binary XML file, such as AndroidManifest.xml, in place.
+ * <p>
+ * Only what an edit touches is rewritten: new strings are encoded and
+ * appended behind the existing string pool data, which is copied as it
+ * is, and the chunks of untouched elements are written unchanged. The
+ * exception is an attribute name with a resource id no string has yet:
+ * it has to go to the end of the resource map, shifting the strings
+ * behind it, so every chunk is rewritten then.
+ * <p>
+ * String indices returned by {@link #appendString} and
+ * {@link #internString} shift when that happens, look them up again
+ * after inserting attributes.
+ */
+public class AXmlEditor {
+    public static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_CDATA_TYPE = 0x0104;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int SORTED_FLAG = 1;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int ATTR_EXT_SIZE = 20;
+    private static final int END_ELEMENT_EXT_SIZE = 8;
+    private static final int ATTRIBUTE_SIZE = 20;
+    private static final int MAX_UTF8_LENGTH = 0x7FFF;
+
+    private final byte[] data;
+    private final int headerSize;
+    private final int poolOffset;
+    private final int poolSize;
+    private final StringDecoder strings;
+    private final int stringCount;
+    private final boolean utf8;
+    private final int[] resourceIds;
+    private final int resourceMapOffset;
+    /**
+     * Attribute names inserted at the end of the resource map, and their ids.
+     */
+    private final List<String> insertedNames = new ArrayList<>();
+    private final List<Integer> insertedIds = new ArrayList<>();
+    private final List<String> appendedStrings = new ArrayList<>();
+    /**
+     * The chunks behind the string pool and resource map, in order.
+     */
+    private final List<Node> nodes = new ArrayList<>();
+
+    public AXmlEditor(byte[] data) throws IOException {
+        this.data = data;
+        if (data.length < CHUNK_HEADER_SIZE || getShort(data, 0) != RES_XML_TYPE)
+            throw new IOException("Not a binary XML file");
+        headerSize = getShort(data, 2);
+        int end = Math.min(getInt(data, 4), data.length);
+        int pool = -1;
+        int map = -1;
+        List<Element> open = new ArrayList<>();
+        for (int off = headerSize; off + CHUNK_HEADER_SIZE <= end; ) {
+            int type = getShort(data, off);
+            int size = getInt(data, off + 4);
+            if (size < CHUNK_HEADER_SIZE || size > end - off)
+                throw new IOException("Invalid chunk size " + size + " at " + off);
+            if (type == RES_STRING_POOL_TYPE && pool < 0) {
+                pool = off;
+            } else if (type == RES_XML_RESOURCE_MAP_TYPE && map < 0) {
+                map = off;
+            } else {
+                Node node = new Node(data, off, size);
+                nodes.add(node);
+                if (type == RES_XML_START_ELEMENT_TYPE) {
+                    node.element = new Element(node);
+                    open.add(node.element);
+                } else if (type == RES_XML_END_ELEMENT_TYPE) {
+                    if (open.isEmpty())
+                        throw new IOException("Unexpected end of element at " + off);
+                    open.remove(open.size() - 1).end = node;
+                }
+            }
+            off += size;
+        }
+        if (pool < 0)
+            throw new IOException("No string pool");
+        if (!open.isEmpty())
+            throw new IOException("Element " + open.get(open.size() - 1).getName() + " not closed");
+        poolOffset = pool;
+        poolSize = getInt(data, pool + 4);
+        strings = StringDecoder.read(ByteBuffer.wrap(data, pool, poolSize));
+        stringCount = strings.getSize();
+        utf8 = strings.isUtf8();
+        resourceMapOffset = map;
+        if (map < 0) {
+            resourceIds = new int[0];
+        } else {
+            int mapHeaderSize = getShort(data, map + 2);
+            resourceIds = new int[(getInt(data, map + 4) - mapHeaderSize) / 4];
+            for (int i = 0; i < resourceIds.length; i++)
+                resourceIds[i] = getInt(data, map + mapHeaderSize + i * 4);
+        }
+        if (resourceIds.length > stringCount)
+            throw new IOException("Resource map longer than string pool");
+    }
+
+    public static AXmlEditor read(InputStream is) throws IOException {
+        return new AXmlEditor(StreamUtil.readBytes(is));
+    }
+
+    public int getStringCount() {
+        return stringCount + insertedNames.size() + appendedStrings.size();
+    }
+
+    public String getString(int index) {
+        int mapEnd = resourceIds.length;
+        int inserted = insertedNames.size();
+        if (index < 0)
+            return null;
+        if (index < mapEnd)
+            return strings.getString(index);
+        if (index < mapEnd + inserted)
+            return insertedNames.get(index - mapEnd);
+        if (index < stringCount + inserted)
+            return strings.getString(index - inserted);
+        index -= stringCount + inserted;
+        return index < appendedStrings.size() ? appendedStrings.get(index) : null;
+    }
+
+    /**
+     * Index of the first string equal to {@code s}, -1 if there's none.
+     */
+    public int findString(String s) {
+        int i = strings.find(s);
+        if (i >= 0)
+            return i < resourceIds.length ? i : i + insertedNames.size();
+        i = insertedNames.indexOf(s);
+        if (i >= 0)
+            return resourceIds.length + i;
+        i = appendedStrings.indexOf(s);
+        if (i >= 0)
+            return stringCount + insertedNames.size() + i;
+        return -1;
+    }
+
+    /**
+     * Adds {@code s} to the end of the string pool, even if it's there
+     * already.
+     *
+     * @return the index of the new string
+     */
+    public int appendString(String s) {
+        if (utf8 && (s.length() > MAX_UTF8_LENGTH
+                || s.getBytes(StandardCharsets.UTF_8).length > MAX_UTF8_LENGTH))
+            throw new IllegalArgumentException("String too long for the pool: " + s.length());
+        appendedStrings.add(s);
+        return getStringCount() - 1;
+    }
+
+    /**
+     * Index of {@code s}, appended if not in the pool yet.
+     */
+    public int internString(String s) {
+        int i = findString(s);
+        return i >= 0 ? i : appendString(s);
+    }
+
+    /**
+     * Resource id of the attribute name at {@code index}, 0 if it has none.
+     */
+    public int getResourceId(int index) {
+        if (index < 0)
+            return 0;
+        if (index < resourceIds.length)
+            return resourceIds[index];
+        index -= resourceIds.length;
+        return index < insertedIds.size() ? insertedIds.get(index) : 0;
+    }
+
+    /**
+     * Index of the attribute name with resource id {@code id}, -1 if
+     * there's none.
+     */
+    public int findResourceId(int id) {
+        for (int i = 0; i < resourceIds.length; i++) {
+            if (resourceIds[i] == id)
+                return i;
+        }
+        int i = insertedIds.indexOf(id);
+        return i >= 0 ? resourceIds.length + i : -1;
+    }
+
+    /**
+     * All elements in document order, including added ones.
+     */
+    public List<Element> getElements() {
+        List<Element> elements = new ArrayList<>();
+        for (Node node : nodes) {
+            if (node.element != null)
+                elements.add(node.element);
+        }
+        return elements;
+    }
+
+    /**
+     * The first element named {@code name}, null if there's none.
+     */
+    public Element findElement(String name) {
+        for (Node node : nodes) {
+            if (node.element != null && name.equals(node.element.getName()))
+                return node.element;
+        }
+        return null;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        out.write(toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        int added = insertedNames.size() + appendedStrings.size();
+        byte[][] encoded = new byte[added][];
+        int newDataSize = 0;
+        for (int i = 0; i < added; i++) {
+            encoded[i] = encode(i < insertedNames.size() ? insertedNames.get(i)
+                    : appendedStrings.get(i - insertedNames.size()));
+            newDataSize += encoded[i].length;
+        }
+        int stringsStart = getInt(data, poolOffset + 20);
+        int stylesStart = getInt(data, poolOffset + 24);
+        int dataSize = (stylesStart != 0 ? stylesStart : poolSize) - stringsStart;
+        int stylesSize = stylesStart != 0 ? poolSize - stylesStart : 0;
+        int padding = (4 - (dataSize + newDataSize) % 4) % 4;
+        int newPoolSize = added == 0 ? poolSize
+                : poolSize + added * 4 + newDataSize + padding;
+        int mapCount = resourceIds.length + insertedIds.size();
+        int mapSize = resourceMapOffset < 0 && mapCount == 0 ? 0
+                : insertedIds.isEmpty() ? getInt(data, resourceMapOffset + 4)
+                : CHUNK_HEADER_SIZE + mapCount * 4;
+        int size = headerSize + newPoolSize + mapSize;
+        for (Node node : nodes)
+            size += node.size;
+
+        byte[] out = new byte[size];
+        System.arraycopy(data, 0, out, 0, headerSize);
+        putInt(out, 4, size);
+        int off = headerSize;
+
+        // the string pool, extended with the new strings
+        if (added == 0) {
+            System.arraycopy(data, poolOffset, out, off, poolSize);
+        } else {
+            int poolHeaderSize = getShort(data, poolOffset + 2);
+            int newStringsStart = stringsStart + added * 4;
+            System.arraycopy(data, poolOffset, out, off, poolHeaderSize);
+            putInt(out, off + 4, newPoolSize);
+            putInt(out, off + 8, stringCount + added);
+            putInt(out, off + 16, getInt(data, poolOffset + 16) & ~SORTED_FLAG);
+            putInt(out, off + 20, newStringsStart);
+            if (stylesStart != 0)
+                putInt(out, off + 24, newStringsStart + dataSize + newDataSize + padding);
+            int src = poolOffset + poolHeaderSize;
+            int dst = off + poolHeaderSize;
+            // offsets up to the end of the resource map, the inserted
+            // names, the remaining offsets and the appended strings
+            int mapEnd = resourceIds.length;
+            System.arraycopy(data, src, out, dst, mapEnd * 4);
+            dst += mapEnd * 4;
+            int newOffset = dataSize;
+            for (int i = 0; i < insertedNames.size(); i++) {
+                putInt(out, dst, newOffset);
+                newOffset += encoded[i].length;
+                dst += 4;
+            }
+            System.arraycopy(data, src + mapEnd * 4, out, dst, (stringCount - mapEnd) * 4);
+            dst += (stringCount - mapEnd) * 4;
+            for (int i = insertedNames.size(); i < added; i++) {
+                putInt(out, dst, newOffset);
+                newOffset += encoded[i].length;
+                dst += 4;
+            }
+            // style offsets and the string data as they are
+            src += stringCount * 4;
+            int length = stringsStart + dataSize - (poolHeaderSize + stringCount * 4);
+            System.arraycopy(data, src, out, dst, length);
+            dst += length;
+            for (byte[] b : encoded) {
+                System.arraycopy(b, 0, out, dst, b.length);
+                dst += b.length;
+            }
+            dst += padding;
+            System.arraycopy(data, poolOffset + poolSize - stylesSize, out, dst, stylesSize);
+        }
+        off += newPoolSize;
+
+        if (mapSize != 0) {
+            if (insertedIds.isEmpty()) {
+                System.arraycopy(data, resourceMapOffset, out, off, mapSize);
+            } else {
+                putShort(out, off, RES_XML_RESOURCE_MAP_TYPE);
+                putShort(out, off + 2, CHUNK_HEADER_SIZE);
+                putInt(out, off + 4, mapSize);
+                int dst = off + CHUNK_HEADER_SIZE;
+                for (int id : resourceIds) {
+                    putInt(out, dst, id);
+                    dst += 4;
+                }
+                for (int id : insertedIds) {
+                    putInt(out, dst, id);
+                    dst += 4;
+                }
+            }
+            off += mapSize;
+        }
+
+        for (Node node : nodes) {
+            System.arraycopy(node.buf, node.off, out, off, node.size);
+            off += node.size;
+        }
+        return out;
+    }
+
+    private byte[] encode(String s) {
+        if (utf8) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            byte[] charLength = getUtf8Length(s.length());
+            byte[] byteLength = getUtf8Length(bytes.length);
+            byte[] b = new byte[charLength.length + byteLength.length + bytes.length + 1];
+            System.arraycopy(charLength, 0, b, 0, charLength.length);
+            System.arraycopy(byteLength, 0, b, charLength.length, byteLength.length);
+            System.arraycopy(bytes, 0, b, charLength.length + byteLength.length, bytes.length);
+            return b;
+        }
+        int length = s.length();
+        int off = length > 0x7FFF ? 4 : 2;
+        byte[] b = new byte[off + length * 2 + 2];
+        if (off == 4) {
+            putShort(b, 0, 0x8000 | length >>> 16);
+            putShort(b, 2, length & 0xFFFF);
+        } else {
+            putShort(b, 0, length);
+        }
+        for (int i = 0; i < length; i++)
+            putShort(b, off + i * 2, s.charAt(i));
+        return b;
+    }
+
+    private static byte[] getUtf8Length(int length) {
+        if (length < 0x80)
+            return new byte[]{(byte) length};
+        return new byte[]{(byte) (length >>> 8 | 0x80), (byte) length};
+    }
+
+    /**
+     * Index of an attribute name with {@code resourceId}, inserted at the
+     * end of the resource map if there's none yet.
+     */
+    private int getAttributeNameIndex(String name, int resourceId) throws IOException {
+        if (resourceId == 0) {
+            // names within the resource map would get its ids
+            int i = findString(name);
+            return i >= resourceIds.length + insertedIds.size() ? i : appendString(name);
+        }
+        int i = findResourceId(resourceId);
+        if (i >= 0)
+            return i;
+        if (getInt(data, poolOffset + 12) != 0)
+            throw new IOException("Can't add attribute " + name + " to a string pool with styles");
+        int index = resourceIds.length + insertedIds.size();
+        for (Node node : nodes)
+            node.shiftStrings(index);
+        insertedNames.add(name);
+        insertedIds.add(resourceId);
+        return index;
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+                | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+
+    private static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * A chunk, in the original data until it's changed.
+     */
+    private static final class Node {
+        byte[] buf;
+        int off;
+        int size;
+        Element element;
+
+        Node(byte[] buf, int off, int size) {
+            this.buf = buf;
+            this.off = off;
+            this.size = size;
+        }
+
+        int getType() {
+            return getShort(buf, off);
+        }
+
+        int getExtOffset() {
+            return off + getShort(buf, off + 2);
+        }
+
+        /**
+         * Copies the chunk out of the original data before changing it.
+         */
+        void own(byte[] original) {
+            if (buf == original) {
+                buf = Arrays.copyOfRange(buf, off, off + size);
+                off = 0;
+            }
+        }
+
+        void replace(byte[] b) {
+            buf = b;
+            off = 0;
+            size = b.length;
+        }
+
+        /**
+         * Adds one to the string indices from {@code from} on.
+         */
+        void shiftStrings(int from) {
+            int type = getType();
+            if (type < RES_XML_START_NAMESPACE_TYPE || type > RES_XML_CDATA_TYPE)
+                return;
+            buf = Arrays.copyOfRange(buf, off, off + size);
+            off = 0;
+            int ext = getExtOffset();
+            shift(off + 12, from); // comment
+            shift(ext, from);
+            if (type == RES_XML_CDATA_TYPE) {
+                if (buf[ext + 7] == TypedValue.TYPE_STRING)
+                    shift(ext + 8, from);
+                return;
+            }
+            shift(ext + 4, from);
+            if (type == RES_XML_START_ELEMENT_TYPE) {
+                int start = ext + getShort(buf, ext + 8);
+                int attributeSize = getShort(buf, ext + 10);
+                int count = getShort(buf, ext + 12);
+                for (int i = 0; i < count; i++) {
+                    int a = start + i * attributeSize;
+                    shift(a, from);
+                    shift(a + 4, from);
+                    shift(a + 8, from);
+                    if (buf[a + 15] == TypedValue.TYPE_STRING)
+                        shift(a + 16, from);
+                }
+            }
+        }
+
+        private void shift(int pos, int from) {
+            int index = getInt(buf, pos);
+            if (index >= from)
+                putInt(buf, pos, index + 1);
+        }
+    }
+
+    public class Element {
+        private final Node start;
+        private Node end;
+
+        private Element(Node start) {
+            this.start = start;
+        }
+
+        public String getName() {
+            return getString(getInt(start.buf, start.getExtOffset() + 4));
+        }
+
+        public String getNamespace() {
+            return getString(getInt(start.buf, start.getExtOffset()));
+        }
+
+        public int getLineNumber() {
+            return getInt(start.buf, start.off + 8);
+        }
+
+        public int getAttributeCount() {
+            return getShort(start.buf, start.getExtOffset() + 12);
+        }
+
+        public String getAttributeNamespace(int index) {
+            return getString(getInt(start.buf, getAttributeOffset(index)));
+        }
+
+        public String getAttributeName(int index) {
+            return getString(getInt(start.buf, getAttributeOffset(index) + 4));
+        }
+
+        /**
+         * Resource id of the attribute's name, 0 if it has none.
+         */
+        public int getAttributeNameResource(int index) {
+            return getResourceId(getInt(start.buf, getAttributeOffset(index) + 4));
+        }
+
+        /**
+         * One of the {@link TypedValue} {@code TYPE_} constants.
+         */
+        public int getAttributeValueType(int index) {
+            return start.buf[getAttributeOffset(index) + 15] & 0xFF;
+        }
+
+        public int getAttributeValueData(int index) {
+            return getInt(start.buf, getAttributeOffset(index) + 16);
+        }
+
+        /**
+         * The value of a string attribute, "" for other types.
+         */
+        public String getAttributeValue(int index) {
+            if (getAttributeValueType(index) != TypedValue.TYPE_STRING)
+                return "";
+            return getString(getInt(start.buf, getAttributeOffset(index) + 8));
+        }
+
+        public int getAttributeIntValue(int index, int defaultValue) {
+            int type = getAttributeValueType(index);
+            if (type >= TypedValue.TYPE_FIRST_INT && type <= TypedValue.TYPE_LAST_INT)
+                return getAttributeValueData(index);
+            return defaultValue;
+        }
+
+        /**
+         * Index of the attribute whose name has {@code resourceId}, -1 if
+         * there's none.
+         */
+        public int findAttribute(int resourceId) {
+            int count = getAttributeCount();
+            for (int i = 0; i < count; i++) {
+                if (getAttributeNameResource(i) == resourceId)
+                    return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Index of the attribute named {@code name} in any namespace, -1
+         * if there's none.
+         */
+        public int findAttribute(String name) {
+            int count = getAttributeCount();
+            for (int i = 0; i < count; i++) {
+                if (name.equals(getAttributeName(i)))
+                    return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Sets a non-string value, one of the {@link TypedValue}
+         * {@code TYPE_} constants and its data.
+         */
+        public void setAttribute(int index, int type, int data) {
+            setAttribute(index, -1, type, data);
+        }
+
+        public void setAttributeValue(int index, String value) {
+            int s = internString(value);
+            setAttribute(index, s, TypedValue.TYPE_STRING, s);
+        }
+
+        private void setAttribute(int index, int rawValue, int type, int value) {
+            start.own(data);
+            int a = getAttributeOffset(index);
+            putValue(start.buf, a, rawValue, type, value);
+        }
+
+        /**
+         * Inserts an attribute before the first one with a higher name
+         * resource id, or last.
+         *
+         * @param namespace  the namespace URI, null for none
+         * @param resourceId the name's resource id, 0 for none
+         * @return the index of the new attribute
+         * @throws IOException if the name needs a resource id and the
+         *                     string pool has styles
+         */
+        public int insertAttribute(String namespace, String name, int resourceId, int type, int data)
+                throws IOException {
+            return insertAttribute(namespace, name, resourceId, null, type, data);
+        }
+
+        public int insertAttribute(String namespace, String name, int resourceId, String value)
+                throws IOException {
+            return insertAttribute(namespace, name, resourceId, value, TypedValue.TYPE_STRING, 0);
+        }
+
+        private int insertAttribute(String namespace, String name, int resourceId, String value,
+                                    int type, int data) throws IOException {
+            // first, it may shift the other strings
+            int nameIndex = getAttributeNameIndex(name, resourceId);
+            int namespaceIndex = namespace != null ? internString(namespace) : -1;
+            int rawValue = -1;
+            if (value != null) {
+                rawValue = internString(value);
+                data = rawValue;
+            }
+            int count = getAttributeCount();
+            int index = count;
+            if (resourceId != 0) {
+                for (int i = 0; i < count; i++) {
+                    if (getAttributeNameResource(i) > resourceId) {
+                        index = i;
+                        break;
+                    }
+                }
+            }
+
+            byte[] old = start.buf;
+            int ext = start.getExtOffset() - start.off;
+            int attributeSize = Math.max(getShort(old, start.off + ext + 10), ATTRIBUTE_SIZE);
+            int pos = ext + getShort(old, start.off + ext + 8) + index * attributeSize;
+            byte[] b = new byte[start.size + attributeSize];
+            System.arraycopy(old, start.off, b, 0, pos);
+            System.arraycopy(old, start.off + pos, b, pos + attributeSize, start.size - pos);
+            putInt(b, pos, namespaceIndex);
+            putInt(b, pos + 4, nameIndex);
+            putValue(b, pos, rawValue, type, data);
+            putInt(b, 4, b.length);
+            putShort(b, ext + 10, attributeSize);
+            putShort(b, ext + 12, count + 1);
+            // 1-based indices of the id, class and style attributes
+            for (int i = ext + 14; i <= ext + 18; i += 2) {
+                int special = getShort(b, i);
+                if (special > index)
+                    putShort(b, i, special + 1);
+            }
+            start.replace(b);
+            return index;
+        }
+
+        /**
+         * Adds an empty element as the last child of this one.
+         */
+        public Element addElement(String name) {
+            int nameIndex = internString(name);
+            int line = getLineNumber();
+            byte[] s = new byte[NODE_HEADER_SIZE + ATTR_EXT_SIZE];
+            putNodeHeader(s, RES_XML_START_ELEMENT_TYPE, line);
+            putInt(s, NODE_HEADER_SIZE, -1);
+            putInt(s, NODE_HEADER_SIZE + 4, nameIndex);
+            putShort(s, NODE_HEADER_SIZE + 8, ATTR_EXT_SIZE);
+            putShort(s, NODE_HEADER_SIZE + 10, ATTRIBUTE_SIZE);
+            byte[] e = new byte[NODE_HEADER_SIZE + END_ELEMENT_EXT_SIZE];
+            putNodeHeader(e, RES_XML_END_ELEMENT_TYPE, line);
+            putInt(e, NODE_HEADER_SIZE, -1);
+            putInt(e, NODE_HEADER_SIZE + 4, nameIndex);
+
+            Node startNode = new Node(s, 0, s.length);
+            Element element = new Element(startNode);
+            startNode.element = element;
+            element.end = new Node(e, 0, e.length);
+            int i = nodes.indexOf(end);
+            nodes.add(i, element.end);
+            nodes.add(i, startNode);
+            return element;
+        }
+
+        private int getAttributeOffset(int index) {
+            if (index < 0 || index >= getAttributeCount())
+                throw new IndexOutOfBoundsException("Attribute " + index + " of " + getAttributeCount());
+            int ext = start.getExtOffset();
+            return ext + getShort(start.buf, ext + 8) + index * getShort(start.buf, ext + 10);
+        }
+    }
+
+    private static void putValue(byte[] b, int a, int rawValue, int type, int data) {
+        putInt(b, a + 8, rawValue);
+        putShort(b, a + 12, 8);
+        b[a + 14] = 0;
+        b[a + 15] = (byte) type;
+        putInt(b, a + 16, data);
+    }
+
+    private static void putNodeHeader(byte[] b, int type, int line) {
+        putShort(b, 0, type);
+        putShort(b, 2, NODE_HEADER_SIZE);
+        putInt(b, 4, b.length);
+        putInt(b, 8, line);
+        putInt(b, 12, -1);
+    }
+}
@@ -0,0 +1,155 @@
+package bin.zip;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * A {@link ZipOutputStream.CompressionPolicy} for APK content.
+ * <p>
+ * Formats that are already compressed (images, audio, video, archives)
+ * are stored by their extension or, failing that, by their magic number.
+ * Other entries are sampled: data with close to 8 bits of entropy per
+ * byte is stored, fairly dense data gets a fast level and the rest the
+ * default level. Overrides for exact names, directories and extensions
+ * win over all of that.
+ */
+public class AdaptiveCompressionPolicy implements ZipOutputStream.CompressionPolicy {
+    private static final String[] STORED_EXTENSIONS = {
+            "png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "m4a", "aac", "flac", "mp4", "m4v", "3gp",
+            "webm", "mkv", "zip", "jar", "apk", "gz", "xz", "bz2", "7z", "br", "zst"
+    };
+    private static final byte[][] COMPRESSED_MAGICS = {
+            {(byte) 0x89, 'P', 'N', 'G'},
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},
+            {'G', 'I', 'F', '8'},
+            {'O', 'g', 'g', 'S'},
+            {'P', 'K', 3, 4},
+            {0x1f, (byte) 0x8b},
+            {(byte) 0xfd, '7', 'z', 'X', 'Z'},
+            {'B', 'Z', 'h'},
+            {'7', 'z', (byte) 0xbc, (byte) 0xaf},
+            {'I', 'D', '3'},
+    };
+
+    private final Map<String, Integer> names = new HashMap<>();
+    private final List<String> directories = new ArrayList<>();
+    private final List<Integer> directoryLevels = new ArrayList<>();
+    private final Map<String, Integer> extensions = new HashMap<>();
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private double storeEntropy = 7.5;
+    private double denseEntropy = 7.0;
+
+    public AdaptiveCompressionPolicy() {
+        for (String extension : STORED_EXTENSIONS) {
+            extensions.put(extension, 0);
+        }
+        // mapped by the platform when it is stored, required for targetSdk 30+
+        names.put("resources.arsc", 0);
+    }
+
+    /**
+     * Sets the level of matching entries, 0 to store them.
+     *
+     * @param pattern an exact entry name, a directory ending with
+     *                {@code /} or an extension like {@code *.bin}
+     */
+    public AdaptiveCompressionPolicy setLevel(String pattern, int level) {
+        if (pattern.startsWith("*.")) {
+            extensions.put(pattern.substring(2).toLowerCase(Locale.ROOT), level);
+        } else if (pattern.endsWith("/")) {
+            directories.add(pattern);
+            directoryLevels.add(level);
+        } else {
+            names.put(pattern, level);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the level of compressible entries, defaults to
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public AdaptiveCompressionPolicy setDefaultLevel(int level) {
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Sets the entropy in bits per byte from which entries are deflated
+     * with {@link Deflater#BEST_SPEED} (default 7.0) and stored
+     * (default 7.5).
+     */
+    public AdaptiveCompressionPolicy setEntropyThresholds(double denseEntropy, double storeEntropy) {
+        this.denseEntropy = denseEntropy;
+        this.storeEntropy = storeEntropy;
+        return this;
+    }
+
+    @Override
+    public int getLevel(ZipEntry ze) {
+        String name = ze.getName();
+        Integer level = names.get(name);
+        if (level != null)
+            return level;
+        // the last matching directory wins, so later overrides refine earlier ones
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            if (name.startsWith(directories.get(i)))
+                return directoryLevels.get(i);
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot > name.lastIndexOf('/')) {
+            level = extensions.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (level != null)
+                return level;
+        }
+        return SAMPLE;
+    }
+
+    @Override
+    public int getLevel(ZipEntry ze, byte[] sample, int length) {
+        for (byte[] magic : COMPRESSED_MAGICS) {
+            if (startsWith(sample, length, magic))
+                return 0;
+        }
+        double entropy = entropy(sample, length);
+        if (entropy >= storeEntropy)
+            return 0;
+        if (entropy >= denseEntropy)
+            return Deflater.BEST_SPEED;
+        return level;
+    }
+
+    /**
+     * Shannon entropy of the byte histogram, in bits per byte.
+     */
+    static double entropy(byte[] b, int length) {
+        if (length == 0)
+            return 0;
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[b[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    private static boolean startsWith(byte[] b, int length, byte[] prefix) {
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,21 @@
+package bin.zip;
+
+import java.util.zip.ZipException;
+
+/**
+ * Thrown by {@link ZipOutputStream} when an entry or the archive needs
+ * ZIP64 extensions that can't or mustn't be written.
+ *
+ * @see ZipOutputStream#setZip64Mode
+ */
+public class Zip64RequiredException extends ZipException {
+    private static final long serialVersionUID = 20161219L;
+
+    public Zip64RequiredException(String reason) {
+        super(reason);
+    }
+
+    static String getEntryTooBigMessage(ZipEntry ze) {
+        return ze.getName() + "'s size exceeds the limit of 4GByte.";
+    }
+}
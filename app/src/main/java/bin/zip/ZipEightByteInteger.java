@@ -0,0 +1,146 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package bin.zip;
+
+/**
+ * Utility class that represents an eight byte integer with conversion
+ * rules for the little endian byte order of ZIP files, as used by
+ * ZIP64 records.
+ * <p>
+ * <p>Values are kept in a Java long, so unsigned values above
+ * {@link Long#MAX_VALUE} are not supported; no archive gets that
+ * large.</p>
+ */
+public final class ZipEightByteInteger implements Cloneable {
+
+    private static final int DWORD = 8;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int BYTE_SHIFT = 8;
+
+    private final long value;
+
+    /**
+     * Create instance from a number.
+     *
+     * @param value the long to store as a ZipEightByteInteger
+     */
+    public ZipEightByteInteger(long value) {
+        this.value = value;
+    }
+
+    /**
+     * Create instance from the eight bytes starting at offset.
+     *
+     * @param bytes  the bytes to store as a ZipEightByteInteger
+     * @param offset the offset to start
+     */
+    public ZipEightByteInteger(byte[] bytes, int offset) {
+        value = getValue(bytes, offset);
+    }
+
+    /**
+     * put the value as eight bytes in little endian byte order.
+     *
+     * @param value  the Java long to convert to bytes
+     * @param buf    the output buffer
+     * @param offset The offset within the output buffer of the first byte to be written.
+     *               must be non-negative and no larger than <tt>buf.length-8</tt>
+     */
+    public static void putLong(long value, byte[] buf, int offset) {
+        for (int i = 0; i < DWORD; i++) {
+            buf[offset + i] = (byte) (value >>> (i * BYTE_SHIFT));
+        }
+    }
+
+    /**
+     * Get value as eight bytes in little endian byte order.
+     *
+     * @param value the value to convert
+     * @return value as eight bytes in little endian byte order
+     */
+    public static byte[] getBytes(long value) {
+        byte[] result = new byte[DWORD];
+        putLong(value, result, 0);
+        return result;
+    }
+
+    /**
+     * Helper method to get the value as a Java long from eight bytes starting at given array offset
+     *
+     * @param bytes  the array of bytes
+     * @param offset the offset to start
+     * @return the correspondanding Java long value
+     */
+    public static long getValue(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = DWORD - 1; i >= 0; i--) {
+            value = value << BYTE_SHIFT | (bytes[offset + i] & BYTE_MASK);
+        }
+        return value;
+    }
+
+    /**
+     * Get value as eight bytes in little endian byte order.
+     *
+     * @return value as eight bytes in little endian order
+     */
+    public byte[] getBytes() {
+        return getBytes(value);
+    }
+
+    /**
+     * Get value as Java long.
+     *
+     * @return value as a long
+     */
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * Override to make two instances with same value equal.
+     *
+     * @param o an object to compare
+     * @return true if the objects are equal
+     */
+    public boolean equals(Object o) {
+        if (!(o instanceof ZipEightByteInteger)) {
+            return false;
+        }
+        return value == ((ZipEightByteInteger) o).getValue();
+    }
+
+    /**
+     * Override to make two instances with same value equal.
+     *
+     * @return the value stored in the ZipEightByteInteger
+     */
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    public Object clone() {
+        try {
+            return super.clone();
+        } catch (CloneNotSupportedException cnfe) {
+            // impossible
+            throw new RuntimeException(cnfe);
+        }
+    }
+}
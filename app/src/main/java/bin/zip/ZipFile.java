@@ -19,19 +19,22 @@
 package bin.zip;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.zip.CRC32;
-import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipException;
 
@@ -40,6 +43,7 @@ import bin.zip.encoding.ZipEncodingHelper;
 import bin.zip.extrafield.AbstractUnicodeExtraField;
 import bin.zip.extrafield.UnicodeCommentExtraField;
 import bin.zip.extrafield.UnicodePathExtraField;
+import bin.zip.extrafield.Zip64ExtendedInformationExtraField;
 
 /**
  * Replacement for <code>java.util.ZipFile</code>.
@@ -56,6 +60,20 @@ import bin.zip.extrafield.UnicodePathExtraField;
  * <code>java.util.ZipFile</code>, it uses RandomAccessFile under the
  * covers and supports compressed and uncompressed entries.</p>
  * <p>
+ * <p>Entry data is read with positional reads from a read-only mapping of
+ * the archive (or from its FileChannel if it cannot be mapped), so any
+ * number of entry streams can be read concurrently without locking or
+ * seeking.</p>
+ * <p>
+ * <p>Opening an archive reads its central directory in one go and only
+ * indexes it; ZipEntry instances are created when they are first
+ * asked for and entries are enumerated in central directory order.</p>
+ * <p>
+ * <p>ZIP64 archives are supported: the central directory is located
+ * through the ZIP64 end of central directory record if there is one,
+ * and sizes and offsets that don't fit into 32 bits are taken from
+ * the entries' ZIP64 extended information extra fields.</p>
+ * <p>
  * <p>The method signatures mimic the ones of
  * <code>java.util.zip.ZipFile</code>, with a couple of exceptions:
  * <p>
@@ -68,15 +86,11 @@ import bin.zip.extrafield.UnicodePathExtraField;
  * </ul>
  */
 public class ZipFile implements Closeable {
-    private static final int HASH_SIZE = 509;
     private static final int SHORT = 2;
     private static final int WORD = 4;
+    private static final int DWORD = 8;
     private static final int NIBLET_MASK = 0x0f;
     private static final int BYTE_SHIFT = 8;
-    private static final int POS_0 = 0;
-    private static final int POS_1 = 1;
-    private static final int POS_2 = 2;
-    private static final int POS_3 = 3;
     private static final int CFH_LEN =
             /* version made by                 */ SHORT
             /* version needed to extract       */ + SHORT
@@ -120,11 +134,47 @@ public class ZipFile implements Closeable {
             /* total number of entries in      */
             /* the central dir                 */ + SHORT
             /* size of the central directory   */ + WORD;
+    /**
+     * Length of the &quot;ZIP64 end of central directory locator&quot;,
+     * which immediately precedes the &quot;End of central dir record&quot;
+     * of a ZIP64 archive.
+     */
+    private static final int ZIP64_EOCDL_LENGTH =
+            /* zip64 end of central dir locator sig */ WORD
+            /* number of the disk with the start    */
+            /* of the zip64 end of central dir      */ + WORD
+            /* relative offset of the zip64         */
+            /* end of central directory record      */ + DWORD
+            /* total number of disks                */ + WORD;
+    /**
+     * Offset of the ZIP64 end of central directory record's offset in
+     * the locator.
+     */
+    private static final int ZIP64_EOCDL_LOCATOR_OFFSET =
+            /* zip64 end of central dir locator sig */ WORD
+            /* number of the disk with the start    */
+            /* of the zip64 end of central dir      */ + WORD;
+    private static final int ZIP64_EOCD_LENGTH =
+            /* zip64 end of central dir signature   */ WORD
+            /* size of zip64 end of central         */
+            /* directory record                     */ + DWORD
+            /* version made by                      */ + SHORT
+            /* version needed to extract            */ + SHORT
+            /* number of this disk                  */ + WORD
+            /* number of the disk with the          */
+            /* start of the central directory       */ + WORD
+            /* total number of entries in the       */
+            /* central directory on this disk       */ + DWORD
+            /* total number of entries in the       */
+            /* central directory                    */ + DWORD
+            /* size of the central directory        */ + DWORD
+            /* offset of start of central directory */ + DWORD;
+    private static final int ZIP64_EOCD_CFD_LOCATOR_OFFSET = ZIP64_EOCD_LENGTH - DWORD;
     /**
      * Number of bytes in local file header up to the &quot;length of
      * filename&quot; entry.
      */
-    private static final long LFH_OFFSET_FOR_FILENAME_LENGTH =
+    private static final int LFH_OFFSET_FOR_FILENAME_LENGTH =
             /* local file header signature     */ WORD
             /* version needed to extract       */ + SHORT
             /* general purpose bit flag        */ + SHORT
@@ -135,14 +185,59 @@ public class ZipFile implements Closeable {
             /* compressed size                 */ + WORD
             /* uncompressed size               */ + WORD;
     /**
-     * Maps ZipEntrys to Longs, recording the offsets of the local
-     * file headers.
+     * Number of bytes in a central file header up to the &quot;length
+     * of filename&quot; entry.
+     */
+    private static final int CFH_OFFSET_FOR_FILENAME_LENGTH =
+            /* central file header signature   */ WORD
+            /* version made by                 */ + SHORT
+            /* version needed to extract       */ + SHORT
+            /* general purpose bit flag        */ + SHORT
+            /* compression method              */ + SHORT
+            /* last mod file time              */ + SHORT
+            /* last mod file date              */ + SHORT
+            /* crc-32                          */ + WORD
+            /* compressed size                 */ + WORD
+            /* uncompressed size               */ + WORD;
+    private static final int CFH_OFFSET_FOR_FLAGS = WORD + SHORT + SHORT;
+    private static final int CFH_OFFSET_FOR_COMPRESSED_SIZE = CFH_OFFSET_FOR_FILENAME_LENGTH - WORD - WORD;
+    private static final int CFH_OFFSET_FOR_SIZE = CFH_OFFSET_FOR_FILENAME_LENGTH - WORD;
+    private static final int CFH_OFFSET_FOR_DISK_NUMBER = CFH_OFFSET_FOR_FILENAME_LENGTH + SHORT + SHORT + SHORT;
+    private static final int CFH_OFFSET_FOR_LFH_OFFSET = WORD + CFH_LEN - WORD;
+    /**
+     * The central directory as read from the archive; ZipEntrys are
+     * parsed from it on demand.
+     */
+    private byte[] centralDirectory;
+    /**
+     * Offset of each entry's record in {@link #centralDirectory}, in
+     * central directory order.
+     */
+    private int[] recordOffsets;
+    /**
+     * Offset of each entry's local file header.
      */
-    private final Map<ZipEntry, OffsetEntry> entries = new HashMap<>(HASH_SIZE);
+    private long[] headerOffsets;
     /**
-     * Maps String to ZipEntrys, name -> actual entry.
+     * Length of each entry's local file header including name and
+     * extra field, 0 until the entry is first opened.
      */
-    private final Map<String, ZipEntry> nameMap = new HashMap<>(HASH_SIZE);
+    private int[] localHeaderLengths;
+    /**
+     * Open addressing table of entry index + 1, hashed over the UTF-8
+     * bytes of the entry names, 0 marks a free slot.
+     */
+    private int[] nameTable;
+    /**
+     * Entries whose name isn't the UTF-8 decoding of the raw name
+     * bytes (other encodings, Unicode extra fields), name -> index.
+     */
+    private final Map<String, Integer> decodedNames = new HashMap<>();
+    /**
+     * The ZipEntry of each index, created on first use.
+     */
+    private ZipEntry[] zipEntries;
+    private int entryCount;
     /**
      * The zip encoding to use for filenames and the file comment.
      */
@@ -151,10 +246,24 @@ public class ZipFile implements Closeable {
      * The actual data source.
      */
     private final RandomAccessFile archive;
+    /**
+     * Positional reads when the archive is not mapped.
+     */
+    private final FileChannel channel;
+    /**
+     * Read-only mapping of the whole archive, or null if it is too large or
+     * cannot be mapped. Readers work on duplicates and never move its
+     * position.
+     */
+    private final ByteBuffer mapped;
     /**
      * Whether to look for and use Unicode extra fields.
      */
     private final boolean useUnicodeExtraFields;
+    /**
+     * Offset of the first central directory record.
+     */
+    private long centralDirectoryOffset;
 
     /**
      * Opens the given file for reading, assuming the platform's
@@ -220,10 +329,11 @@ public class ZipFile implements Closeable {
         this.zipEncoding = ZipEncodingHelper.getZipEncoding(encoding);
         this.useUnicodeExtraFields = useUnicodeExtraFields;
         archive = new RandomAccessFile(f, "r");
+        channel = archive.getChannel();
+        mapped = map(channel);
         boolean success = false;
         try {
-            Map<ZipEntry, NameAndComment> entriesWithoutUTF8Flag = populateFromCentralDirectory();
-            resolveLocalFileHeaderData(entriesWithoutUTF8Flag);
+            populateFromCentralDirectory();
             success = true;
         } finally {
             if (!success) {
@@ -236,6 +346,18 @@ public class ZipFile implements Closeable {
         }
     }
 
+    private static ByteBuffer map(FileChannel channel) {
+        try {
+            long size = channel.size();
+            if (size == 0 || size > Integer.MAX_VALUE)
+                return null;
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            // e.g. out of address space, fall back to channel reads
+            return null;
+        }
+    }
+
     /**
      * close a zipfile quietly; throw no io fault, do nothing
      * on a null parameter
@@ -284,7 +406,7 @@ public class ZipFile implements Closeable {
     }
 
     public int getEntrySize() {
-        return entries.size();
+        return entryCount;
     }
 
     /**
@@ -307,12 +429,68 @@ public class ZipFile implements Closeable {
     }
 
     /**
-     * Returns all entries.
+     * Offset of the central directory from the start of the archive. Data
+     * between the last entry and this offset (e.g. the APK Signing Block) is
+     * not part of any entry.
+     */
+    public long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    /**
+     * Reads {@code len} bytes of the archive starting at {@code offset}.
+     *
+     * @throws EOFException if the archive ends first.
+     */
+    public void readFully(long offset, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int read = read(offset, b, off, len);
+            if (read < 0)
+                throw new EOFException();
+            offset += read;
+            off += read;
+            len -= read;
+        }
+    }
+
+    /**
+     * Positional read; thread-safe and leaves the RandomAccessFile pointer
+     * alone.
+     */
+    private int read(long offset, byte[] b, int off, int len) throws IOException {
+        if (mapped != null) {
+            if (offset >= mapped.capacity())
+                return -1;
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) offset);
+            len = Math.min(len, view.remaining());
+            view.get(b, off, len);
+            return len;
+        }
+        return channel.read(ByteBuffer.wrap(b, off, len), offset);
+    }
+
+    /**
+     * Returns all entries in central directory order.
      *
      * @return all entries as {@link ZipEntry} instances
      */
     public Enumeration<ZipEntry> getEntries() {
-        return Collections.enumeration(entries.keySet());
+        return new Enumeration<ZipEntry>() {
+            private int index;
+
+            @Override
+            public boolean hasMoreElements() {
+                return index < entryCount;
+            }
+
+            @Override
+            public ZipEntry nextElement() {
+                if (index >= entryCount)
+                    throw new NoSuchElementException();
+                return getEntry(index++);
+            }
+        };
     }
 
     /**
@@ -324,7 +502,8 @@ public class ZipFile implements Closeable {
      * <code>null</code> if not present.
      */
     public ZipEntry getEntry(String name) {
-        return nameMap.get(name);
+        int index = indexOf(name);
+        return index < 0 ? null : getEntry(index);
     }
 
     /**
@@ -338,11 +517,11 @@ public class ZipFile implements Closeable {
      */
     public InputStream getInputStream(ZipEntry ze)
             throws IOException {
-        OffsetEntry offsetEntry = entries.get(ze);
-        if (offsetEntry == null) {
+        int index = indexOf(ze);
+        if (index < 0) {
             return null;
         }
-        long start = offsetEntry.dataOffset;
+        long start = getDataOffset(index);
         BoundedInputStream bis =
                 new BoundedInputStream(start, ze.getCompressedSize());
         switch (ze.getMethod()) {
@@ -350,13 +529,7 @@ public class ZipFile implements Closeable {
                 return bis;
             case ZipEntry.DEFLATED:
                 bis.addDummy();
-                final Inflater inflater = new Inflater(true);
-                return new InflaterInputStream(bis, inflater) {
-                    public void close() throws IOException {
-                        super.close();
-                        inflater.end();
-                    }
-                };
+                return new PooledInflaterInputStream(bis);
             default:
                 throw new ZipException("Found unsupported compression method "
                         + ze.getMethod());
@@ -365,217 +538,571 @@ public class ZipFile implements Closeable {
 
     public InputStream getRawInputStream(ZipEntry ze)
             throws IOException {
-        OffsetEntry offsetEntry = entries.get(ze);
-        if (offsetEntry == null)
+        int index = indexOf(ze);
+        if (index < 0)
             return null;
-        return new BoundedInputStream(offsetEntry.dataOffset, ze.getCompressedSize());
+        return new BoundedInputStream(getDataOffset(index), ze.getCompressedSize());
     }
 
     /**
-     * Reads the central directory of the given archive and populates
-     * the internal tables with ZipEntry instances.
-     * <p>
-     * <p>The ZipEntrys will know all data that can be obtained from
-     * the central directory alone, but not the data that requires the
-     * local file header or additional data to be read.</p>
+     * Returns the data of a stored entry as a read-only view of the
+     * archive's mapping, without copying it. Returns <code>null</code>
+     * if the entry is compressed, not from this archive or the archive
+     * is not mapped; read it through {@link #getInputStream} then.
+     * The view stays valid after the archive is closed.
+     */
+    public ByteBuffer getMappedData(ZipEntry ze) throws IOException {
+        int index = indexOf(ze);
+        if (index < 0 || mapped == null || ze.getMethod() != ZipEntry.STORED)
+            return null;
+        long start = getDataOffset(index);
+        long size = ze.getCompressedSize();
+        if (start + size > mapped.capacity())
+            throw new EOFException("truncated data of entry " + ze.getName());
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) start);
+        view.limit((int) (start + size));
+        return view.slice();
+    }
+
+    /**
+     * Offset of the local file header of {@code ze}.
+     */
+    long getLocalHeaderOffset(ZipEntry ze) throws ZipException {
+        int index = indexOf(ze);
+        if (index < 0) {
+            throw new ZipException("entry " + ze.getName() + " is not from this archive");
+        }
+        return headerOffsets[index];
+    }
+
+    /**
+     * Offset of the data of {@code ze}, after its local file header.
+     */
+    long getDataOffset(ZipEntry ze) throws IOException {
+        int index = indexOf(ze);
+        if (index < 0) {
+            throw new ZipException("entry " + ze.getName() + " is not from this archive");
+        }
+        return getDataOffset(index);
+    }
+
+    /**
+     * Transfers the compressed data of {@code ze} to {@code target} at
+     * its current position, letting the channels move the bytes instead
+     * of copying them through the Java heap.
      *
-     * @return a Map&lt;ZipEntry, NameAndComment>&gt; of
-     * zipentries that didn't have the language encoding flag set when
-     * read.
+     * @return the number of bytes transferred.
      */
-    private Map<ZipEntry, NameAndComment> populateFromCentralDirectory()
-            throws IOException {
-        HashMap<ZipEntry, NameAndComment> noUTF8Flag = new HashMap<>();
+    long transferRawData(ZipEntry ze, FileChannel target) throws IOException {
+        int index = indexOf(ze);
+        if (index < 0) {
+            throw new ZipException("entry " + ze.getName() + " is not from this archive");
+        }
+        long position = getDataOffset(index);
+        long remaining = ze.getCompressedSize();
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new EOFException("truncated data of entry " + ze.getName());
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+        return ze.getCompressedSize();
+    }
 
-        positionAtCentralDirectory();
+    /**
+     * Returns the offset of the entry's data, reading its local file
+     * header the first time the entry is opened.
+     */
+    private long getDataOffset(int index) throws IOException {
+        int headerLength = localHeaderLengths[index];
+        if (headerLength == 0) {
+            byte[] lfh = new byte[LFH_OFFSET_FOR_FILENAME_LENGTH + SHORT + SHORT];
+            readFully(headerOffsets[index], lfh, 0, lfh.length);
+            if (ZipLong.getValue(lfh) != ZipLong.getValue(ZipOutputStream.LFH_SIG)) {
+                throw new ZipException("no local file header at offset "
+                        + headerOffsets[index]);
+            }
+            int fileNameLen = ZipShort.getValue(lfh, LFH_OFFSET_FOR_FILENAME_LENGTH);
+            int extraFieldLen = ZipShort.getValue(lfh, LFH_OFFSET_FOR_FILENAME_LENGTH + SHORT);
+            // racing threads compute the same value
+            headerLength = lfh.length + fileNameLen + extraFieldLen;
+            localHeaderLengths[index] = headerLength;
+        }
+        return headerOffsets[index] + headerLength;
+    }
 
-        byte[] cfh = new byte[CFH_LEN];
+    /**
+     * The ZipEntry at {@code index}, parsed from the central directory
+     * the first time it is asked for. Later calls return the same
+     * instance.
+     */
+    private ZipEntry getEntry(int index) {
+        synchronized (zipEntries) {
+            ZipEntry ze = zipEntries[index];
+            if (ze == null) {
+                try {
+                    ze = createEntry(recordOffsets[index]);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                zipEntries[index] = ze;
+            }
+            return ze;
+        }
+    }
+
+    private int indexOf(ZipEntry ze) {
+        if (ze == null)
+            return -1;
+        int index = indexOf(ze.getName());
+        synchronized (zipEntries) {
+            if (index >= 0 && zipEntries[index] == ze)
+                return index;
+            // a shadowed duplicate or a renamed entry
+            for (int i = 0; i < entryCount; i++) {
+                if (zipEntries[i] == ze)
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Looks the name up without allocating, the last entry wins if a
+     * name occurs more than once.
+     */
+    private int indexOf(String name) {
+        int found = -1;
+        int mask = nameTable.length - 1;
+        for (int slot = utf8Hash(name) & mask; nameTable[slot] != 0; slot = (slot + 1) & mask) {
+            int index = nameTable[slot] - 1;
+            int record = recordOffsets[index];
+            if (utf8Equals(name, centralDirectory, record + CFH_LEN + WORD,
+                    ZipShort.getValue(centralDirectory, record + CFH_OFFSET_FOR_FILENAME_LENGTH))) {
+                found = index;
+                break;
+            }
+        }
+        if (!decodedNames.isEmpty()) {
+            Integer index = decodedNames.get(name);
+            if (index != null && index > found)
+                found = index;
+        }
+        return found;
+    }
+
+    /**
+     * Reads the central directory of the given archive with a single
+     * bulk read and indexes its records.
+     * <p>
+     * <p>Nothing but the offsets of the records and of the local file
+     * headers and a hash table over the raw names is kept per entry;
+     * ZipEntrys are parsed from the retained central directory when
+     * they are first asked for. Local file headers are not read here;
+     * the data offset of an entry is resolved when it is first opened,
+     * and its extra fields are the ones of the central directory.</p>
+     */
+    private void populateFromCentralDirectory()
+            throws IOException {
+        long eocdOffset = findEndOfCentralDirectory();
+        if (centralDirectoryOffset > eocdOffset) {
+            throw new ZipException("central directory offset "
+                    + centralDirectoryOffset + " is past its end " + eocdOffset);
+        }
+        if (eocdOffset - centralDirectoryOffset > Integer.MAX_VALUE) {
+            throw new ZipException("central directory of "
+                    + (eocdOffset - centralDirectoryOffset) + " bytes is too large");
+        }
+        // everything up to the EOCD, don't trust the recorded size
+        byte[] cd = new byte[(int) (eocdOffset - centralDirectoryOffset)];
+        readFully(centralDirectoryOffset, cd, 0, cd.length);
 
-        byte[] signatureBytes = new byte[WORD];
-        archive.readFully(signatureBytes);
-        long sig = ZipLong.getValue(signatureBytes);
         final long cfhSig = ZipLong.getValue(ZipOutputStream.CFH_SIG);
-        if (sig != cfhSig && startsWithLocalFileHeader()) {
+        if ((cd.length < WORD || ZipLong.getValue(cd, 0) != cfhSig)
+                && startsWithLocalFileHeader()) {
             throw new IOException("central directory is empty, can't expand"
                     + " corrupt archive.");
         }
-        while (sig == cfhSig) {
-            archive.readFully(cfh);
-            int off = 0;
-            ZipEntry ze = new ZipEntry();
+        int count = 0;
+        int pos = 0;
+        while (pos + WORD <= cd.length && ZipLong.getValue(cd, pos) == cfhSig) {
+            pos = nextRecord(cd, pos);
+            count++;
+        }
 
-            int versionMadeBy = ZipShort.getValue(cfh, off);
-            off += SHORT;
-            ze.setPlatform((versionMadeBy >> BYTE_SHIFT) & NIBLET_MASK);
+        centralDirectory = cd;
+        recordOffsets = new int[count];
+        headerOffsets = new long[count];
+        localHeaderLengths = new int[count];
+        zipEntries = new ZipEntry[count];
+        nameTable = new int[Integer.highestOneBit(Math.max(count, 1) * 2) * 2];
+        entryCount = count;
+        boolean utf8Default = ZipEncodingHelper.isUTF8(zipEncoding.getEncoding());
+        pos = 0;
+        for (int index = 0; index < count; index++) {
+            recordOffsets[index] = pos;
+            headerOffsets[index] = ZipLong.getValue(cd, pos + CFH_OFFSET_FOR_LFH_OFFSET);
+            if (headerOffsets[index] == ZipOutputStream.ZIP64_MAGIC) {
+                Zip64ExtendedInformationExtraField z64 = getZip64Extra(cd, pos);
+                if (z64 != null && z64.getRelativeHeaderOffset() != null) {
+                    headerOffsets[index] = z64.getRelativeHeaderOffset().getValue();
+                }
+            }
+            int nameOffset = pos + WORD + CFH_LEN;
+            int nameLen = ZipShort.getValue(cd, pos + CFH_OFFSET_FOR_FILENAME_LENGTH);
+            boolean hasUTF8Flag = (ZipShort.getValue(cd, pos + CFH_OFFSET_FOR_FLAGS)
+                    & ZipOutputStream.UFT8_NAMES_FLAG) != 0;
+            if (!hasUTF8Flag && useUnicodeExtraFields && hasUnicodeExtraField(cd, pos)
+                    || contains(cd, nameOffset, nameLen, (byte) '\\')) {
+                // the name may come from the extra field, or ZipEntry may
+                // turn its backslashes into slashes
+                ZipEntry ze = createEntry(pos);
+                zipEntries[index] = ze;
+                decodedNames.put(ze.getName(), index);
+            } else if (isAscii(cd, nameOffset, nameLen)
+                    || (hasUTF8Flag || utf8Default) && isUtf8(cd, nameOffset, nameLen)) {
+                addToNameTable(index, nameOffset, nameLen);
+            } else {
+                ZipEncoding entryEncoding =
+                        hasUTF8Flag ? ZipEncodingHelper.UTF8_ZIP_ENCODING : zipEncoding;
+                decodedNames.put(entryEncoding.decode(
+                        Arrays.copyOfRange(cd, nameOffset, nameOffset + nameLen)), index);
+            }
+            pos = nextRecord(cd, pos);
+        }
+    }
+
+    /**
+     * Checks the bounds of the central file header at {@code pos} and
+     * returns the offset of the one following it.
+     */
+    private static int nextRecord(byte[] cd, int pos) throws ZipException {
+        checkCentralDirectoryBounds(cd, pos, WORD + CFH_LEN);
+        int variableLen = ZipShort.getValue(cd, pos + CFH_OFFSET_FOR_FILENAME_LENGTH)
+                + ZipShort.getValue(cd, pos + CFH_OFFSET_FOR_FILENAME_LENGTH + SHORT)
+                + ZipShort.getValue(cd, pos + CFH_OFFSET_FOR_FILENAME_LENGTH + SHORT + SHORT);
+        pos += WORD + CFH_LEN;
+        checkCentralDirectoryBounds(cd, pos, variableLen);
+        return pos + variableLen;
+    }
+
+    /**
+     * Parses the central file header at {@code record} into a ZipEntry.
+     */
+    private ZipEntry createEntry(int record) throws IOException {
+        byte[] cd = centralDirectory;
+        int off = record + WORD;
+        ZipEntry ze = new ZipEntry();
 
-            off += SHORT; // skip version info
+        int versionMadeBy = ZipShort.getValue(cd, off);
+        off += SHORT;
+        ze.setPlatform((versionMadeBy >> BYTE_SHIFT) & NIBLET_MASK);
 
-            final int generalPurposeFlag = ZipShort.getValue(cfh, off);
-            final boolean hasUTF8Flag =
-                    (generalPurposeFlag & ZipOutputStream.UFT8_NAMES_FLAG) != 0;
-            final ZipEncoding entryEncoding =
-                    hasUTF8Flag ? ZipEncodingHelper.UTF8_ZIP_ENCODING : zipEncoding;
+        off += SHORT; // skip version info
 
-            off += SHORT;
+        final int generalPurposeFlag = ZipShort.getValue(cd, off);
+        final boolean hasUTF8Flag =
+                (generalPurposeFlag & ZipOutputStream.UFT8_NAMES_FLAG) != 0;
+        final ZipEncoding entryEncoding =
+                hasUTF8Flag ? ZipEncodingHelper.UTF8_ZIP_ENCODING : zipEncoding;
 
-            //noinspection MagicConstant
-            ze.setMethod(ZipShort.getValue(cfh, off));
-            off += SHORT;
+        off += SHORT;
 
-            // FIXME this is actually not very cpu cycles friendly as we are converting from
-            // dos to java while the underlying Sun implementation will convert
-            // from java to dos time for internal storage...
-            long time = dosToJavaTime(ZipLong.getValue(cfh, off));
-            ze.setTime(time);
-            off += WORD;
+        //noinspection MagicConstant
+        ze.setMethod(ZipShort.getValue(cd, off));
+        off += SHORT;
 
-            ze.setCrc(ZipLong.getValue(cfh, off));
-            off += WORD;
+        // FIXME this is actually not very cpu cycles friendly as we are converting from
+        // dos to java while the underlying Sun implementation will convert
+        // from java to dos time for internal storage...
+        long time = dosToJavaTime(ZipLong.getValue(cd, off));
+        ze.setTime(time);
+        off += WORD;
 
-            ze.setCompressedSize(ZipLong.getValue(cfh, off));
-            off += WORD;
+        ze.setCrc(ZipLong.getValue(cd, off));
+        off += WORD;
 
-            ze.setSize(ZipLong.getValue(cfh, off));
-            off += WORD;
+        ze.setCompressedSize(ZipLong.getValue(cd, off));
+        off += WORD;
 
-            int fileNameLen = ZipShort.getValue(cfh, off);
-            off += SHORT;
+        ze.setSize(ZipLong.getValue(cd, off));
+        off += WORD;
 
-            int extraLen = ZipShort.getValue(cfh, off);
-            off += SHORT;
+        int fileNameLen = ZipShort.getValue(cd, off);
+        off += SHORT;
 
-            int commentLen = ZipShort.getValue(cfh, off);
-            off += SHORT;
+        int extraLen = ZipShort.getValue(cd, off);
+        off += SHORT;
 
-            off += SHORT; // disk number
+        int commentLen = ZipShort.getValue(cd, off);
+        off += SHORT;
 
-            ze.setInternalAttributes(ZipShort.getValue(cfh, off));
-            off += SHORT;
+        off += SHORT; // disk number
 
-            ze.setExternalAttributes(ZipLong.getValue(cfh, off));
-            off += WORD;
+        ze.setInternalAttributes(ZipShort.getValue(cd, off));
+        off += SHORT;
 
-            byte[] fileName = new byte[fileNameLen];
-            archive.readFully(fileName);
-            ze.setName(entryEncoding.decode(fileName));
+        ze.setExternalAttributes(ZipLong.getValue(cd, off));
+        off += WORD;
 
-            // LFH offset,
-            OffsetEntry offset = new OffsetEntry();
-            offset.headerOffset = ZipLong.getValue(cfh, off);
-            // data offset will be filled later
-            entries.put(ze, offset);
+        off += WORD; // LFH offset, kept in headerOffsets
 
-            nameMap.put(ze.getName(), ze);
+        byte[] fileName = Arrays.copyOfRange(cd, off, off + fileNameLen);
+        ze.setName(entryEncoding.decode(fileName));
+        off += fileNameLen;
 
-            byte[] cdExtraData = new byte[extraLen];
-            archive.readFully(cdExtraData);
-            ze.setCentralDirectoryExtra(cdExtraData);
+        ze.setCentralDirectoryExtra(Arrays.copyOfRange(cd, off, off + extraLen));
+        off += extraLen;
 
-            byte[] comment = new byte[commentLen];
-            archive.readFully(comment);
-            ze.setComment(entryEncoding.decode(comment));
+        byte[] comment = Arrays.copyOfRange(cd, off, off + commentLen);
+        ze.setComment(entryEncoding.decode(comment));
+
+        Zip64ExtendedInformationExtraField z64 = getZip64Extra(cd, record);
+        if (z64 != null) {
+            if (z64.getSize() != null) {
+                ze.setSize(z64.getSize().getValue());
+            }
+            if (z64.getCompressedSize() != null) {
+                ze.setCompressedSize(z64.getCompressedSize().getValue());
+            }
+            // replace the field parsed without knowing which values it holds
+            ze.addExtraField(z64);
+        }
 
-            archive.readFully(signatureBytes);
-            sig = ZipLong.getValue(signatureBytes);
+        if (!hasUTF8Flag && useUnicodeExtraFields) {
+            setNameAndCommentFromExtraFields(ze, fileName, comment);
+        }
+        return ze;
+    }
 
-            if (!hasUTF8Flag && useUnicodeExtraFields) {
-                noUTF8Flag.put(ze, new NameAndComment(fileName, comment));
+    private void addToNameTable(int index, int nameOffset, int nameLen) {
+        int h = 0;
+        for (int i = nameOffset; i < nameOffset + nameLen; i++) {
+            h = 31 * h + (centralDirectory[i] & 0xff);
+        }
+        int mask = nameTable.length - 1;
+        int slot = h & mask;
+        for (; nameTable[slot] != 0; slot = (slot + 1) & mask) {
+            int other = recordOffsets[nameTable[slot] - 1];
+            int otherLen = ZipShort.getValue(centralDirectory, other + CFH_OFFSET_FOR_FILENAME_LENGTH);
+            if (otherLen == nameLen && regionEquals(centralDirectory,
+                    other + WORD + CFH_LEN, nameOffset, nameLen)) {
+                // a duplicate name, the later entry wins
+                break;
             }
         }
-        return noUTF8Flag;
+        nameTable[slot] = index + 1;
     }
 
     /**
-     * Searches for the &quot;End of central dir record&quot;, parses
-     * it and positions the stream at the first central directory
-     * record.
+     * Whether the central file header at {@code record} has an
+     * extra field that may override the name or comment.
      */
-    private void positionAtCentralDirectory()
-            throws IOException {
-        boolean found = false;
-        long off = archive.length() - MIN_EOCD_SIZE;
-        final long stopSearching =
-                Math.max(0L, archive.length() - MAX_EOCD_SIZE);
-        if (off >= 0) {
-            final byte[] sig = ZipOutputStream.EOCD_SIG;
-            for (; off >= stopSearching; off--) {
-                archive.seek(off);
-                int curr = archive.read();
-                if (curr == -1) {
-                    break;
-                }
-                if (curr == sig[POS_0]) {
-                    curr = archive.read();
-                    if (curr == sig[POS_1]) {
-                        curr = archive.read();
-                        if (curr == sig[POS_2]) {
-                            curr = archive.read();
-                            if (curr == sig[POS_3]) {
-                                found = true;
-                                break;
-                            }
-                        }
-                    }
-                }
+    private static boolean hasUnicodeExtraField(byte[] cd, int record) {
+        int nameLen = ZipShort.getValue(cd, record + CFH_OFFSET_FOR_FILENAME_LENGTH);
+        int extraLen = ZipShort.getValue(cd, record + CFH_OFFSET_FOR_FILENAME_LENGTH + SHORT);
+        int off = record + WORD + CFH_LEN + nameLen;
+        int end = off + extraLen;
+        while (off + WORD <= end) {
+            int id = ZipShort.getValue(cd, off);
+            if (id == UnicodePathExtraField.UPATH_ID.getValue()
+                    || id == UnicodeCommentExtraField.UCOM_ID.getValue()) {
+                return true;
             }
+            off += WORD + ZipShort.getValue(cd, off + SHORT);
         }
-        if (!found) {
-            throw new ZipException("archive is not a ZIP archive");
+        return false;
+    }
+
+    /**
+     * Parses the ZIP64 extended information extra field of the central
+     * file header at {@code record}, holding the values that are
+     * 0xFFFFFFFF in the header.
+     *
+     * @return null if the header has no such field.
+     */
+    private static Zip64ExtendedInformationExtraField getZip64Extra(byte[] cd, int record)
+            throws ZipException {
+        int nameLen = ZipShort.getValue(cd, record + CFH_OFFSET_FOR_FILENAME_LENGTH);
+        int extraLen = ZipShort.getValue(cd, record + CFH_OFFSET_FOR_FILENAME_LENGTH + SHORT);
+        int off = record + WORD + CFH_LEN + nameLen;
+        int end = off + extraLen;
+        while (off + WORD <= end) {
+            int id = ZipShort.getValue(cd, off);
+            int size = ZipShort.getValue(cd, off + SHORT);
+            if (id == Zip64ExtendedInformationExtraField.ZIP64_ID.getValue()
+                    && off + WORD + size <= end) {
+                Zip64ExtendedInformationExtraField z64 = new Zip64ExtendedInformationExtraField();
+                z64.parseFromCentralDirectoryData(cd, off + WORD, size);
+                z64.reparseCentralDirectoryData(
+                        ZipLong.getValue(cd, record + CFH_OFFSET_FOR_SIZE) == ZipOutputStream.ZIP64_MAGIC,
+                        ZipLong.getValue(cd, record + CFH_OFFSET_FOR_COMPRESSED_SIZE) == ZipOutputStream.ZIP64_MAGIC,
+                        ZipLong.getValue(cd, record + CFH_OFFSET_FOR_LFH_OFFSET) == ZipOutputStream.ZIP64_MAGIC,
+                        ZipShort.getValue(cd, record + CFH_OFFSET_FOR_DISK_NUMBER) == ZipOutputStream.ZIP64_MAGIC_SHORT);
+                return z64;
+            }
+            off += WORD + size;
         }
-        archive.seek(off + CFD_LOCATOR_OFFSET);
-        byte[] cfdOffset = new byte[WORD];
-        archive.readFully(cfdOffset);
-        archive.seek(ZipLong.getValue(cfdOffset));
+        return null;
+    }
+
+    private static boolean isAscii(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (b[i] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean contains(byte[] b, int off, int len, byte value) {
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == value)
+                return true;
+        }
+        return false;
     }
 
     /**
-     * Walks through all recorded entries and adds the data available
-     * from the local file header.
-     * <p>
-     * <p>Also records the offsets for the data to read from the
-     * entries.</p>
+     * Whether the bytes are valid UTF-8 that decodes and encodes back
+     * to themselves.
      */
-    private void resolveLocalFileHeaderData(Map<ZipEntry, NameAndComment> entriesWithoutUTF8Flag)
-            throws IOException {
-        Enumeration<ZipEntry> e = Collections.enumeration(new HashSet<>(entries.keySet()));
-        while (e.hasMoreElements()) {
-            ZipEntry ze = e.nextElement();
-            OffsetEntry offsetEntry = entries.get(ze);
-            long offset = offsetEntry.headerOffset;
-            archive.seek(offset + LFH_OFFSET_FOR_FILENAME_LENGTH);
-            byte[] b = new byte[SHORT];
-            archive.readFully(b);
-            int fileNameLen = ZipShort.getValue(b);
-            archive.readFully(b);
-            int extraFieldLen = ZipShort.getValue(b);
-            int lenToSkip = fileNameLen;
-            while (lenToSkip > 0) {
-                int skipped = archive.skipBytes(lenToSkip);
-                if (skipped <= 0) {
-                    throw new RuntimeException("failed to skip file name in"
-                            + " local file header");
-                }
-                lenToSkip -= skipped;
+    private static boolean isUtf8(byte[] b, int off, int len) {
+        String s = new String(b, off, len, StandardCharsets.UTF_8);
+        return Arrays.equals(s.getBytes(StandardCharsets.UTF_8), Arrays.copyOfRange(b, off, off + len));
+    }
+
+    private static boolean regionEquals(byte[] b, int off1, int off2, int len) {
+        for (int i = 0; i < len; i++) {
+            if (b[off1 + i] != b[off2 + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hashes the UTF-8 encoding of {@code name} like
+     * {@link #addToNameTable} hashes the raw bytes, without encoding it.
+     */
+    private static int utf8Hash(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); ) {
+            int cp = codePointAt(name, i);
+            i += Character.charCount(cp);
+            int len = utf8Length(cp);
+            for (int k = 0; k < len; k++) {
+                h = 31 * h + utf8Byte(cp, len, k);
             }
-            byte[] localExtraData = new byte[extraFieldLen];
-            archive.readFully(localExtraData);
-            ze.setExtra(localExtraData);
-            /*dataOffsets.put(ze,
-                            new Long(offset + LFH_OFFSET_FOR_FILENAME_LENGTH
-                                     + SHORT + SHORT + fileNameLen + extraFieldLen));
-            */
-            offsetEntry.dataOffset = offset + LFH_OFFSET_FOR_FILENAME_LENGTH
-                    + SHORT + SHORT + fileNameLen + extraFieldLen;
-
-            if (entriesWithoutUTF8Flag.containsKey(ze)) {
-                // changing the name of a ZipEntry is going to change
-                // the hashcode
-                // - see https://issues.apache.org/jira/browse/COMPRESS-164
-                entries.remove(ze);
-                setNameAndCommentFromExtraFields(ze, entriesWithoutUTF8Flag.get(ze));
-                entries.put(ze, offsetEntry);
+        }
+        return h;
+    }
+
+    private static boolean utf8Equals(String name, byte[] b, int off, int len) {
+        int pos = 0;
+        for (int i = 0; i < name.length(); ) {
+            int cp = codePointAt(name, i);
+            i += Character.charCount(cp);
+            int cpLen = utf8Length(cp);
+            if (pos + cpLen > len)
+                return false;
+            for (int k = 0; k < cpLen; k++) {
+                if ((b[off + pos++] & 0xff) != utf8Byte(cp, cpLen, k))
+                    return false;
+            }
+        }
+        return pos == len;
+    }
+
+    /**
+     * Like {@link String#codePointAt(int)}, but a lone surrogate is
+     * returned as -1, which matches no byte: indexed names are valid
+     * UTF-8 and never decode to one.
+     */
+    private static int codePointAt(String s, int i) {
+        int cp = s.codePointAt(i);
+        return cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE ? -1 : cp;
+    }
+
+    private static int utf8Length(int cp) {
+        return cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+    }
+
+    private static int utf8Byte(int cp, int len, int k) {
+        if (len == 1)
+            return cp;
+        if (k == 0)
+            return (0xf00 >> len & 0xff) | cp >> (6 * (len - 1));
+        return 0x80 | (cp >> (6 * (len - 1 - k)) & 0x3f);
+    }
+
+    private static void checkCentralDirectoryBounds(byte[] cd, int off, int len)
+            throws ZipException {
+        if (off + len > cd.length) {
+            throw new ZipException("truncated central directory record");
+        }
+    }
+
+    /**
+     * Searches the tail of the archive, read in one go, for the
+     * &quot;End of central dir record&quot; and parses the offset of
+     * the central directory from it, or from the ZIP64 end of central
+     * directory record if the archive has one.
+     *
+     * @return the offset of the record following the central directory.
+     */
+    private long findEndOfCentralDirectory()
+            throws IOException {
+        long length = channel.size();
+        if (length < MIN_EOCD_SIZE) {
+            throw new ZipException("archive is not a ZIP archive");
+        }
+        byte[] tail = new byte[(int) Math.min(length, MAX_EOCD_SIZE)];
+        long tailOffset = length - tail.length;
+        readFully(tailOffset, tail, 0, tail.length);
+        final long eocdSig = ZipLong.getValue(ZipOutputStream.EOCD_SIG);
+        for (int off = tail.length - MIN_EOCD_SIZE; off >= 0; off--) {
+            if (ZipLong.getValue(tail, off) == eocdSig) {
+                centralDirectoryOffset = ZipLong.getValue(tail, off + CFD_LOCATOR_OFFSET);
+                long eocdOffset = tailOffset + off;
+                long zip64EocdOffset = findZip64EndOfCentralDirectory(eocdOffset);
+                return zip64EocdOffset >= 0 ? zip64EocdOffset : eocdOffset;
             }
         }
+        throw new ZipException("archive is not a ZIP archive");
+    }
+
+    /**
+     * Follows the &quot;ZIP64 end of central directory locator&quot; in
+     * front of the EOCD record at {@code eocdOffset}, if there is one, to
+     * the ZIP64 end of central directory record and parses the offset of
+     * the central directory from that.
+     *
+     * @return the offset of the ZIP64 record, -1 if there is none.
+     */
+    private long findZip64EndOfCentralDirectory(long eocdOffset) throws IOException {
+        if (eocdOffset < ZIP64_EOCDL_LENGTH + ZIP64_EOCD_LENGTH) {
+            return -1;
+        }
+        byte[] locator = new byte[ZIP64_EOCDL_LENGTH];
+        readFully(eocdOffset - ZIP64_EOCDL_LENGTH, locator, 0, locator.length);
+        if (ZipLong.getValue(locator) != ZipLong.getValue(ZipOutputStream.ZIP64_EOCD_LOC_SIG)) {
+            return -1;
+        }
+        long zip64EocdOffset = ZipEightByteInteger.getValue(locator, ZIP64_EOCDL_LOCATOR_OFFSET);
+        if (zip64EocdOffset < 0 || zip64EocdOffset > eocdOffset - ZIP64_EOCDL_LENGTH - ZIP64_EOCD_LENGTH) {
+            throw new ZipException("ZIP64 end of central directory locator points to "
+                    + zip64EocdOffset + " outside of the archive");
+        }
+        byte[] zip64Eocd = new byte[ZIP64_EOCD_LENGTH];
+        readFully(zip64EocdOffset, zip64Eocd, 0, zip64Eocd.length);
+        if (ZipLong.getValue(zip64Eocd) != ZipLong.getValue(ZipOutputStream.ZIP64_EOCD_SIG)) {
+            throw new ZipException("no ZIP64 end of central directory record at offset "
+                    + zip64EocdOffset);
+        }
+        centralDirectoryOffset = ZipEightByteInteger.getValue(zip64Eocd, ZIP64_EOCD_CFD_LOCATOR_OFFSET);
+        return zip64EocdOffset;
     }
 
     /**
@@ -583,9 +1110,8 @@ public class ZipFile implements Closeable {
      * it may be an empty archive.
      */
     private boolean startsWithLocalFileHeader() throws IOException {
-        archive.seek(0);
         final byte[] start = new byte[WORD];
-        archive.readFully(start);
+        readFully(0, start, 0, start.length);
         for (int i = 0; i < start.length; i++) {
             if (start[i] != ZipOutputStream.LFH_SIG[i]) {
                 return false;
@@ -600,22 +1126,20 @@ public class ZipFile implements Closeable {
      * known Unicode values from the extra field.
      */
     private void setNameAndCommentFromExtraFields(ZipEntry ze,
-                                                  NameAndComment nc) {
+                                                  byte[] origName,
+                                                  byte[] origComment) {
         UnicodePathExtraField name = (UnicodePathExtraField)
                 ze.getExtraField(UnicodePathExtraField.UPATH_ID);
-        String originalName = ze.getName();
-        String newName = getUnicodeStringIfOriginalMatches(name, nc.name);
-        if (newName != null && !originalName.equals(newName)) {
+        String newName = getUnicodeStringIfOriginalMatches(name, origName);
+        if (newName != null) {
             ze.setName(newName);
-            nameMap.remove(originalName);
-            nameMap.put(newName, ze);
         }
 
-        if (nc.comment != null && nc.comment.length > 0) {
+        if (origComment.length > 0) {
             UnicodeCommentExtraField cmt = (UnicodeCommentExtraField)
                     ze.getExtraField(UnicodeCommentExtraField.UCOM_ID);
             String newComment =
-                    getUnicodeStringIfOriginalMatches(cmt, nc.comment);
+                    getUnicodeStringIfOriginalMatches(cmt, origComment);
             if (newComment != null) {
                 ze.setComment(newComment);
             }
@@ -652,27 +1176,12 @@ public class ZipFile implements Closeable {
         return null;
     }
 
-    private static final class OffsetEntry {
-        private long headerOffset = -1;
-        private long dataOffset = -1;
-    }
-
-    private static final class NameAndComment {
-        private final byte[] name;
-        private final byte[] comment;
-
-        private NameAndComment(byte[] name, byte[] comment) {
-            this.name = name;
-            this.comment = comment;
-        }
-    }
-
     /**
-     * InputStream that delegates requests to the underlying
-     * RandomAccessFile, making sure that only bytes from a certain
-     * range can be read.
+     * InputStream that reads a range of the archive with positional reads,
+     * making sure that only bytes from a certain range can be read.
      */
     private class BoundedInputStream extends InputStream {
+        private final byte[] single = new byte[1];
         private long remaining;
         private long loc;
         private boolean addDummyByte = false;
@@ -683,17 +1192,8 @@ public class ZipFile implements Closeable {
         }
 
         public int read() throws IOException {
-            if (remaining-- <= 0) {
-                if (addDummyByte) {
-                    addDummyByte = false;
-                    return 0;
-                }
-                return -1;
-            }
-            synchronized (archive) {
-                archive.seek(loc++);
-                return archive.read();
-            }
+            int ret = read(single, 0, 1);
+            return ret <= 0 ? -1 : single[0] & 0xff;
         }
 
         public int read(byte[] b, int off, int len) throws IOException {
@@ -713,11 +1213,7 @@ public class ZipFile implements Closeable {
             if (len > remaining) {
                 len = (int) remaining;
             }
-            int ret;
-            synchronized (archive) {
-                archive.seek(loc);
-                ret = archive.read(b, off, len);
-            }
+            int ret = ZipFile.this.read(loc, b, off, len);
             if (ret > 0) {
                 loc += ret;
                 remaining -= ret;
@@ -725,6 +1221,19 @@ public class ZipFile implements Closeable {
             return ret;
         }
 
+        public long skip(long n) {
+            if (n <= 0)
+                return 0;
+            long skipped = Math.min(n, remaining);
+            loc += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+
         /**
          * Inflater needs an extra dummy byte for nowrap - see
          * Inflater's javadocs.
@@ -733,4 +1242,28 @@ public class ZipFile implements Closeable {
             addDummyByte = true;
         }
     }
+
+    /**
+     * Inflates with an inflater and input buffer from {@link ZipPool},
+     * given back on {@link #close()}.
+     */
+    private static class PooledInflaterInputStream extends InflaterInputStream {
+        private boolean closed;
+
+        PooledInflaterInputStream(InputStream in) {
+            // the buffer allocated here is replaced right away
+            super(in, ZipPool.obtainInflater(), 1);
+            buf = ZipPool.obtainBuffer();
+        }
+
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            super.close();
+            ZipPool.recycle(inf);
+            ZipPool.recycle(buf);
+        }
+    }
 }
@@ -193,7 +193,7 @@ public class ZipManager {
         ZipEntry zipEntry = new ZipEntry(entryName);
         zipEntry.setTime(file.lastModified());
         zos.putNextEntry(zipEntry);
-        byte[] bytes = new byte[ZipOutputStream.BUFFER_SIZE];
+        byte[] bytes = ZipPool.obtainBuffer();
         int len;
         long current = 0;
         while ((len = is.read(bytes)) > 0) {
@@ -202,6 +202,7 @@ public class ZipManager {
             if (size > 0)
                 callback.onProgress(current, size);
         }
+        ZipPool.recycle(bytes);
         is.close();
         zos.closeEntry();
     }
@@ -216,6 +217,7 @@ public class ZipManager {
     }
 
     public void copyEntries(CopyEntryCallback callback) throws IOException {
+        byte[] bytes = ZipPool.obtainBuffer();
         for (int i = 0; i < ze.length; i++) {
             ZipEntry zipEntry = callback.filter(ze[i], i + 1, ze.length);
             if (zipEntry == null)
@@ -228,7 +230,6 @@ public class ZipManager {
                 int len;
                 final long total = zipEntry.getCompressedSize();
                 long current = 0;
-                byte[] bytes = new byte[ZipOutputStream.BUFFER_SIZE];
                 while ((len = rawInputStream.read(bytes)) > 0) {
                     zos.writeRaw(bytes, 0, len);
                     current += len;
@@ -239,9 +240,11 @@ public class ZipManager {
             zos.closeEntry();
             callback.done(zipEntry);
         }
+        ZipPool.recycle(bytes);
     }
 
     public void copyOtherZipManagerEntries(ZipManager zipManager, CopyEntryCallback callback) throws IOException {
+        byte[] bytes = ZipPool.obtainBuffer();
         for (int i = 0; i < zipManager.ze.length; i++) {
             ZipEntry zipEntry = callback.filter(zipManager.ze[i], i + 1, zipManager.ze.length);
             if (zipEntry == null)
@@ -254,7 +257,6 @@ public class ZipManager {
                 int len;
                 final long total = zipEntry.getCompressedSize();
                 long current = 0;
-                byte[] bytes = new byte[ZipOutputStream.BUFFER_SIZE];
                 while ((len = rawInputStream.read(bytes)) > 0) {
                     zos.writeRaw(bytes, 0, len);
                     current += len;
@@ -265,21 +267,24 @@ public class ZipManager {
             zos.closeEntry();
             callback.done(zipEntry);
         }
+        ZipPool.recycle(bytes);
     }
 
     public void extractZipEntry(ZipEntry zipEntry, File file) throws IOException {
         InputStream is = zipFile.getInputStream(zipEntry);
         BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(file));
-        byte[] bytes = new byte[ZipOutputStream.BUFFER_SIZE];
+        byte[] bytes = ZipPool.obtainBuffer();
         int len;
         while ((len = is.read(bytes)) > 0) {
             os.write(bytes, 0, len);
         }
+        ZipPool.recycle(bytes);
         is.close();
         os.close();
     }
 
     public void extract(ExtractCallback callback) throws IOException {
+        byte[] bytes = ZipPool.obtainBuffer();
         for (int i = 0; i < ze.length; i++) {
             ZipEntry zipEntry = ze[i];
             File file = callback.filter(zipEntry, i + 1, ze.length);
@@ -291,7 +296,6 @@ public class ZipManager {
             } else {
                 InputStream is = zipFile.getInputStream(zipEntry);
                 BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(file));
-                byte[] bytes = new byte[ZipOutputStream.BUFFER_SIZE];
                 int len;
                 long total = zipEntry.getSize();
                 long current = 0;
@@ -308,6 +312,7 @@ public class ZipManager {
             file.setLastModified(zipEntry.getTime());
             callback.done(zipEntry, file);
         }
+        ZipPool.recycle(bytes);
     }
 
     public ZipOutputStream createTempZipOutputStream() throws IOException {
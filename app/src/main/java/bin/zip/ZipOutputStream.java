@@ -18,6 +18,7 @@
 
 package bin.zip;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
@@ -26,19 +27,30 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.ZipException;
 
 import bin.zip.encoding.ZipEncoding;
 import bin.zip.encoding.ZipEncodingHelper;
+import bin.zip.extrafield.ExtraFieldUtils;
 import bin.zip.extrafield.UnicodeCommentExtraField;
 import bin.zip.extrafield.UnicodePathExtraField;
+import bin.zip.extrafield.Zip64ExtendedInformationExtraField;
+import bin.zip.extrafield.ZipExtraField;
 
 import static bin.zip.ZipLong.putLong;
 import static bin.zip.ZipShort.putShort;
@@ -62,6 +74,14 @@ import static bin.zip.encoding.ZipEncodingHelper.UTF8_ZIP_ENCODING;
  * the {@link #STORED STORED} method, here setting the CRC and
  * uncompressed size information is required before {@link
  * #putNextEntry putNextEntry} can be called.</p>
+ * <p>
+ * <p>With {@link #setParallelism(int)} DEFLATED entries are cut into
+ * blocks that are compressed on a thread pool, each primed with the
+ * last 32 KiB of the block before it like pigz does, and written back
+ * in order.</p>
+ * <p>
+ * <p>ZIP64 extensions are written where sizes, offsets or the number of
+ * entries don't fit the classic format, see {@link #setZip64Mode}.</p>
  */
 public class ZipOutputStream extends FilterOutputStream {
     public static final int LEVEL_BEST = Deflater.BEST_COMPRESSION;
@@ -124,6 +144,24 @@ public class ZipOutputStream extends FilterOutputStream {
      * @since 1.1
      */
     protected static final byte[] EOCD_SIG = ZipLong.getBytes(0X06054B50L);
+    /**
+     * ZIP64 end of central dir signature
+     */
+    protected static final byte[] ZIP64_EOCD_SIG = ZipLong.getBytes(0X06064B50L);
+    /**
+     * ZIP64 end of central dir locator signature
+     */
+    protected static final byte[] ZIP64_EOCD_LOC_SIG = ZipLong.getBytes(0X07064B50L);
+    /**
+     * Value of 32 bit size and offset fields whose actual value is in
+     * the ZIP64 extra field or record.
+     */
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    /**
+     * Value of 16 bit count fields whose actual value is in the ZIP64
+     * end of central directory record.
+     */
+    static final int ZIP64_MAGIC_SHORT = 0xFFFF;
     /**
      * default encoding for file names and comment.
      */
@@ -131,6 +169,11 @@ public class ZipOutputStream extends FilterOutputStream {
     private static final int BYTE_MASK = 0xFF;
     private static final int SHORT = 2;
     private static final int WORD = 4;
+    private static final int DWORD = 8;
+    /**
+     * Version needed to extract entries using ZIP64 extensions.
+     */
+    private static final int ZIP64_MIN_VERSION = 45;
     /*
      * Apparently Deflater.setInput gets slowed down a lot on Sun JVMs
      * when it gets handed a really big buffer.  See
@@ -139,6 +182,37 @@ public class ZipOutputStream extends FilterOutputStream {
      * Using a buffer size of 8 kB proved to be a good compromise
      */
     private static final int DEFLATER_BLOCK_SIZE = 8192;
+    /**
+     * Input of one block when deflating in parallel.
+     */
+    private static final int PARALLEL_BLOCK_SIZE = 128 * 1024;
+    /**
+     * Preceding input a parallel block is primed with, the deflate
+     * window size.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    /**
+     * Header id of the extra field padding local file headers to align
+     * the data of STORED entries, as written by zipalign and apksigner.
+     * Its data is the alignment as a ZipShort followed by zeros.
+     */
+    private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+    private static final int ALIGNMENT_EXTRA_MIN_SIZE = WORD + SHORT;
+    /**
+     * Bytes of an entry a {@link CompressionPolicy} gets to sample.
+     */
+    public static final int SAMPLE_SIZE = 32 * 1024;
+    /**
+     * The alignment zipalign -p applies: uncompressed native libraries
+     * on 4 KiB pages so they can be mapped, other STORED entries such as
+     * resources.arsc on 4 bytes.
+     */
+    public static final AlignmentPolicy APK_ALIGNMENT = new AlignmentPolicy() {
+        @Override
+        public int getAlignment(ZipEntry ze) {
+            return ze.getName().endsWith(".so") ? 4096 : 4;
+        }
+    };
     /**
      * Helper, a 0 as ZipShort.
      *
@@ -169,6 +243,10 @@ public class ZipOutputStream extends FilterOutputStream {
      * @since 1.1
      */
     private final Map<ZipEntry, Long> offsets = new HashMap<>();
+    /**
+     * Entries whose local file header has a ZIP64 extra field.
+     */
+    private final Set<ZipEntry> zip64Entries = new HashSet<>();
     /**
      * This buffer servers as a Deflater.
      * <p>
@@ -208,14 +286,15 @@ public class ZipOutputStream extends FilterOutputStream {
      *
      * @since 1.14
      */
-    protected Deflater def = new Deflater(level, true);
+    protected Deflater def = ZipPool.obtainDeflater(level);
     /**
-     * Has the compression level changed when compared to the last
-     * entry?
-     *
-     * @since 1.5
+     * The level {@link #def} is currently set to.
      */
-    private boolean hasCompressionLevelChanged = false;
+    private int deflaterLevel = DEFAULT_COMPRESSION;
+    /**
+     * The level the current entry is deflated with.
+     */
+    private int entryLevel = DEFAULT_COMPRESSION;
     /**
      * Default compression method for next entry.
      *
@@ -243,6 +322,16 @@ public class ZipOutputStream extends FilterOutputStream {
      * @since 1.15
      */
     private long localDataStart = 0;
+    /**
+     * Where the sizes in the ZIP64 extra field of the current entry's
+     * local file header start, if it has one.
+     */
+    private long zip64SizesStart = 0;
+    /**
+     * Whether the current entry's local file header has a ZIP64 extra
+     * field reserved in case its unknown size turns out too large.
+     */
+    private boolean zip64Reserved;
 
     // CheckStyle:VisibilityModifier ON
     /**
@@ -295,6 +384,34 @@ public class ZipOutputStream extends FilterOutputStream {
     private UnicodeExtraFieldPolicy createUnicodeExtraFields =
             UnicodeExtraFieldPolicy.NEVER;
     private boolean currentIsRawEntry;
+    private AlignmentPolicy alignmentPolicy;
+    private Zip64Mode zip64Mode = Zip64Mode.AS_NEEDED;
+    private CompressionPolicy compressionPolicy;
+    /**
+     * First bytes of the current entry while its compression policy
+     * waits for them, null otherwise.
+     */
+    private byte[] sample;
+    private int sampleLength;
+    /**
+     * Number of threads deflating blocks of an entry, 1 deflates on
+     * the calling thread.
+     */
+    private int parallelism = 1;
+    private ExecutorService executor;
+    /**
+     * Compressed blocks of the current entry not yet written, in order.
+     */
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<>();
+    /**
+     * Whether the current entry is deflated in parallel blocks.
+     */
+    private boolean deflatingBlocks;
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private long blocksIn;
+    private long blocksOut;
 
 
     /**
@@ -335,6 +452,19 @@ public class ZipOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Continues an existing archive for {@link ZipUpdater}: writing starts
+     * at {@code position} of {@code raf}, the entries in front of it are
+     * registered with {@link #addExistingEntry}.
+     */
+    ZipOutputStream(RandomAccessFile raf, long position) throws IOException {
+        //noinspection ConstantConditions
+        super(null);
+        this.raf = raf;
+        raf.seek(position);
+        written = position;
+    }
+
     private static void putBytes(byte[] value, int start, int length, byte[] buf, int offset) {
         for (int i = 0; i < length; i++) {
             buf[offset++] = value[start + i];
@@ -478,16 +608,94 @@ public class ZipOutputStream extends FilterOutputStream {
      * @since 1.1
      */
     public void finish() throws IOException {
-        closeEntry();
-        cdOffset = written;
-        for (ZipEntry entry1 : entries) {
-            writeCentralFileHeader(entry1);
-        }
-        cdLength = written - cdOffset;
-        writeCentralDirectoryEnd();
-        offsets.clear();
-        entries.clear();
-        def.end();
+        try {
+            closeEntry();
+            cdOffset = written;
+            for (ZipEntry entry1 : entries) {
+                writeCentralFileHeader(entry1);
+            }
+            cdLength = written - cdOffset;
+            writeCentralDirectoryEnd();
+            if (raf != null) {
+                // an updated archive may have been longer
+                raf.setLength(raf.getFilePointer());
+            }
+            offsets.clear();
+            entries.clear();
+            zip64Entries.clear();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+            if (def != null) {
+                ZipPool.recycle(def);
+                def = null;
+            }
+        }
+    }
+
+    /**
+     * Sets how the data of STORED entries is aligned, for entries put
+     * with {@link #putNextEntry}, {@link #putNextRawEntry} and
+     * {@link #copyZipEntry} alike. The local file header is padded with
+     * an alignment extra field; other extra fields are kept.
+     * <p>
+     * <p>Defaults to null, no alignment; APK writers set
+     * {@link #APK_ALIGNMENT}.</p>
+     */
+    public void setAlignmentPolicy(AlignmentPolicy alignmentPolicy) {
+        this.alignmentPolicy = alignmentPolicy;
+    }
+
+    /**
+     * Sets the policy choosing method and level of entries put with
+     * {@link #putNextEntry} that don't specify a method, instead of
+     * {@link #setMethod} and {@link #setLevel}. Raw entries keep their
+     * data as it is.
+     * <p>
+     * <p>Defaults to null, every entry uses the stream's method and
+     * level.</p>
+     *
+     * @see AdaptiveCompressionPolicy
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets when ZIP64 extensions are used.
+     * <p>
+     * <p>With {@link Zip64Mode#AS_NEEDED}, the default, an entry gets a
+     * ZIP64 extra field in its local file header if it is known to be
+     * too large for 32 bit sizes when it is started: a raw entry, or one
+     * whose size has been set. When writing to a file, an entry of
+     * unknown size gets the extra field reserved as well and only uses
+     * it if it turns out that large. Writing to a stream, such an entry
+     * fails with a {@link Zip64RequiredException} instead; set its size
+     * up front or use {@link Zip64Mode#ALWAYS} then. The central
+     * directory and its end use ZIP64 records whenever the archive
+     * needs them.</p>
+     */
+    public void setZip64Mode(Zip64Mode zip64Mode) {
+        this.zip64Mode = zip64Mode;
+    }
+
+    /**
+     * Sets the number of threads deflating DEFLATED entries written
+     * with {@link #write}, for subsequent entries.
+     * <p>
+     * <p>With more than one thread entries are deflated in blocks of
+     * 128 KiB; the output then differs from single threaded
+     * compression, but not between thread counts. Raw entries are not
+     * affected. Defaults to 1.</p>
+     *
+     * @param parallelism the number of threads.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism < 1");
+        this.parallelism = parallelism;
     }
 
     /**
@@ -500,6 +708,9 @@ public class ZipOutputStream extends FilterOutputStream {
         if (entry == null) {
             return;
         }
+        if (sample != null) {
+            endSample(true);
+        }
 
         if (currentIsRawEntry)
             crc.reset();
@@ -507,14 +718,28 @@ public class ZipOutputStream extends FilterOutputStream {
             long realCrc = crc.getValue();
             crc.reset();
 
-            if (entry.getMethod() == DEFLATED) {
+            if (deflatingBlocks) {
+                submitBlock(true);
+                while (!pendingBlocks.isEmpty()) {
+                    writeBlock(pendingBlocks.removeFirst());
+                }
+                deflatingBlocks = false;
+                block = null;
+                previousBlock = null;
+
+                entry.setSize(blocksIn);
+                entry.setCompressedSize(blocksOut);
+                entry.setCrc(realCrc);
+
+                written += entry.getCompressedSize();
+            } else if (entry.getMethod() == DEFLATED) {
                 def.finish();
                 while (!def.finished()) {
                     deflate();
                 }
 
-                entry.setSize(adjustToLong(def.getTotalIn()));
-                entry.setCompressedSize(adjustToLong(def.getTotalOut()));
+                entry.setSize(def.getBytesRead());
+                entry.setCompressedSize(def.getBytesWritten());
                 entry.setCrc(realCrc);
 
                 def.reset();
@@ -544,17 +769,43 @@ public class ZipOutputStream extends FilterOutputStream {
                 entry.setCrc(realCrc);
             }
 
+            boolean zip64 = zip64Entries.contains(entry);
+            if (!zip64 && isZip64Required(entry)) {
+                if (!zip64Reserved) {
+                    throw new Zip64RequiredException(
+                            Zip64RequiredException.getEntryTooBigMessage(entry));
+                }
+                zip64Entries.add(entry);
+                zip64 = true;
+            }
+
             // If random access output, write the local file header containing
             // the correct CRC and compressed/uncompressed sizes
             if (raf != null) {
                 long save = raf.getFilePointer();
 
+                byte[] data;
+                if (zip64 && zip64Reserved) {
+                    // version needed to extract, 10 bytes before the CRC
+                    raf.seek(localDataStart - 10);
+                    data = new byte[SHORT];
+                    putShort(ZIP64_MIN_VERSION, data, 0);
+                    writeOut(data);
+                }
                 raf.seek(localDataStart);
-                byte[] data = new byte[12];
+                data = new byte[12];
                 putLong(entry.getCrc(), data, 0);
-                putLong(entry.getCompressedSize(), data, 4);
-                putLong(entry.getSize(), data, 8);
+                putLong(zip64 ? ZIP64_MAGIC : entry.getCompressedSize(), data, 4);
+                putLong(zip64 ? ZIP64_MAGIC : entry.getSize(), data, 8);
                 writeOut(data);
+                if (zip64 || zip64Reserved) {
+                    // an unused reserved field keeps the real sizes too
+                    raf.seek(zip64SizesStart);
+                    data = new byte[2 * DWORD];
+                    ZipEightByteInteger.putLong(entry.getSize(), data, 0);
+                    ZipEightByteInteger.putLong(entry.getCompressedSize(), data, DWORD);
+                    writeOut(data);
+                }
                 raf.seek(save);
             }
         }
@@ -565,22 +816,53 @@ public class ZipOutputStream extends FilterOutputStream {
 
     public void writeFully(InputStream is) throws IOException {
         int len;
-        byte[] b = new byte[BUFFER_SIZE];
-        while ((len = is.read(b)) > 0)
-            write(b, 0, len);
+        byte[] b = ZipPool.obtainBuffer();
+        try {
+            while ((len = is.read(b)) > 0)
+                write(b, 0, len);
+        } finally {
+            ZipPool.recycle(b);
+        }
     }
 
+    /**
+     * Copies an entry of {@code zipFile} without recompressing it.
+     * <p>
+     * <p>When writing to a file the compressed data is transferred
+     * between the two files with {@link FileChannel#transferTo} and
+     * never passes through {@link #writeRaw}, unless
+     * {@link #isRawTransferAllowed()} says otherwise.</p>
+     */
     public void copyZipEntry(ZipEntry zipEntry, ZipFile zipFile) throws IOException {
+        if (raf != null && isRawTransferAllowed()) {
+            putNextRawEntry(zipEntry);
+            written += zipFile.transferRawData(zipEntry, raf.getChannel());
+            closeEntry();
+            return;
+        }
         InputStream rawInputStream = zipFile.getRawInputStream(zipEntry);
         putNextRawEntry(zipEntry);
         int len;
-        byte[] b = new byte[BUFFER_SIZE];
-        while ((len = rawInputStream.read(b)) > 0) {
-            writeRaw(b, 0, len);
+        byte[] b = ZipPool.obtainBuffer();
+        try {
+            while ((len = rawInputStream.read(b)) > 0) {
+                writeRaw(b, 0, len);
+            }
+        } finally {
+            ZipPool.recycle(b);
         }
         closeEntry();
     }
 
+    /**
+     * Whether {@link #copyZipEntry} may transfer the data between files
+     * directly. Subclasses that need to see the copied data in
+     * {@link #writeRaw} return false.
+     */
+    protected boolean isRawTransferAllowed() {
+        return true;
+    }
+
     public void putNextEntry(String entryName) throws IOException {
         putNextEntry(new ZipEntry(entryName));
     }
@@ -600,13 +882,67 @@ public class ZipOutputStream extends FilterOutputStream {
 
         currentIsRawEntry = false;
 
+        if (entry.getTime() == -1) { // not specified
+            entry.setTime(System.currentTimeMillis());
+        }
+
+        entryLevel = level;
         //noinspection WrongConstant
-        if (entry.getMethod() == -1) { // not specified
-            entry.setMethod(method);
+        if (entry.getMethod() == -1 && compressionPolicy != null) {
+            int policyLevel = compressionPolicy.getLevel(entry);
+            if (policyLevel == CompressionPolicy.SAMPLE) {
+                // the local file header waits for the sample
+                sample = new byte[SAMPLE_SIZE];
+                sampleLength = 0;
+                return;
+            }
+            applyPolicyLevel(policyLevel);
         }
+        startEntryData();
+    }
 
-        if (entry.getTime() == -1) { // not specified
-            entry.setTime(System.currentTimeMillis());
+    /**
+     * Sets method and level of the current entry from a level chosen by
+     * the compression policy, 0 meaning STORED.
+     */
+    private void applyPolicyLevel(int policyLevel) {
+        if (policyLevel != 0) {
+            entry.setMethod(DEFLATED);
+            entryLevel = policyLevel;
+        } else if (raf != null || entry.getSize() != -1 && entry.getCrc() != -1) {
+            entry.setMethod(STORED);
+        } else {
+            // STORED needs size and CRC up front on a stream
+            entry.setMethod(DEFLATED);
+            entryLevel = Deflater.NO_COMPRESSION;
+        }
+    }
+
+    /**
+     * Decides the method of a sampled entry from its first bytes, writes
+     * the local file header and then the sampled bytes.
+     *
+     * @param complete whether the sample is the whole entry
+     */
+    private void endSample(boolean complete) throws IOException {
+        byte[] b = sample;
+        int length = sampleLength;
+        sample = null;
+        if (complete) {
+            CRC32 sampleCrc = new CRC32();
+            sampleCrc.update(b, 0, length);
+            entry.setSize(length);
+            entry.setCrc(sampleCrc.getValue());
+        }
+        applyPolicyLevel(compressionPolicy.getLevel(entry, b, length));
+        startEntryData();
+        writeEntryData(b, 0, length);
+    }
+
+    private void startEntryData() throws IOException {
+        //noinspection WrongConstant
+        if (entry.getMethod() == -1) { // not specified
+            entry.setMethod(method);
         }
 
         // Size/CRC not required if RandomAccessFile is used
@@ -623,9 +959,17 @@ public class ZipOutputStream extends FilterOutputStream {
             entry.setCompressedSize(entry.getSize());
         }
 
-        if (entry.getMethod() == DEFLATED && hasCompressionLevelChanged) {
-            def.setLevel(level);
-            hasCompressionLevelChanged = false;
+        if (entry.getMethod() == DEFLATED && deflaterLevel != entryLevel) {
+            def.setLevel(entryLevel);
+            deflaterLevel = entryLevel;
+        }
+        deflatingBlocks = parallelism > 1 && entry.getMethod() == DEFLATED;
+        if (deflatingBlocks) {
+            block = new byte[PARALLEL_BLOCK_SIZE];
+            blockLength = 0;
+            previousBlock = null;
+            blocksIn = 0;
+            blocksOut = 0;
         }
         writeLocalFileHeader(entry);
     }
@@ -652,13 +996,18 @@ public class ZipOutputStream extends FilterOutputStream {
             entry.setCompressedSize(entry.getSize());
         }
 
-        if (entry.getMethod() == DEFLATED && hasCompressionLevelChanged) {
-            def.setLevel(level);
-            hasCompressionLevelChanged = false;
-        }
         writeLocalFileHeader(entry);
     }
 
+    /**
+     * Lists an entry whose local file header and data are already at
+     * {@code headerOffset} in the central directory, without writing it.
+     */
+    void addExistingEntry(ZipEntry ze, long headerOffset) {
+        entries.add(ze);
+        offsets.put(ze, headerOffset);
+    }
+
     /**
      * Set the file comment.
      *
@@ -689,7 +1038,6 @@ public class ZipOutputStream extends FilterOutputStream {
             throw new IllegalArgumentException("Invalid compression level: "
                     + level);
         }
-        hasCompressionLevelChanged = (this.level != level);
         this.level = level;
     }
 
@@ -714,7 +1062,24 @@ public class ZipOutputStream extends FilterOutputStream {
      * @throws IOException on error
      */
     public void write(byte[] b, int offset, int length) throws IOException {
-        if (entry.getMethod() == DEFLATED) {
+        if (sample != null) {
+            int n = Math.min(length, SAMPLE_SIZE - sampleLength);
+            System.arraycopy(b, offset, sample, sampleLength, n);
+            sampleLength += n;
+            if (sampleLength < SAMPLE_SIZE) {
+                return;
+            }
+            endSample(false);
+            offset += n;
+            length -= n;
+        }
+        writeEntryData(b, offset, length);
+    }
+
+    private void writeEntryData(byte[] b, int offset, int length) throws IOException {
+        if (deflatingBlocks) {
+            writeToBlocks(b, offset, length);
+        } else if (entry.getMethod() == DEFLATED) {
             if (length > 0) {
                 if (!def.finished()) {
                     if (length <= DEFLATER_BLOCK_SIZE) {
@@ -860,6 +1225,20 @@ public class ZipOutputStream extends FilterOutputStream {
 
         offsets.put(ze, written);
 
+        removeZip64Extra(ze);
+        if (isZip64Required(ze) && zip64Mode == Zip64Mode.NEVER) {
+            throw new Zip64RequiredException(
+                    Zip64RequiredException.getEntryTooBigMessage(ze));
+        }
+        boolean zip64 = zip64Mode == Zip64Mode.ALWAYS || isZip64Required(ze);
+        if (zip64) {
+            zip64Entries.add(ze);
+        } else {
+            zip64Entries.remove(ze);
+        }
+        zip64Reserved = !zip64 && zip64Mode == Zip64Mode.AS_NEEDED && raf != null
+                && !currentIsRawEntry && ze.getSize() == -1;
+
         byte[] data = new byte[30 + name.limit()];
 
         putBytes(LFH_SIG, data, 0);
@@ -869,7 +1248,7 @@ public class ZipOutputStream extends FilterOutputStream {
         final int zipMethod = ze.getMethod();
 
         writeVersionNeededToExtractAndGeneralPurposeBits(data, 4, zipMethod,
-                !encodable && fallbackToUTF8);
+                !encodable && fallbackToUTF8, zip64);
         written += WORD;
 
         // compression method
@@ -884,14 +1263,24 @@ public class ZipOutputStream extends FilterOutputStream {
         // compressed length
         // uncompressed length
         localDataStart = written;
+        long size = 0;
+        long compressedSize = 0;
         if (currentIsRawEntry) {
             putLong(ze.getCrc(), data, 14);
-            putLong(ze.getCompressedSize(), data, 18);
-            putLong(ze.getSize(), data, 22);
+            size = ze.getSize();
+            compressedSize = ze.getCompressedSize();
         } else if (zipMethod != DEFLATED && raf == null) {
             putLong(ze.getCrc(), data, 14);
-            putLong(ze.getSize(), data, 18);
-            putLong(ze.getSize(), data, 22);
+            size = ze.getSize();
+            compressedSize = ze.getSize();
+        }
+        if (zip64) {
+            // the sizes go into the ZIP64 extra field
+            putLong(ZIP64_MAGIC, data, 18);
+            putLong(ZIP64_MAGIC, data, 22);
+        } else {
+            putLong(compressedSize, data, 18);
+            putLong(size, data, 22);
         }
 //        else {
 //            writeOut(LZERO);
@@ -908,13 +1297,16 @@ public class ZipOutputStream extends FilterOutputStream {
 
         // extra field length
         byte[] extra = ze.getLocalFileDataExtra();
-        if (ze.getMethod() == STORED) {
+        if (zip64 || zip64Reserved) {
+            zip64SizesStart = written + SHORT + name.limit() + WORD;
+            extra = concat(ExtraFieldUtils.mergeLocalFileDataData(new ZipExtraField[]{
+                    new Zip64ExtendedInformationExtraField(new ZipEightByteInteger(size),
+                            new ZipEightByteInteger(compressedSize))}), extra);
+        }
+        if (ze.getMethod() == STORED && alignmentPolicy != null) {
             // ZipAlign对齐优化
-            long len = written + SHORT + name.limit() + extra.length;
-            if (len % 4 != 0) {
-                int extraLen = 4 - (int) ((written + SHORT + name.limit()) % 4);
-                extra = new byte[extraLen];
-            }
+            extra = alignExtra(stripAlignmentExtra(extra),
+                    written + SHORT + name.limit(), alignmentPolicy.getAlignment(ze));
         }
         putShort(extra.length, data, 28);
         written += SHORT;
@@ -945,6 +1337,17 @@ public class ZipOutputStream extends FilterOutputStream {
         if (ze.getMethod() != DEFLATED || raf != null) {
             return;
         }
+        if (zip64Entries.contains(ze)) {
+            // sizes are eight bytes if the local file header has a ZIP64 field
+            byte[] data = new byte[WORD + WORD + DWORD + DWORD];
+            putBytes(DD_SIG, data, 0);
+            putLong(ze.getCrc(), data, 4);
+            ZipEightByteInteger.putLong(ze.getCompressedSize(), data, 8);
+            ZipEightByteInteger.putLong(ze.getSize(), data, 16);
+            writeOut(data);
+            written += data.length;
+            return;
+        }
         byte[] data = new byte[16];
         putBytes(DD_SIG, data, 0);
         putLong(entry.getCrc(), data, 4);
@@ -983,7 +1386,25 @@ public class ZipOutputStream extends FilterOutputStream {
         }
         ByteBuffer name = entryEncoding.encode(ze.getName());
 
+        long lfhOffset = offsets.get(ze);
+        boolean zip64Sizes = zip64Mode == Zip64Mode.ALWAYS
+                || zip64Entries.contains(ze) || isZip64Required(ze);
+        boolean zip64Offset = zip64Mode == Zip64Mode.ALWAYS || lfhOffset >= ZIP64_MAGIC;
+        if (zip64Offset && zip64Mode == Zip64Mode.NEVER) {
+            throw new Zip64RequiredException(ze.getName()
+                    + "'s local file header starts beyond 4GByte.");
+        }
+        removeZip64Extra(ze);
         byte[] extra = ze.getCentralDirectoryExtra();
+        if (zip64Sizes || zip64Offset) {
+            // only the values that don't fit their 32 bit fields
+            extra = concat(ExtraFieldUtils.mergeCentralDirectoryData(new ZipExtraField[]{
+                    new Zip64ExtendedInformationExtraField(
+                            zip64Sizes ? new ZipEightByteInteger(ze.getSize()) : null,
+                            zip64Sizes ? new ZipEightByteInteger(ze.getCompressedSize()) : null,
+                            zip64Offset ? new ZipEightByteInteger(lfhOffset) : null,
+                            null)}), extra);
+        }
 
         String comm = ze.getComment();
         if (comm == null) {
@@ -1000,12 +1421,13 @@ public class ZipOutputStream extends FilterOutputStream {
 
         // version made by
         // CheckStyle:MagicNumber OFF
-        putShort((ze.getPlatform() << 8) | 20, data, 4);
+        putShort((ze.getPlatform() << 8) | (zip64Sizes || zip64Offset ? ZIP64_MIN_VERSION : 20),
+                data, 4);
         written += SHORT;
 
 
         writeVersionNeededToExtractAndGeneralPurposeBits(data, 6, zipMethod,
-                !encodable && fallbackToUTF8);
+                !encodable && fallbackToUTF8, zip64Sizes || zip64Offset);
         written += WORD;
 
         // compression method
@@ -1020,8 +1442,8 @@ public class ZipOutputStream extends FilterOutputStream {
         // compressed length
         // uncompressed length
         putLong(ze.getCrc(), data, 16);
-        putLong(ze.getCompressedSize(), data, 20);
-        putLong(ze.getSize(), data, 24);
+        putLong(zip64Sizes ? ZIP64_MAGIC : ze.getCompressedSize(), data, 20);
+        putLong(zip64Sizes ? ZIP64_MAGIC : ze.getSize(), data, 24);
         // CheckStyle:MagicNumber OFF
         written += 12;
         // CheckStyle:MagicNumber ON
@@ -1051,7 +1473,7 @@ public class ZipOutputStream extends FilterOutputStream {
         written += WORD;
 
         // relative offset of LFH
-        putLong(offsets.get(ze), data, 42);
+        putLong(zip64Offset ? ZIP64_MAGIC : lfhOffset, data, 42);
         written += WORD;
 
         // file name
@@ -1076,16 +1498,27 @@ public class ZipOutputStream extends FilterOutputStream {
      * @since 1.1
      */
     protected void writeCentralDirectoryEnd() throws IOException {
+        boolean zip64 = zip64Mode == Zip64Mode.ALWAYS
+                || entries.size() >= ZIP64_MAGIC_SHORT
+                || cdOffset >= ZIP64_MAGIC || cdLength >= ZIP64_MAGIC;
+        if (zip64) {
+            if (zip64Mode == Zip64Mode.NEVER) {
+                throw new Zip64RequiredException("archive's size exceeds the limit"
+                        + " of 4GByte or it contains more than 65535 entries.");
+            }
+            writeZip64CentralDirectoryEnd();
+        }
         ByteBuffer data = this.zipEncoding.encode(comment);
 
         byte[] buf = new byte[22 + data.limit()];
         putBytes(EOCD_SIG, buf, 0);
 //        putBytes(ZERO, buf, 4);
 //        putBytes(ZERO, buf, 6);
-        putShort(entries.size(), buf, 8);
-        putShort(entries.size(), buf, 10);
-        putLong(cdLength, buf, 12);
-        putLong(cdOffset, buf, 16);
+        int count = Math.min(entries.size(), ZIP64_MAGIC_SHORT);
+        putShort(count, buf, 8);
+        putShort(count, buf, 10);
+        putLong(Math.min(cdLength, ZIP64_MAGIC), buf, 12);
+        putLong(Math.min(cdOffset, ZIP64_MAGIC), buf, 16);
         putShort(data.limit(), buf, 20);
         putBytes(data.array(), data.arrayOffset(), data.limit(), buf, 22);
         writeOut(buf);
@@ -1109,6 +1542,36 @@ public class ZipOutputStream extends FilterOutputStream {
 //        writeOut(data.array(), data.arrayOffset(), data.limit());
     }
 
+    /**
+     * Writes the &quot;ZIP64 end of central directory record&quot; and
+     * its locator, which precede the &quot;End of central dir
+     * record&quot; of a ZIP64 archive.
+     *
+     * @throws IOException on error
+     */
+    protected void writeZip64CentralDirectoryEnd() throws IOException {
+        long offset = written;
+        byte[] buf = new byte[56 + 20];
+        putBytes(ZIP64_EOCD_SIG, buf, 0);
+        // size of the record after this field
+        ZipEightByteInteger.putLong(44, buf, 4);
+        putShort(ZIP64_MIN_VERSION, buf, 12);
+        putShort(ZIP64_MIN_VERSION, buf, 14);
+        // disk numbers are 0
+        ZipEightByteInteger.putLong(entries.size(), buf, 24);
+        ZipEightByteInteger.putLong(entries.size(), buf, 32);
+        ZipEightByteInteger.putLong(cdLength, buf, 40);
+        ZipEightByteInteger.putLong(cdOffset, buf, 48);
+
+        putBytes(ZIP64_EOCD_LOC_SIG, buf, 56);
+        // disk of the record is 0
+        ZipEightByteInteger.putLong(offset, buf, 64);
+        // total number of disks
+        putLong(1, buf, 72);
+        writeOut(buf);
+        written += buf.length;
+    }
+
     /**
      * Write bytes to output or random access file.
      *
@@ -1138,6 +1601,172 @@ public class ZipOutputStream extends FilterOutputStream {
         }
     }
 
+    private void writeToBlocks(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, PARALLEL_BLOCK_SIZE - blockLength);
+            System.arraycopy(b, offset, block, blockLength, n);
+            blockLength += n;
+            offset += n;
+            length -= n;
+            if (blockLength == PARALLEL_BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Hands the current block to the pool, or deflates it right away
+     * if it is the only block of the entry. Writes finished blocks
+     * when too many are pending, so memory stays bounded.
+     */
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] input = block;
+        final int length = blockLength;
+        final byte[] dictionary = previousBlock;
+        final int blockLevel = entryLevel;
+        blocksIn += length;
+        previousBlock = input;
+        block = last ? null : new byte[PARALLEL_BLOCK_SIZE];
+        blockLength = 0;
+        if (last && pendingBlocks.isEmpty()) {
+            byte[] compressed = deflateBlock(input, length, dictionary, last, blockLevel);
+            writeOut(compressed);
+            blocksOut += compressed.length;
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(parallelism);
+        }
+        pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflateBlock(input, length, dictionary, last, blockLevel);
+            }
+        }));
+        while (pendingBlocks.size() > 2 * parallelism) {
+            writeBlock(pendingBlocks.removeFirst());
+        }
+    }
+
+    private void writeBlock(Future<byte[]> pending) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = pending.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to deflate " + entry.getName(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        writeOut(compressed);
+        blocksOut += compressed.length;
+    }
+
+    /**
+     * Deflates one block. Blocks but the last end with a sync flush
+     * so they can be concatenated; the dictionary makes matches across
+     * the block boundary possible.
+     */
+    private byte[] deflateBlock(byte[] input, int length, byte[] dictionary, boolean last, int level) {
+        Deflater deflater = ZipPool.obtainDeflater(level);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        }
+        deflater.setInput(input, 0, length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] b = new byte[DEFLATER_BLOCK_SIZE];
+        int len;
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                len = deflater.deflate(b);
+                out.write(b, 0, len);
+            }
+        } else {
+            // a changed level may make the first call return early
+            do {
+                len = deflater.deflate(b, 0, b.length, Deflater.SYNC_FLUSH);
+                out.write(b, 0, len);
+            } while (len == b.length || !deflater.needsInput());
+        }
+        ZipPool.recycle(deflater);
+        return out.toByteArray();
+    }
+
+    /**
+     * Removes alignment fields and zero padding left by a previous
+     * alignment from local extra field data, keeping every other field.
+     */
+    private static byte[] stripAlignmentExtra(byte[] extra) {
+        ByteArrayOutputStream kept = new ByteArrayOutputStream(extra.length);
+        int off = 0;
+        while (off + WORD <= extra.length) {
+            int id = ZipShort.getValue(extra, off);
+            int size = ZipShort.getValue(extra, off + SHORT);
+            if (off + WORD + size > extra.length) {
+                // trailing padding that isn't a field
+                break;
+            }
+            if (id != ALIGNMENT_EXTRA_ID && (id != 0 || size != 0)) {
+                kept.write(extra, off, WORD + size);
+            }
+            off += WORD + size;
+        }
+        return kept.size() == extra.length ? extra : kept.toByteArray();
+    }
+
+    /**
+     * Appends an alignment field to {@code extra} if needed, so the entry
+     * data following it starts at a multiple of {@code alignment}.
+     *
+     * @param extraStart offset in the archive at which {@code extra} is
+     *                   going to be written
+     */
+    private static byte[] alignExtra(byte[] extra, long extraStart, int alignment) {
+        if (alignment <= 1) {
+            return extra;
+        }
+        long dataStart = extraStart + extra.length;
+        int padding = (int) ((alignment - dataStart % alignment) % alignment);
+        if (padding == 0) {
+            return extra;
+        }
+        while (padding < ALIGNMENT_EXTRA_MIN_SIZE) {
+            padding += alignment;
+        }
+        byte[] aligned = new byte[extra.length + padding];
+        System.arraycopy(extra, 0, aligned, 0, extra.length);
+        putShort(ALIGNMENT_EXTRA_ID, aligned, extra.length);
+        putShort(padding - WORD, aligned, extra.length + SHORT);
+        putShort(alignment, aligned, extra.length + WORD);
+        return aligned;
+    }
+
+    /**
+     * Whether the sizes of {@code ze}, as far as they are known, need
+     * ZIP64 extensions.
+     */
+    private static boolean isZip64Required(ZipEntry ze) {
+        return ze.getSize() >= ZIP64_MAGIC || ze.getCompressedSize() >= ZIP64_MAGIC;
+    }
+
+    /**
+     * Drops a ZIP64 extra field read from another archive; the one
+     * written is built from the entry's sizes and offset.
+     */
+    private static void removeZip64Extra(ZipEntry ze) {
+        if (ze.getExtraField(Zip64ExtendedInformationExtraField.ZIP64_ID) != null) {
+            ze.removeExtraField(Zip64ExtendedInformationExtraField.ZIP64_ID);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
     private void deflateUntilInputIsNeeded() throws IOException {
         while (!def.needsInput()) {
             deflate();
@@ -1146,7 +1775,8 @@ public class ZipOutputStream extends FilterOutputStream {
 
     private void writeVersionNeededToExtractAndGeneralPurposeBits(
             final byte[] data, int offset,
-            final int zipMethod, final boolean utfFallback)
+            final int zipMethod, final boolean utfFallback,
+            final boolean zip64)
             throws IOException {
 
         // CheckStyle:MagicNumber OFF
@@ -1159,6 +1789,9 @@ public class ZipOutputStream extends FilterOutputStream {
             // bit3 set to signal, we use a data descriptor
             generalPurposeFlag |= 8;
         }
+        if (zip64) {
+            versionNeededToExtract = ZIP64_MIN_VERSION;
+        }
         // CheckStyle:MagicNumber ON
 
         // version needed to extract
@@ -1167,6 +1800,66 @@ public class ZipOutputStream extends FilterOutputStream {
         putShort(generalPurposeFlag, data, offset + SHORT);
     }
 
+    /**
+     * When {@link ZipOutputStream} uses ZIP64 extensions.
+     */
+    public enum Zip64Mode {
+        /**
+         * Every entry and the archive get ZIP64 records.
+         */
+        ALWAYS,
+        /**
+         * Never use ZIP64, fail with a {@link Zip64RequiredException}
+         * instead.
+         */
+        NEVER,
+        /**
+         * Only where the classic format can't hold the values.
+         */
+        AS_NEEDED
+    }
+
+    /**
+     * Decides where the data of STORED entries starts.
+     */
+    public interface AlignmentPolicy {
+        /**
+         * @param ze the entry about to be written
+         * @return the alignment of the entry data in bytes, 1 for none.
+         */
+        int getAlignment(ZipEntry ze);
+    }
+
+    /**
+     * Chooses how each entry is compressed.
+     */
+    public interface CompressionPolicy {
+        /**
+         * Returned by {@link #getLevel(ZipEntry)} to decide from the
+         * first bytes of the entry instead.
+         */
+        int SAMPLE = -2;
+
+        /**
+         * @param ze the entry about to be written, by name
+         * @return a deflate level from 1 to 9 or
+         * {@link Deflater#DEFAULT_COMPRESSION}, 0 to store the entry,
+         * or {@link #SAMPLE}.
+         */
+        int getLevel(ZipEntry ze);
+
+        /**
+         * @param ze     the entry about to be written
+         * @param sample the first bytes of the entry
+         * @param length the number of sampled bytes, up to
+         *               {@link ZipOutputStream#SAMPLE_SIZE}, less only
+         *               if the entry is that short
+         * @return a deflate level from 1 to 9 or
+         * {@link Deflater#DEFAULT_COMPRESSION}, 0 to store the entry.
+         */
+        int getLevel(ZipEntry ze, byte[] sample, int length);
+    }
+
     /**
      * enum that represents the possible policies for creating Unicode
      * extra fields.
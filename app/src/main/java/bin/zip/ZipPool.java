@@ -0,0 +1,107 @@
+package bin.zip;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Shared pools of nowrap inflaters and deflaters and of I/O buffers.
+ * <p>
+ * Every entry read or written used to allocate its own zlib state and
+ * copy buffer, which adds up when copying tens of thousands of small
+ * entries. Objects are handed out by the {@code obtain} methods and given
+ * back with {@code recycle} once no longer used; anything beyond the pool
+ * limit is dropped (zlib state is ended). An object must not be used after
+ * it was recycled, nor recycled twice. Not recycling is allowed, the
+ * object is then just collected as before.
+ * <p>
+ * All methods are thread safe.
+ */
+public final class ZipPool {
+    /**
+     * Length of the pooled buffers.
+     */
+    public static final int BUFFER_SIZE = ZipOutputStream.BUFFER_SIZE;
+
+    private static final int MAX_POOLED =
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final Pool<Inflater> INFLATERS = new Pool<>();
+    private static final Pool<Deflater> DEFLATERS = new Pool<>();
+    private static final Pool<byte[]> BUFFERS = new Pool<>();
+
+    private ZipPool() {
+    }
+
+    /**
+     * A reset inflater for raw deflate data, as in zip entries.
+     */
+    public static Inflater obtainInflater() {
+        Inflater inflater = INFLATERS.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    public static void recycle(Inflater inflater) {
+        inflater.reset();
+        if (!INFLATERS.offer(inflater))
+            inflater.end();
+    }
+
+    /**
+     * A reset deflater writing raw deflate data at {@code level}.
+     */
+    public static Deflater obtainDeflater(int level) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null)
+            return new Deflater(level, true);
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    public static void recycle(Deflater deflater) {
+        deflater.reset();
+        if (!DEFLATERS.offer(deflater))
+            deflater.end();
+    }
+
+    /**
+     * A buffer of {@link #BUFFER_SIZE} bytes, its content is undefined.
+     */
+    public static byte[] obtainBuffer() {
+        byte[] buffer = BUFFERS.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Gives back a buffer from {@link #obtainBuffer()}, buffers of other
+     * lengths are ignored.
+     */
+    public static void recycle(byte[] buffer) {
+        if (buffer.length == BUFFER_SIZE)
+            BUFFERS.offer(buffer);
+    }
+
+    private static class Pool<T> {
+        private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+        // ConcurrentLinkedQueue.size() walks the whole queue
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T t = queue.poll();
+            if (t != null)
+                size.decrementAndGet();
+            return t;
+        }
+
+        boolean offer(T t) {
+            if (size.incrementAndGet() > MAX_POOLED) {
+                size.decrementAndGet();
+                return false;
+            }
+            queue.offer(t);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package bin.zip;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Changes a few entries of a large archive without rewriting it.
+ * <p>
+ * Unchanged entries stay where they are. Replaced and new entries are
+ * appended after the last entry, replacing the old central directory
+ * (and an APK Signing Block in front of it), and a fresh central
+ * directory and EOCD are written behind them. The space of replaced and
+ * removed entries is left unused until it exceeds the compaction
+ * threshold, then the archive is rewritten in full instead.
+ * <p>
+ * New entries are aligned and compressed for an APK by default, see
+ * {@link #setAlignmentPolicy} and {@link #setCompressionPolicy}.
+ * <p>
+ * The archive is updated in place, which isn't crash safe: the old
+ * central directory is overwritten first. With a separate target only
+ * the kept entries are copied, by the channels, to their old offsets;
+ * the space of the others is left as a hole. The source is left alone.
+ * Signatures are not updated, re-sign the result.
+ * <p>
+ * An updater commits once; open a new one for further changes.
+ */
+public class ZipUpdater implements Closeable {
+    private static final byte[] APK_SIG_BLOCK_MAGIC = {
+            'A', 'P', 'K', ' ', 'S', 'i', 'g', ' ', 'B', 'l', 'o', 'c', 'k', ' ', '4', '2'
+    };
+    /**
+     * General purpose flag of entries followed by a data descriptor.
+     */
+    private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+
+    private final File source;
+    private final File target;
+    private final ZipFile zipFile;
+    private final Map<String, EntryWriter> entries = new LinkedHashMap<>();
+    private final Set<String> removed = new HashSet<>();
+    private double compactionThreshold = 1;
+    private ZipOutputStream.AlignmentPolicy alignmentPolicy = ZipOutputStream.APK_ALIGNMENT;
+    private ZipOutputStream.CompressionPolicy compressionPolicy = new AdaptiveCompressionPolicy();
+    private boolean compacted;
+    private boolean committed;
+
+    /**
+     * Updates {@code file} in place.
+     */
+    public ZipUpdater(File file) throws IOException {
+        this(file, file);
+    }
+
+    /**
+     * Writes the updated archive to {@code target}, leaving
+     * {@code source} as it is.
+     */
+    public ZipUpdater(File source, File target) throws IOException {
+        this.source = source;
+        this.target = target;
+        zipFile = new ZipFile(source);
+    }
+
+    /**
+     * The archive being updated, to read the current entries.
+     */
+    public ZipFile getZipFile() {
+        return zipFile;
+    }
+
+    /**
+     * Rewrites the whole archive when more than {@code threshold} of it
+     * (0 to 1) would be unused space after the update. Defaults to 1,
+     * never compact.
+     */
+    public void setCompactionThreshold(double threshold) {
+        this.compactionThreshold = threshold;
+    }
+
+    /**
+     * See {@link ZipOutputStream#setAlignmentPolicy}. Defaults to
+     * {@link ZipOutputStream#APK_ALIGNMENT}, kept entries are not moved.
+     */
+    public void setAlignmentPolicy(ZipOutputStream.AlignmentPolicy alignmentPolicy) {
+        this.alignmentPolicy = alignmentPolicy;
+    }
+
+    /**
+     * See {@link ZipOutputStream#setCompressionPolicy}. Defaults to
+     * {@link AdaptiveCompressionPolicy}.
+     */
+    public void setCompressionPolicy(ZipOutputStream.CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    public void putEntry(String name, final byte[] data) {
+        putEntry(name, new EntryWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        });
+    }
+
+    /**
+     * Adds or replaces an entry, written by {@code writer} during
+     * {@link #commit()}.
+     */
+    public void putEntry(String name, EntryWriter writer) {
+        removed.remove(name);
+        entries.put(name, writer);
+    }
+
+    public void removeEntry(String name) {
+        entries.remove(name);
+        removed.add(name);
+    }
+
+    /**
+     * Whether the last {@link #commit()} rewrote the whole archive.
+     */
+    public boolean isCompacted() {
+        return compacted;
+    }
+
+    /**
+     * Writes the update.
+     *
+     * @throws IllegalStateException if already committed; {@link #getZipFile()}
+     *                               still shows the archive as it was before
+     */
+    public void commit() throws IOException {
+        if (committed)
+            throw new IllegalStateException("Already committed");
+        committed = true;
+        List<ZipEntry> kept = new ArrayList<>();
+        List<ZipEntry> moved = new ArrayList<>();
+        long liveBytes = 0;
+        byte[] flags = new byte[2];
+        for (Enumeration<ZipEntry> e = zipFile.getEntries(); e.hasMoreElements(); ) {
+            ZipEntry ze = e.nextElement();
+            if (entries.containsKey(ze.getName()) || removed.contains(ze.getName()))
+                continue;
+            long headerOffset = zipFile.getLocalHeaderOffset(ze);
+            zipFile.readFully(headerOffset + 6, flags, 0, flags.length);
+            if ((ZipShort.getValue(flags) & DATA_DESCRIPTOR_FLAG) != 0) {
+                // the new central directory won't announce the data
+                // descriptor, its local header has to be rewritten
+                moved.add(ze);
+            } else {
+                kept.add(ze);
+                liveBytes += zipFile.getDataOffset(ze) - headerOffset + ze.getCompressedSize();
+            }
+        }
+        long appendOffset = getContentsEnd();
+        compacted = appendOffset > 0 && (double) (appendOffset - liveBytes) / appendOffset > compactionThreshold;
+        if (compacted) {
+            rewrite();
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            if (!target.getCanonicalFile().equals(source.getCanonicalFile())) {
+                raf.setLength(0);
+                raf.setLength(appendOffset);
+                try (FileInputStream in = new FileInputStream(source)) {
+                    copyRanges(in.getChannel(), kept, raf.getChannel());
+                }
+            }
+            ZipOutputStream zos = new ZipOutputStream(raf, appendOffset);
+            zos.setZipEncoding(zipFile.getZipEncoding());
+            zos.setAlignmentPolicy(alignmentPolicy);
+            zos.setCompressionPolicy(compressionPolicy);
+            for (ZipEntry ze : kept) {
+                zos.addExistingEntry(ze, zipFile.getLocalHeaderOffset(ze));
+            }
+            writeEntries(zos, moved);
+            zos.finish();
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+
+    /**
+     * Writes a compact copy of the updated archive next to the target and
+     * renames it into place.
+     */
+    private void rewrite() throws IOException {
+        File tempFile = File.createTempFile(target.getName() + ".", ".tmp",
+                target.getAbsoluteFile().getParentFile());
+        boolean success = false;
+        try {
+            try (ZipOutputStream zos = new ZipOutputStream(tempFile)) {
+                zos.setZipEncoding(zipFile.getZipEncoding());
+                zos.setAlignmentPolicy(alignmentPolicy);
+                zos.setCompressionPolicy(compressionPolicy);
+                List<ZipEntry> copied = new ArrayList<>();
+                for (Enumeration<ZipEntry> e = zipFile.getEntries(); e.hasMoreElements(); ) {
+                    ZipEntry ze = e.nextElement();
+                    if (!entries.containsKey(ze.getName()) && !removed.contains(ze.getName()))
+                        copied.add(ze);
+                }
+                writeEntries(zos, copied);
+            }
+            if (target.exists() && !target.delete())
+                throw new IOException("Cannot replace " + target);
+            if (!tempFile.renameTo(target))
+                throw new IOException("Cannot rename " + tempFile + " to " + target);
+            success = true;
+        } finally {
+            if (!success)
+                tempFile.delete();
+        }
+    }
+
+    private void writeEntries(ZipOutputStream zos, List<ZipEntry> copied) throws IOException {
+        for (ZipEntry ze : copied) {
+            zos.copyZipEntry(ze, zipFile);
+        }
+        OutputStream entryOut = new EntryOutputStream(zos);
+        for (Map.Entry<String, EntryWriter> entry : entries.entrySet()) {
+            zos.putNextEntry(entry.getKey());
+            entry.getValue().write(entryOut);
+            zos.closeEntry();
+        }
+    }
+
+    /**
+     * End of the last entry's data: the start of the APK Signing Block
+     * if there is one, else of the central directory.
+     */
+    private long getContentsEnd() throws IOException {
+        long cdOffset = zipFile.getCentralDirectoryOffset();
+        if (cdOffset < APK_SIG_BLOCK_MAGIC.length + 8)
+            return cdOffset;
+        byte[] footer = new byte[APK_SIG_BLOCK_MAGIC.length + 8];
+        zipFile.readFully(cdOffset - footer.length, footer, 0, footer.length);
+        for (int i = 0; i < APK_SIG_BLOCK_MAGIC.length; i++) {
+            if (footer[8 + i] != APK_SIG_BLOCK_MAGIC[i])
+                return cdOffset;
+        }
+        long blockSize = ZipLong.getValue(footer, 0) | ZipLong.getValue(footer, 4) << 32;
+        long blockStart = cdOffset - blockSize - 8;
+        return blockStart >= 0 && blockSize >= footer.length ? blockStart : cdOffset;
+    }
+
+    /**
+     * Copies the local headers and data of {@code kept} to the same
+     * offsets, joining adjacent entries into one transfer, plus anything
+     * in front of the first entry.
+     */
+    private void copyRanges(FileChannel from, List<ZipEntry> kept, FileChannel to) throws IOException {
+        List<long[]> ranges = new ArrayList<>(kept.size() + 1);
+        long firstHeader = Long.MAX_VALUE;
+        for (Enumeration<ZipEntry> e = zipFile.getEntries(); e.hasMoreElements(); ) {
+            firstHeader = Math.min(firstHeader, zipFile.getLocalHeaderOffset(e.nextElement()));
+        }
+        if (firstHeader != Long.MAX_VALUE && firstHeader > 0)
+            ranges.add(new long[]{0, firstHeader});
+        for (ZipEntry ze : kept) {
+            ranges.add(new long[]{zipFile.getLocalHeaderOffset(ze),
+                    zipFile.getDataOffset(ze) + ze.getCompressedSize()});
+        }
+        Collections.sort(ranges, (a, b) -> Long.compare(a[0], b[0]));
+        long start = -1;
+        long end = -1;
+        for (long[] range : ranges) {
+            if (range[0] > end) {
+                if (start >= 0)
+                    transfer(from, start, end, to);
+                start = range[0];
+            }
+            end = Math.max(end, range[1]);
+        }
+        if (start >= 0)
+            transfer(from, start, end, to);
+    }
+
+    private static void transfer(FileChannel from, long start, long end, FileChannel to) throws IOException {
+        long position = start;
+        to.position(start);
+        while (position < end) {
+            long transferred = from.transferTo(position, end - position, to);
+            if (transferred <= 0)
+                throw new IOException("Source ended at " + position + " of " + end);
+            position += transferred;
+        }
+    }
+
+    public interface EntryWriter {
+        /**
+         * Writes the entry content. Closing {@code out} has no effect.
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Forwards to the current entry and ignores {@link #close()}.
+     */
+    private static class EntryOutputStream extends OutputStream {
+        private final ZipOutputStream zos;
+
+        EntryOutputStream(ZipOutputStream zos) {
+            this.zos = zos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            zos.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            zos.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package bin.zip.extrafield;
+
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+import bin.zip.ZipEightByteInteger;
+import bin.zip.ZipLong;
+import bin.zip.ZipShort;
+
+/**
+ * Holds size and other extended information for entries that use
+ * ZIP64 features (0x0001).
+ * <p>
+ * <pre>
+ *         Value      Size       Description
+ *         -----      ----       -----------
+ * (ZIP64) 0x0001     2 bytes    Tag for this "extra" block type
+ *         Size       2 bytes    Size of this "extra" block
+ *         Original
+ *         Size       8 bytes    Original uncompressed file size
+ *         Compressed
+ *         Size       8 bytes    Size of compressed data
+ *         Relative Header
+ *         Offset     8 bytes    Offset of local header record
+ *         Disk Start
+ *         Number     4 bytes    Number of the disk on which
+ *                               this file starts
+ * </pre>
+ * <p>
+ * <p>In the local file header both sizes are present, the header's
+ * 32 bit size fields are then 0xFFFFFFFF. In the central directory
+ * only the values whose 32 bit field is 0xFFFFFFFF are present, in
+ * the order above, so which ones these are can't be told from the
+ * field alone: {@link #parseFromCentralDirectoryData} makes a guess
+ * from the length and {@link #reparseCentralDirectoryData} fixes it
+ * once the header is known.</p>
+ */
+public class Zip64ExtendedInformationExtraField implements CentralDirectoryParsingZipExtraField {
+
+    public static final ZipShort ZIP64_ID = new ZipShort(0x0001);
+
+    private static final int WORD = 4;
+    private static final int DWORD = 8;
+    private static final byte[] EMPTY = new byte[0];
+
+    private ZipEightByteInteger size;
+    private ZipEightByteInteger compressedSize;
+    private ZipEightByteInteger relativeHeaderOffset;
+    private ZipLong diskStartNumber;
+
+    /**
+     * Raw central directory data, kept for
+     * {@link #reparseCentralDirectoryData}.
+     */
+    private byte[] rawCentralDirectoryData;
+
+    public Zip64ExtendedInformationExtraField() {
+    }
+
+    /**
+     * Creates the local file data form, with both sizes.
+     */
+    public Zip64ExtendedInformationExtraField(ZipEightByteInteger size,
+                                              ZipEightByteInteger compressedSize) {
+        this(size, compressedSize, null, null);
+    }
+
+    /**
+     * Creates a field with the given values, null for the ones to
+     * leave out.
+     */
+    public Zip64ExtendedInformationExtraField(ZipEightByteInteger size,
+                                              ZipEightByteInteger compressedSize,
+                                              ZipEightByteInteger relativeHeaderOffset,
+                                              ZipLong diskStartNumber) {
+        this.size = size;
+        this.compressedSize = compressedSize;
+        this.relativeHeaderOffset = relativeHeaderOffset;
+        this.diskStartNumber = diskStartNumber;
+    }
+
+    public ZipShort getHeaderId() {
+        return ZIP64_ID;
+    }
+
+    public ZipShort getLocalFileDataLength() {
+        return new ZipShort(size != null ? 2 * DWORD : 0);
+    }
+
+    public ZipShort getCentralDirectoryLength() {
+        return new ZipShort((size != null ? DWORD : 0)
+                + (compressedSize != null ? DWORD : 0)
+                + (relativeHeaderOffset != null ? DWORD : 0)
+                + (diskStartNumber != null ? WORD : 0));
+    }
+
+    public byte[] getLocalFileDataData() {
+        if (size == null) {
+            return EMPTY;
+        }
+        byte[] data = new byte[2 * DWORD];
+        ZipEightByteInteger.putLong(size.getValue(), data, 0);
+        if (compressedSize != null) {
+            // else a central directory field with the size alone
+            ZipEightByteInteger.putLong(compressedSize.getValue(), data, DWORD);
+        }
+        return data;
+    }
+
+    public byte[] getCentralDirectoryData() {
+        byte[] data = new byte[getCentralDirectoryLength().getValue()];
+        int off = 0;
+        if (size != null) {
+            ZipEightByteInteger.putLong(size.getValue(), data, off);
+            off += DWORD;
+        }
+        if (compressedSize != null) {
+            ZipEightByteInteger.putLong(compressedSize.getValue(), data, off);
+            off += DWORD;
+        }
+        if (relativeHeaderOffset != null) {
+            ZipEightByteInteger.putLong(relativeHeaderOffset.getValue(), data, off);
+            off += DWORD;
+        }
+        if (diskStartNumber != null) {
+            diskStartNumber.putLong(data, off);
+        }
+        return data;
+    }
+
+    public void parseFromLocalFileData(byte[] data, int offset, int length)
+            throws ZipException {
+        if (length == 0) {
+            // some writers leave an empty field behind
+            return;
+        }
+        if (length < 2 * DWORD) {
+            throw new ZipException("ZIP64 extended information must contain"
+                    + " both size values in the local file header.");
+        }
+        size = new ZipEightByteInteger(data, offset);
+        compressedSize = new ZipEightByteInteger(data, offset + DWORD);
+        int remaining = length - 2 * DWORD;
+        offset += 2 * DWORD;
+        if (remaining >= DWORD) {
+            relativeHeaderOffset = new ZipEightByteInteger(data, offset);
+            remaining -= DWORD;
+            offset += DWORD;
+        }
+        if (remaining >= WORD) {
+            diskStartNumber = new ZipLong(data, offset);
+        }
+    }
+
+    public void parseFromCentralDirectoryData(byte[] data, int offset, int length)
+            throws ZipException {
+        rawCentralDirectoryData = Arrays.copyOfRange(data, offset, offset + length);
+        // a guess, see reparseCentralDirectoryData
+        if (length >= 3 * DWORD + WORD) {
+            parseFromLocalFileData(data, offset, length);
+        } else if (length % DWORD == WORD) {
+            diskStartNumber = new ZipLong(data, offset + length - WORD);
+        } else if (length == 3 * DWORD) {
+            size = new ZipEightByteInteger(data, offset);
+            compressedSize = new ZipEightByteInteger(data, offset + DWORD);
+            relativeHeaderOffset = new ZipEightByteInteger(data, offset + 2 * DWORD);
+        } else if (length == 2 * DWORD) {
+            size = new ZipEightByteInteger(data, offset);
+            compressedSize = new ZipEightByteInteger(data, offset + DWORD);
+        } else if (length == DWORD) {
+            size = new ZipEightByteInteger(data, offset);
+        }
+    }
+
+    /**
+     * Parses the central directory data again, now knowing which of
+     * the central file header's fields are 0xFFFFFFFF (or 0xFFFF for
+     * the disk number) and so present here.
+     *
+     * @throws ZipException if the field is too short for them
+     */
+    public void reparseCentralDirectoryData(boolean hasSize,
+                                            boolean hasCompressedSize,
+                                            boolean hasRelativeHeaderOffset,
+                                            boolean hasDiskStartNumber)
+            throws ZipException {
+        if (rawCentralDirectoryData == null) {
+            return;
+        }
+        int expected = (hasSize ? DWORD : 0)
+                + (hasCompressedSize ? DWORD : 0)
+                + (hasRelativeHeaderOffset ? DWORD : 0)
+                + (hasDiskStartNumber ? WORD : 0);
+        if (rawCentralDirectoryData.length < expected) {
+            throw new ZipException("central directory ZIP64 extended"
+                    + " information extra field's length doesn't match"
+                    + " central directory data.  Expected length "
+                    + expected + " but is "
+                    + rawCentralDirectoryData.length);
+        }
+        int offset = 0;
+        size = null;
+        compressedSize = null;
+        relativeHeaderOffset = null;
+        diskStartNumber = null;
+        if (hasSize) {
+            size = new ZipEightByteInteger(rawCentralDirectoryData, offset);
+            offset += DWORD;
+        }
+        if (hasCompressedSize) {
+            compressedSize = new ZipEightByteInteger(rawCentralDirectoryData, offset);
+            offset += DWORD;
+        }
+        if (hasRelativeHeaderOffset) {
+            relativeHeaderOffset = new ZipEightByteInteger(rawCentralDirectoryData, offset);
+            offset += DWORD;
+        }
+        if (hasDiskStartNumber) {
+            diskStartNumber = new ZipLong(rawCentralDirectoryData, offset);
+        }
+    }
+
+    /**
+     * The uncompressed size, null if not present.
+     */
+    public ZipEightByteInteger getSize() {
+        return size;
+    }
+
+    public void setSize(ZipEightByteInteger size) {
+        this.size = size;
+    }
+
+    /**
+     * The compressed size, null if not present.
+     */
+    public ZipEightByteInteger getCompressedSize() {
+        return compressedSize;
+    }
+
+    public void setCompressedSize(ZipEightByteInteger compressedSize) {
+        this.compressedSize = compressedSize;
+    }
+
+    /**
+     * The offset of the local file header, null if not present.
+     */
+    public ZipEightByteInteger getRelativeHeaderOffset() {
+        return relativeHeaderOffset;
+    }
+
+    public void setRelativeHeaderOffset(ZipEightByteInteger relativeHeaderOffset) {
+        this.relativeHeaderOffset = relativeHeaderOffset;
+    }
+
+    /**
+     * The disk start number, null if not present.
+     */
+    public ZipLong getDiskStartNumber() {
+        return diskStartNumber;
+    }
+
+    public void setDiskStartNumber(ZipLong diskStartNumber) {
+        this.diskStartNumber = diskStartNumber;
+    }
+}
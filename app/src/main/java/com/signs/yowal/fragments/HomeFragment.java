@@ -32,6 +32,7 @@ import com.developer.filepicker.model.DialogConfigs;
 import com.developer.filepicker.model.DialogProperties;
 import com.developer.filepicker.view.FilePickerDialog;
 import com.mcal.apkkiller.R;
+import com.signs.yowal.utils.AndroidHookResources;
 import com.signs.yowal.utils.BinSignatureTool;
 import com.signs.yowal.utils.DensityUtil;
 import com.signs.yowal.utils.MyAppInfo;
@@ -250,13 +251,13 @@ public class HomeFragment extends Fragment {
                 new File(outApk);
                 try {
                     if (Preferences.getBinMtSignatureKill()) {
-                        BinSignatureTool binSignatureTool = new BinSignatureTool(getContext());
+                        BinSignatureTool binSignatureTool = new BinSignatureTool(AndroidHookResources.get(getContext()));
                         binSignatureTool.setPath(srcApk, outApk);
-                        binSignatureTool.Kill();
+                        binSignatureTool.process();
                     } else if (Preferences.getSuperSignatureKill()) {
-                        SuperSignatureTool signatureTool = new SuperSignatureTool(getContext());
+                        SuperSignatureTool signatureTool = new SuperSignatureTool(AndroidHookResources.get(getContext()));
                         signatureTool.setPath(srcApk, outApk);
-                        signatureTool.Kill();
+                        signatureTool.process();
                     }
                     toast("Обработка завершена, подпишите самостоятельно" + outApk);
                     dialogFinished();
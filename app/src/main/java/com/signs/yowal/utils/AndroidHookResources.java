@@ -0,0 +1,48 @@
+package com.signs.yowal.utils;
+
+import android.content.Context;
+
+import com.mcal.apkkiller.R;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+public class AndroidHookResources extends HookResources {
+    private static AndroidHookResources instance;
+
+    private final Context mContext;
+
+    private AndroidHookResources(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized AndroidHookResources get(@NotNull Context context) {
+        if (instance == null)
+            instance = new AndroidHookResources(context.getApplicationContext());
+        return instance;
+    }
+
+    @Override
+    protected InputStream open(@NotNull String name) throws FileNotFoundException {
+        int id;
+        switch (name) {
+            case HEAVENLY_HOOK:
+                id = R.raw.heavenly_hook;
+                break;
+            case MT_HOOK_APP:
+                id = R.raw.mt_hook_app;
+                break;
+            case SUPER_HOOK_APP:
+                id = R.raw.super_hook_app;
+                break;
+            case SUPER_HOOK:
+                id = R.raw.super_hook;
+                break;
+            default:
+                throw new FileNotFoundException(name);
+        }
+        return mContext.getResources().openRawResource(id);
+    }
+}
@@ -0,0 +1,167 @@
+package com.signs.yowal.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import bin.zip.AdaptiveCompressionPolicy;
+import bin.zip.ZipEntry;
+import bin.zip.ZipFile;
+import bin.zip.ZipOutputStream;
+
+/**
+ * Streams a patched copy of an APK in exactly one read pass over the source
+ * archive and one write pass over the output.
+ * <p>
+ * New and replaced entries are written first, in the order they were put,
+ * followed by every source entry that was neither replaced nor excluded.
+ * Source entries are copied raw, without inflating them; new entries are
+ * compressed as {@link AdaptiveCompressionPolicy} decides.
+ */
+public class ApkRewriter {
+    private final ZipFile zipFile;
+    private final Map<String, EntryWriter> entries = new LinkedHashMap<>();
+    private final List<String> excludedPrefixes = new ArrayList<>();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int copiedEntries;
+    private long copiedBytes;
+
+    public ApkRewriter(ZipFile zipFile) {
+        this.zipFile = zipFile;
+    }
+
+    public void putEntry(String name, byte[] data) {
+        entries.put(name, out -> out.write(data));
+    }
+
+    /**
+     * Adds or replaces an entry whose content is produced while the output
+     * is being written, so large payloads never have to be buffered or
+     * staged in a temporary file.
+     */
+    public void putEntry(String name, EntryWriter writer) {
+        entries.put(name, writer);
+    }
+
+    /**
+     * Number of threads deflating the new entries, see
+     * {@link ZipOutputStream#setParallelism(int)}. Defaults to the number
+     * of processors.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Drops every source entry whose name starts with the given prefix.
+     */
+    public void exclude(String prefix) {
+        excludedPrefixes.add(prefix);
+    }
+
+    /**
+     * Writes to a uniquely named temporary file next to {@code outFile} and
+     * renames it into place, so concurrent jobs writing into the same
+     * directory never see each other's partial output.
+     */
+    public void writeTo(@NotNull File outFile) throws IOException {
+        File tempFile = File.createTempFile(outFile.getName() + ".", ".tmp", outFile.getAbsoluteFile().getParentFile());
+        boolean success = false;
+        try {
+            try (ZipOutputStream zos = new ZipOutputStream(tempFile)) {
+                zos.setParallelism(parallelism);
+                zos.setAlignmentPolicy(ZipOutputStream.APK_ALIGNMENT);
+                zos.setCompressionPolicy(new AdaptiveCompressionPolicy());
+                EntryOutputStream entryOut = new EntryOutputStream(zos);
+                for (Map.Entry<String, EntryWriter> entry : entries.entrySet()) {
+                    zos.putNextEntry(entry.getKey());
+                    entry.getValue().write(entryOut);
+                    zos.closeEntry();
+                }
+                copiedEntries = 0;
+                copiedBytes = 0;
+                Enumeration<ZipEntry> enumeration = zipFile.getEntries();
+                while (enumeration.hasMoreElements()) {
+                    ZipEntry ze = enumeration.nextElement();
+                    if (entries.containsKey(ze.getName()) || isExcluded(ze.getName()))
+                        continue;
+                    zos.copyZipEntry(ze, zipFile);
+                    copiedEntries++;
+                    copiedBytes += ze.getCompressedSize();
+                }
+            }
+            if (outFile.exists() && !outFile.delete())
+                throw new IOException("Cannot replace " + outFile);
+            if (!tempFile.renameTo(outFile))
+                throw new IOException("Cannot rename " + tempFile + " to " + outFile);
+            success = true;
+        } finally {
+            if (!success)
+                tempFile.delete();
+        }
+    }
+
+    /**
+     * Number of source entries copied by the last {@link #writeTo(File)}.
+     */
+    public int getCopiedEntries() {
+        return copiedEntries;
+    }
+
+    /**
+     * Compressed bytes of the source entries copied by the last
+     * {@link #writeTo(File)}.
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    private boolean isExcluded(@NotNull String name) {
+        for (String prefix : excludedPrefixes) {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    public interface EntryWriter {
+        /**
+         * Writes the entry content. Closing {@code out} has no effect.
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Forwards to the current output entry and ignores {@link #close()} so
+     * nested writers (e.g. a {@link ZipOutputStream} building an embedded
+     * archive) cannot finish the outer archive.
+     */
+    private static class EntryOutputStream extends OutputStream {
+        private final ZipOutputStream zos;
+
+        EntryOutputStream(ZipOutputStream zos) {
+            this.zos = zos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            zos.write(b);
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            zos.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.signs.yowal.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a signature tool over many APKs on a fixed-size worker pool.
+ * <p>
+ * Every job gets a fresh tool instance from the factory, so no per-APK state
+ * is shared; hook templates and payloads are shared through the
+ * {@link HookResources} the factory hands to the tools. Does not depend on
+ * Android and can be driven from {@link #main(String[])} on a plain JVM.
+ */
+public class BatchProcessor {
+    private final ToolFactory factory;
+    private final int parallelism;
+    private JobListener listener;
+
+    public BatchProcessor(ToolFactory factory, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism < 1");
+        this.factory = factory;
+        this.parallelism = parallelism;
+    }
+
+    public void setJobListener(JobListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Processes every {@code *.apk} in {@code inputDir}, writing
+     * {@code <name>_kill.apk} into {@code outputDir}.
+     */
+    public List<Job> processDirectory(@NotNull File inputDir, @NotNull File outputDir) throws InterruptedException {
+        File[] files = inputDir.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".apk"));
+        if (files == null)
+            throw new IllegalArgumentException("Not a directory: " + inputDir);
+        Arrays.sort(files);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new IllegalArgumentException("Cannot create " + outputDir);
+        List<Job> jobs = new ArrayList<>(files.length);
+        for (File file : files) {
+            String name = file.getName();
+            jobs.add(new Job(file, new File(outputDir, name.substring(0, name.length() - 4) + "_kill.apk")));
+        }
+        return process(jobs);
+    }
+
+    public List<Job> process(@NotNull List<Job> jobs) throws InterruptedException {
+        int workers = Math.min(parallelism, Math.max(1, jobs.size()));
+        // the processors are shared out between the jobs running at once
+        int toolParallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>(jobs.size());
+            for (Job job : jobs) {
+                futures.add(executor.submit(() -> run(job, toolParallelism)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return jobs;
+    }
+
+    private void run(@NotNull Job job, int toolParallelism) {
+        long start = System.nanoTime();
+        try {
+            PatchTool tool = factory.create();
+            tool.setMetrics(job.metrics);
+            tool.setParallelism(toolParallelism);
+            tool.setPath(job.input.getPath(), job.output.getPath());
+            tool.process();
+        } catch (Throwable th) {
+            job.error = th;
+        }
+        job.durationMillis = (System.nanoTime() - start) / 1000000;
+        JobListener listener = this.listener;
+        if (listener != null)
+            listener.onJobFinished(job);
+    }
+
+    /**
+     * Returns a JSON array with the outcome and the per-phase metrics of
+     * every job.
+     */
+    public static String toJson(@NotNull List<Job> jobs) {
+        StringBuilder sb = new StringBuilder("[");
+        for (Job job : jobs) {
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append("\n{\"input\":").append(jsonString(job.input.getPath()))
+                    .append(",\"output\":").append(jsonString(job.output.getPath()))
+                    .append(",\"success\":").append(job.isSuccess());
+            if (!job.isSuccess())
+                sb.append(",\"error\":").append(jsonString(String.valueOf(job.error)));
+            sb.append(",\"durationMillis\":").append(job.durationMillis)
+                    .append(",\"phases\":").append(job.metrics.toJson()).append('}');
+        }
+        return sb.append("\n]\n").toString();
+    }
+
+    private static String jsonString(@NotNull String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Usage: {@code <bin|super|heavenly> <hook resources dir> <input dir> <output dir> [threads]}
+     * <p>
+     * Writes {@code report.json} (see {@link #toJson(List)}) into the output
+     * directory.
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: BatchProcessor <bin|super|heavenly> <hook resources dir> <input dir> <output dir> [threads]");
+            System.exit(2);
+        }
+        HookResources resources = new DirectoryHookResources(new File(args[1]));
+        ToolFactory factory;
+        switch (args[0]) {
+            case "bin":
+                factory = () -> new BinSignatureTool(resources);
+                break;
+            case "super":
+                factory = () -> new SuperSignatureTool(resources);
+                break;
+            case "heavenly":
+                factory = () -> new SignatureTool(resources);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + args[0]);
+        }
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        BatchProcessor processor = new BatchProcessor(factory, threads);
+        processor.setJobListener(job -> System.out.println((job.isSuccess() ? "OK   " : "FAIL ")
+                + job.getInput() + " (" + job.getDurationMillis() + " ms)"
+                + (job.isSuccess() ? "" : ": " + job.getError())));
+        File outputDir = new File(args[3]);
+        List<Job> jobs = processor.processDirectory(new File(args[2]), outputDir);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(outputDir, "report.json")),
+                StandardCharsets.UTF_8)) {
+            writer.write(toJson(jobs));
+        }
+        int failed = 0;
+        for (Job job : jobs) {
+            if (!job.isSuccess())
+                failed++;
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    public interface ToolFactory {
+        PatchTool create();
+    }
+
+    public interface JobListener {
+        /**
+         * Called on the worker thread that ran the job.
+         */
+        void onJobFinished(Job job);
+    }
+
+    public static class Job {
+        private final File input;
+        private final File output;
+        private final PatchMetrics metrics = new PatchMetrics();
+        private volatile Throwable error;
+        private volatile long durationMillis;
+
+        public Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        public File getInput() {
+            return input;
+        }
+
+        public File getOutput() {
+            return output;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public PatchMetrics getMetrics() {
+            return metrics;
+        }
+    }
+}
@@ -8,20 +8,17 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jf.dexlib2.dexbacked.raw.ItemType;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.cert.Certificate;
-import java.util.ArrayList;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
-import bin.xml.decode.AXmlDecoder;
-import bin.xml.decode.AXmlResourceParser;
-import bin.xml.decode.XmlPullParser;
+import bin.xml.decode.ManifestFacts;
+import bin.xml.edit.AXmlEditor;
 
 public class BinPlusSignatureTool {
     private boolean customApplication = false;
@@ -171,11 +168,6 @@ public class BinPlusSignatureTool {
         try (InputStream fis = mContext.getResources().openRawResource(R.raw.mt2_hook)) {
             String src = new String(StreamUtil.readBytes(fis), StandardCharsets.UTF_8);
             if (customApplication) {
-                if (customApplicationName.startsWith(".")) {
-                    if (packageName == null)
-                        throw new NullPointerException("Package name is null.");
-                    customApplicationName = packageName + customApplicationName;
-                }
                 customApplicationName = "L" + customApplicationName.replace('.', '/') + ";";
                 src = src.replace("Landroid/app/Application;", customApplicationName);
             }
@@ -195,89 +187,25 @@ public class BinPlusSignatureTool {
     }*/
 
     private byte @NotNull [] parseManifest(InputStream is) throws IOException {
-        AXmlDecoder axml = AXmlDecoder.decode(is);
-        AXmlResourceParser parser = new AXmlResourceParser();
-        parser.open(new ByteArrayInputStream(axml.getData()), axml.mTableStrings);
-        boolean success = false;
-
-        int type;
-        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
-            if (type != XmlPullParser.START_TAG)
-                continue;
-            if (parser.getName().equals("manifest")) {
-                int size = parser.getAttributeCount();
-                for (int i = 0; i < size; ++i) {
-                    if (parser.getAttributeName(i).equals("package")) {
-                        packageName = parser.getAttributeValue(i);
-                    }
-                }
-            } else if (parser.getName().equals("application")) {
-                int size = parser.getAttributeCount();
-                for (int i = 0; i < size; ++i) {
-                    if (parser.getAttributeNameResource(i) == 0x01010003) {
-                        customApplication = true;
-                        customApplicationName = parser.getAttributeValue(i);
-                        int index = axml.mTableStrings.getSize();
-                        byte[] data = axml.getData();
-                        int off = parser.currentAttributeStart + 20 * i;
-                        off += 8;
-                        FileUtils.writeInt(data, off, index);
-                        off += 8;
-                        FileUtils.writeInt(data, off, index);
-                    }
-                }
-                if (!customApplication) {
-                    int off = parser.currentAttributeStart;
-                    byte[] data = axml.getData();
-                    byte[] newData = new byte[data.length + 20];
-                    System.arraycopy(data, 0, newData, 0, off);
-                    System.arraycopy(data, off, newData, off + 20, data.length - off);
-
-                    // chunkSize
-                    int chunkSize = FileUtils.readInt(newData, off - 32);
-                    FileUtils.writeInt(newData, off - 32, chunkSize + 20);
-                    // attributeCount
-                    FileUtils.writeInt(newData, off - 8, size + 1);
-
-                    int idIndex = parser.findResourceID(0x01010003);
-                    if (idIndex == -1)
-                        throw new IOException("idIndex == -1");
-
-                    boolean isMax = true;
-                    for (int i = 0; i < size; ++i) {
-                        int id = parser.getAttributeNameResource(i);
-                        if (id > 0x01010003) {
-                            isMax = false;
-                            if (i != 0) {
-                                System.arraycopy(newData, off + 20, newData, off, 20 * i);
-                                off += 20 * i;
-                            }
-                            break;
-                        }
-                    }
-                    if (isMax) {
-                        System.arraycopy(newData, off + 20, newData, off, 20 * size);
-                        off += 20 * size;
-                    }
-
-                    FileUtils.writeInt(newData, off, axml.mTableStrings.find("http://schemas.android.com/apk/res/android"));
-                    FileUtils.writeInt(newData, off + 4, idIndex);
-                    FileUtils.writeInt(newData, off + 8, axml.mTableStrings.getSize());
-                    FileUtils.writeInt(newData, off + 12, 0x03000008);
-                    FileUtils.writeInt(newData, off + 16, axml.mTableStrings.getSize());
-                    axml.setData(newData);
+        AXmlEditor editor = AXmlEditor.read(is);
+        for (AXmlEditor.Element element : editor.getElements()) {
+            String name = element.getName();
+            if (name.equals("manifest")) {
+                int i = element.findAttribute("package");
+                if (i != -1)
+                    packageName = element.getAttributeValue(i);
+            } else if (name.equals("application")) {
+                int i = element.findAttribute(0x01010003);
+                if (i != -1) {
+                    customApplication = true;
+                    customApplicationName = ManifestFacts.qualify(packageName, element.getAttributeValue(i));
+                    element.setAttributeValue(i, "bin.mt.apksignaturekillerplus.HookApplication");
+                } else {
+                    element.insertAttribute(AXmlEditor.ANDROID_NS, "name", 0x01010003, "bin.mt.apksignaturekillerplus.HookApplication");
                 }
-                success = true;
-                break;
+                return editor.toByteArray();
             }
         }
-        if (!success)
-            throw new IOException();
-        ArrayList<String> list = new ArrayList<>(axml.mTableStrings.getSize());
-        axml.mTableStrings.getStrings(list);
-        list.add("bin.mt.apksignaturekillerplus.HookApplication");
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        axml.write(list, baos);
-        return baos.toByteArray();
+        throw new IOException();
     }
 }
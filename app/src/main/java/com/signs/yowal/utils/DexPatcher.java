@@ -0,0 +1,340 @@
+package com.signs.yowal.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import bin.util.StreamUtil;
+import bin.zip.ZipEntry;
+import bin.zip.ZipFile;
+
+/**
+ * Injects hook classes into a multi-dex APK.
+ * <p>
+ * The hook is written into {@code classes.dex}, replacing any old definitions
+ * of the hook classes there. Legacy multidex requires the application class
+ * to be in {@code classes.dex}, so the patch fails if the hook doesn't fit
+ * under its 64K reference limits. The other dex files are neither read nor
+ * written and are left for the caller to copy through untouched.
+ * <p>
+ * Append mode is for APKs with {@code minSdkVersion >= 21}, where the runtime
+ * loads every {@code classesN.dex} natively. The {@code classesN.dex} entries
+ * are scanned in parallel for an older hook, looking only at their string,
+ * type and class tables; stored entries are read in place, deflated ones
+ * still have to be inflated. The hook goes into the dex that already defines
+ * one of the hook classes, or else into a new dex holding only the hook,
+ * named after the first free index ({@code classes2.dex} next to
+ * {@code classes.dex} and {@code classes3.dex}). Unless an older hook has to
+ * be replaced no existing dex is decoded and re-encoded, and the patch costs
+ * only as much as the hook itself.
+ */
+public class DexPatcher {
+    private static final String PRIMARY_DEX = "classes.dex";
+    private static final Pattern DEX_NAME = Pattern.compile("classes(\\d*)\\.dex");
+    private static final int MAX_REFS = 0x10000;
+
+    private final ZipFile zipFile;
+    private final HookSource hookSource;
+    private final Opcodes opcodes = Opcodes.getDefault();
+    private boolean appendMode = false;
+    private PatchMetrics metrics = new PatchMetrics();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    public DexPatcher(ZipFile zipFile, HookSource hookSource) {
+        this.zipFile = zipFile;
+        this.hookSource = hookSource;
+    }
+
+    public void setAppendMode(boolean appendMode) {
+        this.appendMode = appendMode;
+    }
+
+    public void setMetrics(PatchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Number of threads scanning the dex files in append mode. Defaults to
+     * the number of processors.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public PatchedDex patch() throws Exception {
+        byte[] hookData = buildDex(null, null);
+        DexBackedDexFile hookDex = new DexBackedDexFile(opcodes, hookData);
+        Set<String> hookTypes = new HashSet<>();
+        for (DexBackedClassDef classDef : hookDex.getClasses()) {
+            hookTypes.add(classDef.getType());
+        }
+
+        if (!appendMode) {
+            if (zipFile.getEntry(PRIMARY_DEX) == null)
+                return new PatchedDex(PRIMARY_DEX, hookData);
+            DexBackedDexFile primary = loadDex(PRIMARY_DEX);
+            if (!definesAny(primary, hookTypes) && !canHold(primary, hookDex))
+                throw new IOException(PRIMARY_DEX + " has no room for the hook, legacy multidex needs it there");
+            return new PatchedDex(PRIMARY_DEX, buildDex(primary, hookTypes));
+        }
+
+        List<String> names = dexNames();
+        String target = findDefining(names, hookTypes);
+        if (target != null)
+            return new PatchedDex(target, buildDex(loadDex(target), hookTypes));
+        int next = 1;
+        for (String name : names) {
+            int index = indexOf(name);
+            if (index == next)
+                next++;
+            else if (index > next)
+                break;
+        }
+        return new PatchedDex(next == 1 ? PRIMARY_DEX : "classes" + next + ".dex", hookData);
+    }
+
+    /**
+     * The {@code classesN.dex} entries, by index.
+     */
+    private @NotNull List<String> dexNames() {
+        List<String> names = new ArrayList<>();
+        Enumeration<ZipEntry> entries = zipFile.getEntries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (DEX_NAME.matcher(name).matches())
+                names.add(name);
+        }
+        Collections.sort(names, (a, b) -> Integer.compare(indexOf(a), indexOf(b)));
+        return names;
+    }
+
+    private static int indexOf(String dexName) {
+        Matcher matcher = DEX_NAME.matcher(dexName);
+        matcher.matches();
+        String number = matcher.group(1);
+        return number.isEmpty() ? 1 : Integer.parseInt(number);
+    }
+
+    /**
+     * The first of {@code names} that defines one of {@code hookTypes}, null
+     * if none does.
+     */
+    private @Nullable String findDefining(@NotNull List<String> names, Set<String> hookTypes) throws Exception {
+        if (names.isEmpty())
+            return null;
+        int threads = Math.min(names.size(), parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>(names.size());
+            for (String name : names) {
+                futures.add(executor.submit(() -> definesAny(readDex(name), hookTypes)));
+            }
+            for (int i = 0; i < names.size(); i++) {
+                try {
+                    if (futures.get(i).get())
+                        return names.get(i);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+            return null;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The raw dex, mapped in place when the entry is stored.
+     */
+    private @NotNull ByteBuffer readDex(String name) throws IOException {
+        ZipEntry entry = zipFile.getEntry(name);
+        ByteBuffer mapped = zipFile.getMappedData(entry);
+        if (mapped != null)
+            return mapped;
+        try (PatchMetrics.Span span = metrics.begin(PatchMetrics.Phase.DEX_LOAD);
+             InputStream is = zipFile.getInputStream(entry)) {
+            span.addBytesRead(entry.getSize());
+            span.addEntries(1);
+            return ByteBuffer.wrap(StreamUtil.readBytes(is, entry.getSize()));
+        }
+    }
+
+    private @NotNull DexBackedDexFile loadDex(String name) throws IOException {
+        ZipEntry entry = zipFile.getEntry(name);
+        try (PatchMetrics.Span span = metrics.begin(PatchMetrics.Phase.DEX_LOAD);
+             InputStream is = new BufferedInputStream(zipFile.getInputStream(entry))) {
+            span.addBytesRead(entry.getSize());
+            span.addEntries(1);
+            return DexBackedDexFile.fromInputStream(opcodes, is);
+        }
+    }
+
+    private byte @NotNull [] buildDex(@Nullable DexBackedDexFile base, @Nullable Set<String> replacedTypes) throws Exception {
+        try (PatchMetrics.Span span = metrics.begin(PatchMetrics.Phase.DEX_WRITE)) {
+            DexBuilder dexBuilder = new DexBuilder(opcodes);
+            hookSource.internHook(dexBuilder);
+            if (base != null) {
+                for (DexBackedClassDef classDef : base.getClasses()) {
+                    if (replacedTypes != null && replacedTypes.contains(classDef.getType()))
+                        continue;
+                    dexBuilder.internClassDef(classDef);
+                }
+            }
+            MemoryDataStore store = new MemoryDataStore();
+            dexBuilder.writeTo(store);
+            span.addBytesWritten(store.getSize());
+            return Arrays.copyOf(store.getBufferData(), store.getSize());
+        }
+    }
+
+    private static boolean definesAny(@NotNull DexBackedDexFile dex, Set<String> types) {
+        for (DexBackedClassDef classDef : dex.getClasses()) {
+            if (types.contains(classDef.getType()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Upper bound: assumes none of the hook's references are shared.
+     */
+    private static boolean canHold(@NotNull DexBackedDexFile dex, @NotNull DexBackedDexFile hookDex) {
+        return dex.getTypeCount() + hookDex.getTypeCount() <= MAX_REFS
+                && dex.getFieldCount() + hookDex.getFieldCount() <= MAX_REFS
+                && dex.getMethodCount() + hookDex.getMethodCount() <= MAX_REFS;
+    }
+
+    /**
+     * Same as {@link #definesAny(DexBackedDexFile, Set)} on a raw dex, but
+     * only the descriptors of {@code types} are looked up in the sorted
+     * string_ids and type_ids tables, then class_defs is searched for their
+     * type indices. Nothing else in the dex is read.
+     */
+    private static boolean definesAny(@NotNull ByteBuffer dex, Set<String> types) throws IOException {
+        dex.order(ByteOrder.LITTLE_ENDIAN);
+        if (dex.limit() < 0x70 || dex.getInt(0) != 0x0a786564)
+            throw new IOException("Not a dex");
+        int stringCount = dex.getInt(0x38);
+        int stringIdsOff = dex.getInt(0x3c);
+        int typeCount = dex.getInt(0x40);
+        int typeIdsOff = dex.getInt(0x44);
+        int classCount = dex.getInt(0x60);
+        int classDefsOff = dex.getInt(0x64);
+
+        Set<Integer> typeIndices = new HashSet<>();
+        for (String type : types) {
+            int string = findString(dex, stringIdsOff, stringCount, toMutf8(type));
+            if (string < 0)
+                continue;
+            // type_ids is sorted by string index
+            int low = 0, high = typeCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Integer.compare(dex.getInt(typeIdsOff + mid * 4), string);
+                if (cmp == 0) {
+                    typeIndices.add(mid);
+                    break;
+                }
+                if (cmp < 0)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+        }
+        if (typeIndices.isEmpty())
+            return false;
+        for (int i = 0; i < classCount; i++) {
+            if (typeIndices.contains(dex.getInt(classDefsOff + i * 32)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Index of the string equal to {@code key} in the sorted string_ids
+     * table, or -1. MUTF-8 byte order matches the UTF-16 order of the table
+     * for every string without a NUL, which a type descriptor never has.
+     */
+    private static int findString(ByteBuffer dex, int stringIdsOff, int count, byte[] key) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int pos = dex.getInt(stringIdsOff + mid * 4);
+            // skip the utf16_size uleb128
+            while ((dex.get(pos++) & 0x80) != 0) ;
+            int cmp = 0;
+            for (int i = 0; cmp == 0 && i <= key.length; i++) {
+                int b = dex.get(pos + i) & 0xff;
+                cmp = i == key.length ? b : b - (key[i] & 0xff);
+            }
+            if (cmp == 0)
+                return mid;
+            if (cmp < 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return -1;
+    }
+
+    private static byte @NotNull [] toMutf8(@NotNull String s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public interface HookSource {
+        /**
+         * Interns the hook classes into {@code dexBuilder}. May be called more
+         * than once per patch.
+         */
+        void internHook(DexBuilder dexBuilder) throws Exception;
+    }
+
+    public static class PatchedDex {
+        public final String name;
+        public final byte[] data;
+
+        PatchedDex(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
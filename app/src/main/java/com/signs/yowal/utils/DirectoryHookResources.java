@@ -0,0 +1,23 @@
+package com.signs.yowal.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads hook payloads from a directory laid out like {@code res/raw}, for
+ * running the signature tools on a plain JVM.
+ */
+public class DirectoryHookResources extends HookResources {
+    private final File dir;
+
+    public DirectoryHookResources(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    protected InputStream open(String name) throws IOException {
+        return new FileInputStream(new File(dir, name));
+    }
+}
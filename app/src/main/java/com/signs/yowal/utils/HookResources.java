@@ -0,0 +1,59 @@
+package com.signs.yowal.utils;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import bin.util.StreamUtil;
+
+/**
+ * Read-only hook payloads (smali templates and prebuilt dex files) shared by
+ * every job that uses the same instance. Compiled templates and parsed dex
+ * files are cached, so batch jobs only pay for them once.
+ */
+public abstract class HookResources {
+    public static final String HEAVENLY_HOOK = "heavenly_hook.smali";
+    public static final String MT_HOOK_APP = "mt_hook_app.smali";
+    public static final String SUPER_HOOK_APP = "super_hook_app.smali";
+    public static final String SUPER_HOOK = "super_hook.dex";
+
+    private final Map<String, HookTemplate> templates = new HashMap<>();
+    private final Map<String, DexBackedDexFile> dexFiles = new HashMap<>();
+
+    /**
+     * Opens a payload by its file name in {@code res/raw}.
+     */
+    protected abstract InputStream open(String name) throws IOException;
+
+    public HookTemplate getTemplate(String name) throws Exception {
+        synchronized (templates) {
+            HookTemplate template = templates.get(name);
+            if (template == null) {
+                try (InputStream is = open(name)) {
+                    template = HookTemplate.compile(new String(StreamUtil.readBytes(is), StandardCharsets.UTF_8));
+                }
+                templates.put(name, template);
+            }
+            return template;
+        }
+    }
+
+    public DexBackedDexFile getDex(String name) throws IOException {
+        synchronized (dexFiles) {
+            DexBackedDexFile dex = dexFiles.get(name);
+            if (dex == null) {
+                try (InputStream is = new BufferedInputStream(open(name))) {
+                    dex = DexBackedDexFile.fromInputStream(Opcodes.getDefault(), is);
+                }
+                dexFiles.put(name, dex);
+            }
+            return dex;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.signs.yowal.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction22c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction31c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction3rc;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.debug.DebugItem;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.formats.Instruction21c;
+import org.jf.dexlib2.iface.instruction.formats.Instruction22c;
+import org.jf.dexlib2.iface.instruction.formats.Instruction31c;
+import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
+import org.jf.dexlib2.iface.instruction.formats.Instruction3rc;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.writer.builder.BuilderField;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.smali.Smali;
+import org.jf.smali.SmaliOptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hook class assembled from smali once and kept as a class model; see
+ * {@link HookResources#getTemplate(String)} for the shared cache.
+ * <p>
+ * Placeholders are bound per run without going through smali again:
+ * string placeholders replace {@code const-string} literals, type
+ * placeholders replace a type descriptor wherever it is used (superclass,
+ * interfaces, field and method signatures, and type/field/method references
+ * in instructions).
+ */
+public class HookTemplate {
+    private final ImmutableClassDef classDef;
+
+    private HookTemplate(ImmutableClassDef classDef) {
+        this.classDef = classDef;
+    }
+
+    public static @NotNull HookTemplate compile(String src) throws Exception {
+        ClassDef classDef = Smali.assembleSmaliFile(src, new DexBuilder(Opcodes.getDefault()), new SmaliOptions());
+        if (classDef == null)
+            throw new Exception("Parse smali failed");
+        return new HookTemplate(ImmutableClassDef.of(classDef));
+    }
+
+    public String getType() {
+        return classDef.getType();
+    }
+
+    public Binding bind() {
+        return new Binding();
+    }
+
+    public class Binding {
+        private final Map<String, String> strings = new HashMap<>();
+        private final Map<String, String> types = new HashMap<>();
+
+        public Binding string(String placeholder, String value) {
+            strings.put(placeholder, value);
+            return this;
+        }
+
+        /**
+         * @param placeholder type descriptor, e.g. {@code Landroid/app/Application;}
+         * @param value       type descriptor to use instead
+         */
+        public Binding type(String placeholder, String value) {
+            types.put(placeholder, value);
+            return this;
+        }
+
+        public void internInto(@NotNull DexBuilder dexBuilder) {
+            List<BuilderField> fields = new ArrayList<>();
+            for (Field field : classDef.getFields()) {
+                fields.add(dexBuilder.internField(field.getDefiningClass(), field.getName(), type(field.getType()),
+                        field.getAccessFlags(), field.getInitialValue(), field.getAnnotations()));
+            }
+            List<BuilderMethod> methods = new ArrayList<>();
+            for (Method method : classDef.getMethods()) {
+                List<MethodParameter> parameters = new ArrayList<>();
+                for (MethodParameter parameter : method.getParameters()) {
+                    parameters.add(new ImmutableMethodParameter(type(parameter.getType()),
+                            parameter.getAnnotations(), parameter.getName()));
+                }
+                methods.add(dexBuilder.internMethod(method.getDefiningClass(), method.getName(), parameters,
+                        type(method.getReturnType()), method.getAccessFlags(), method.getAnnotations(),
+                        dexBuilder.copyMethodImplementation(implementation(method.getImplementation()))));
+            }
+            List<String> interfaces = new ArrayList<>();
+            for (String iface : classDef.getInterfaces()) {
+                interfaces.add(type(iface));
+            }
+            String superclass = classDef.getSuperclass();
+            dexBuilder.internClassDef(classDef.getType(), classDef.getAccessFlags(),
+                    superclass == null ? null : type(superclass), interfaces, classDef.getSourceFile(),
+                    classDef.getAnnotations(), fields, methods);
+        }
+
+        private String type(String type) {
+            String value = types.get(type);
+            return value == null ? type : value;
+        }
+
+        /**
+         * Reference instructions are recreated as builder instructions so that
+         * {@link DexBuilder#copyMethodImplementation} interns their references
+         * into the target builder; the cached template itself is never mutated.
+         * Debug items are dropped for the same reason.
+         */
+        private @Nullable MethodImplementation implementation(@Nullable MethodImplementation impl) {
+            if (impl == null)
+                return null;
+            int registerCount = impl.getRegisterCount();
+            List<Instruction> instructions = new ArrayList<>();
+            for (Instruction instruction : impl.getInstructions()) {
+                instructions.add(instruction(instruction));
+            }
+            List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks = impl.getTryBlocks();
+            return new MethodImplementation() {
+                @Override
+                public int getRegisterCount() {
+                    return registerCount;
+                }
+
+                @NotNull
+                @Override
+                public Iterable<? extends Instruction> getInstructions() {
+                    return instructions;
+                }
+
+                @NotNull
+                @Override
+                public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks() {
+                    return tryBlocks;
+                }
+
+                @NotNull
+                @Override
+                public Iterable<? extends DebugItem> getDebugItems() {
+                    return Collections.emptyList();
+                }
+            };
+        }
+
+        private Instruction instruction(Instruction instruction) {
+            if (!(instruction instanceof ReferenceInstruction))
+                return instruction;
+            Reference reference = ((ReferenceInstruction) instruction).getReference();
+            Reference bound = reference(reference);
+            Opcode opcode = instruction.getOpcode();
+            switch (opcode.format) {
+                case Format21c:
+                    return new BuilderInstruction21c(opcode, ((Instruction21c) instruction).getRegisterA(), bound);
+                case Format22c: {
+                    Instruction22c i = (Instruction22c) instruction;
+                    return new BuilderInstruction22c(opcode, i.getRegisterA(), i.getRegisterB(), bound);
+                }
+                case Format31c:
+                    return new BuilderInstruction31c(opcode, ((Instruction31c) instruction).getRegisterA(), bound);
+                case Format35c: {
+                    Instruction35c i = (Instruction35c) instruction;
+                    return new BuilderInstruction35c(opcode, i.getRegisterCount(), i.getRegisterC(),
+                            i.getRegisterD(), i.getRegisterE(), i.getRegisterF(), i.getRegisterG(), bound);
+                }
+                case Format3rc: {
+                    Instruction3rc i = (Instruction3rc) instruction;
+                    return new BuilderInstruction3rc(opcode, i.getStartRegister(), i.getRegisterCount(), bound);
+                }
+                default:
+                    return instruction;
+            }
+        }
+
+        private Reference reference(Reference reference) {
+            if (reference instanceof StringReference) {
+                String value = strings.get(((StringReference) reference).getString());
+                return value == null ? reference : new ImmutableStringReference(value);
+            } else if (reference instanceof TypeReference) {
+                String type = ((TypeReference) reference).getType();
+                String value = types.get(type);
+                return value == null ? reference : new ImmutableTypeReference(value);
+            } else if (reference instanceof FieldReference) {
+                FieldReference field = (FieldReference) reference;
+                String definingClass = type(field.getDefiningClass());
+                String fieldType = type(field.getType());
+                if (definingClass.equals(field.getDefiningClass()) && fieldType.equals(field.getType()))
+                    return reference;
+                return new ImmutableFieldReference(definingClass, field.getName(), fieldType);
+            } else if (reference instanceof MethodReference) {
+                MethodReference method = (MethodReference) reference;
+                boolean changed = false;
+                List<String> parameterTypes = new ArrayList<>();
+                for (CharSequence parameterType : method.getParameterTypes()) {
+                    String p = parameterType.toString();
+                    String t = type(p);
+                    changed |= !t.equals(p);
+                    parameterTypes.add(t);
+                }
+                String definingClass = type(method.getDefiningClass());
+                String returnType = type(method.getReturnType());
+                changed |= !definingClass.equals(method.getDefiningClass())
+                        || !returnType.equals(method.getReturnType());
+                if (!changed)
+                    return reference;
+                return new ImmutableMethodReference(definingClass, method.getName(), parameterTypes, returnType);
+            }
+            return reference;
+        }
+    }
+}
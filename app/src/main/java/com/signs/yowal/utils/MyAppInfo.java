@@ -2,56 +2,100 @@ package com.signs.yowal.utils;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Base64;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import bin.arsc.ArscTable;
+import bin.xml.decode.ManifestFacts;
+import bin.zip.ZipEntry;
+import bin.zip.ZipFile;
+
+/**
+ * Package, label and icon of an APK, read from its manifest and resource
+ * table with {@link ManifestFacts} and {@link ArscTable}. PackageManager
+ * only parses the APK for icons that aren't bitmaps, like adaptive icons.
+ */
 public class MyAppInfo {
-    private static PackageManager pm;
-    private static PackageInfo pi;
+    private static Context context;
+    private static String apkPath;
+    private static ManifestFacts facts;
+    private static String appName;
+    private static String iconPath;
 
     public MyAppInfo(@NotNull Context c, String apkpath) {
-        pm = c.getPackageManager();
-        pi = pm.getPackageArchiveInfo(apkpath, 0);
-        pi.applicationInfo.sourceDir = apkpath;
-        pi.applicationInfo.publicSourceDir = apkpath;
+        context = c.getApplicationContext();
+        apkPath = apkpath;
+        facts = null;
+        appName = null;
+        iconPath = null;
+        try (ZipFile zipFile = new ZipFile(apkpath)) {
+            facts = ManifestFacts.read(zipFile);
+            appName = facts.getLabel();
+            if (facts.getLabelResource() != 0 || facts.getIconResource() != 0) {
+                ArscTable table = ArscTable.read(zipFile);
+                if (table != null) {
+                    if (facts.getLabelResource() != 0)
+                        appName = table.resolveString(facts.getLabelResource());
+                    if (facts.getIconResource() != 0)
+                        iconPath = table.resolveFile(facts.getIconResource());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The manifest facts, null if the APK could not be read.
+     */
+    @Contract(pure = true)
+    public static ManifestFacts getFacts() {
+        return facts;
     }
 
     @NotNull
     public static String getAppName() {
-        return (String) pi.applicationInfo.loadLabel(pm);
+        if (appName != null)
+            return appName;
+        return facts != null ? facts.getPackageName() : new File(apkPath).getName();
     }
 
     @Contract(pure = true)
     public static String getPackage() {
-        return pi.applicationInfo.packageName;
+        return facts != null ? facts.getPackageName() : null;
     }
 
     @Contract(pure = true)
     public static String getVName() {
-        return pi.versionName;
+        return facts != null ? facts.getVersionName() : null;
     }
 
     @Contract(pure = true)
     public static int getVCode() {
-        return pi.versionCode;
+        return facts != null ? facts.getVersionCode() : 0;
     }
 
     @NotNull
     public static String getSignature() {
         String res = "";
         try {
-            @SuppressLint("PackageManagerGetSignatures") PackageInfo packageInfo = pm.getPackageInfo(
-                    pi.packageName, PackageManager.GET_SIGNATURES);
+            @SuppressLint("PackageManagerGetSignatures") PackageInfo packageInfo = context.getPackageManager().getPackageInfo(
+                    getPackage(), PackageManager.GET_SIGNATURES);
             for (Signature signature : packageInfo.signatures) {
                 MessageDigest messageDigest = MessageDigest.getInstance("SHA");
                 messageDigest.update(signature.toByteArray());
@@ -64,10 +108,31 @@ public class MyAppInfo {
     }
 
     public Drawable getIcon() {
+        if (iconPath != null) {
+            try (ZipFile zipFile = new ZipFile(apkPath)) {
+                ZipEntry entry = zipFile.getEntry(iconPath);
+                if (entry != null) {
+                    try (InputStream is = zipFile.getInputStream(entry)) {
+                        Bitmap bitmap = BitmapFactory.decodeStream(is);
+                        if (bitmap != null)
+                            return new BitmapDrawable(context.getResources(), bitmap);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // not a bitmap, let the framework load it
+        PackageManager pm = context.getPackageManager();
+        PackageInfo pi = pm.getPackageArchiveInfo(apkPath, 0);
+        if (pi == null)
+            return pm.getDefaultActivityIcon();
+        pi.applicationInfo.sourceDir = apkPath;
+        pi.applicationInfo.publicSourceDir = apkPath;
         return pi.applicationInfo.loadIcon(pm);
     }
 
     public boolean isDebug() {
-        return ((pi.applicationInfo.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+        return facts != null && facts.isDebuggable();
     }
-}
\ No newline at end of file
+}
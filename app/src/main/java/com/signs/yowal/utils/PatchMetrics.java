@@ -0,0 +1,346 @@
+package com.signs.yowal.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import bin.signer.ApkSigner;
+
+/**
+ * Per-phase counters of one patch run: wall time, CPU time of the measuring
+ * thread, bytes read and written, entries copied and the peak heap, see
+ * {@link Stats#getPeakHeapBytes()}.
+ * <p>
+ * A phase is measured by a {@link Span} opened with {@link #begin(Phase)}.
+ * Spans may be opened on any thread and the same phase may be measured
+ * several times; the totals are summed, so a phase that runs on several
+ * threads can report more wall time than actually elapsed.
+ */
+public class PatchMetrics {
+    private static final Method CPU_TIME_METHOD;
+    private static final Object CPU_TIME_TARGET;
+    private static final List<Object> HEAP_POOLS = new ArrayList<>();
+    private static final Method RESET_PEAK_METHOD;
+    private static final Method PEAK_USAGE_METHOD;
+    private static final Method USED_METHOD;
+
+    static {
+        Method method = null;
+        Object target = null;
+        try {
+            // java.lang.management is missing on Android
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("java.lang.management.ThreadMXBean");
+            if ((Boolean) beanClass.getMethod("isCurrentThreadCpuTimeSupported").invoke(bean)) {
+                method = beanClass.getMethod("getCurrentThreadCpuTime");
+                target = bean;
+            }
+        } catch (Throwable th) {
+            try {
+                method = Class.forName("android.os.Debug").getMethod("threadCpuTimeNanos");
+            } catch (Throwable ignored) {
+            }
+        }
+        CPU_TIME_METHOD = method;
+        CPU_TIME_TARGET = target;
+
+        Method reset = null;
+        Method peak = null;
+        Method used = null;
+        try {
+            // the heap memory pools, missing on Android as well
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Class<?> poolClass = Class.forName("java.lang.management.MemoryPoolMXBean");
+            Object heap = Class.forName("java.lang.management.MemoryType").getField("HEAP").get(null);
+            Method getType = poolClass.getMethod("getType");
+            for (Object pool : (List<?>) factory.getMethod("getMemoryPoolMXBeans").invoke(null)) {
+                if (getType.invoke(pool) == heap)
+                    HEAP_POOLS.add(pool);
+            }
+            reset = poolClass.getMethod("resetPeakUsage");
+            peak = poolClass.getMethod("getPeakUsage");
+            used = Class.forName("java.lang.management.MemoryUsage").getMethod("getUsed");
+        } catch (Throwable th) {
+            HEAP_POOLS.clear();
+        }
+        RESET_PEAK_METHOD = HEAP_POOLS.isEmpty() ? null : reset;
+        PEAK_USAGE_METHOD = peak;
+        USED_METHOD = used;
+    }
+
+    private final Map<Phase, Stats> totals = new EnumMap<>(Phase.class);
+    private volatile Listener listener;
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public @NotNull Span begin(Phase phase) {
+        return new Span(phase);
+    }
+
+    /**
+     * Returns a copy of the totals of {@code phase}, or null if it was never
+     * measured.
+     */
+    public @Nullable Stats get(Phase phase) {
+        synchronized (totals) {
+            Stats stats = totals.get(phase);
+            return stats == null ? null : stats.copy();
+        }
+    }
+
+    /**
+     * Reports the {@link ApkSigner} run between {@link ApkSigner.Step#START}
+     * and {@link ApkSigner.Step#FINISH} as {@link Phase#SIGN}, counting every
+     * progress step as an entry.
+     */
+    public ApkSigner.ApkSignCallback signCallback(@Nullable ApkSigner.ApkSignCallback delegate) {
+        return new ApkSigner.ApkSignCallback() {
+            private Span span;
+            private int entries;
+
+            @Override
+            public void onStep(ApkSigner.Step step) {
+                if (step == ApkSigner.Step.START) {
+                    span = begin(Phase.SIGN);
+                    entries = 0;
+                } else if (step == ApkSigner.Step.FINISH && span != null) {
+                    span.addEntries(entries);
+                    span.close();
+                    span = null;
+                }
+                if (delegate != null)
+                    delegate.onStep(step);
+            }
+
+            @Override
+            public void onProgress(int progress, int total) {
+                entries = progress;
+                if (delegate != null)
+                    delegate.onProgress(progress, total);
+            }
+        };
+    }
+
+    /**
+     * Returns the totals as a JSON object keyed by phase name, in pipeline
+     * order. Phases that were never measured are left out.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        synchronized (totals) {
+            for (Map.Entry<Phase, Stats> entry : totals.entrySet()) {
+                if (sb.length() > 1)
+                    sb.append(',');
+                sb.append('"').append(entry.getKey().key).append("\":");
+                entry.getValue().appendJson(sb);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private static long threadCpuNanos() {
+        if (CPU_TIME_METHOD == null)
+            return -1;
+        try {
+            return (Long) CPU_TIME_METHOD.invoke(CPU_TIME_TARGET);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Whether {@link Stats#getPeakHeapBytes()} is a peak, which needs the
+     * memory pool beans of a desktop JVM. Otherwise, as on Android, it is
+     * the heap used when the span ended.
+     */
+    public static boolean hasPeakHeap() {
+        return RESET_PEAK_METHOD != null;
+    }
+
+    private static void resetPeakHeap() {
+        if (RESET_PEAK_METHOD == null)
+            return;
+        try {
+            for (Object pool : HEAP_POOLS) {
+                RESET_PEAK_METHOD.invoke(pool);
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * Sum of the peaks of the heap pools since the last reset, or the heap
+     * used now if they aren't available.
+     */
+    private static long peakHeap() {
+        if (RESET_PEAK_METHOD != null) {
+            try {
+                long peak = 0;
+                for (Object pool : HEAP_POOLS) {
+                    Object usage = PEAK_USAGE_METHOD.invoke(pool);
+                    if (usage != null)
+                        peak += (Long) USED_METHOD.invoke(usage);
+                }
+                return peak;
+            } catch (Exception ignored) {
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public enum Phase {
+        SIGNATURE_READ("signatureRead"),
+        MANIFEST_PARSE("manifestParse"),
+        DEX_LOAD("dexLoad"),
+        SMALI_ASSEMBLE("smaliAssemble"),
+        DEX_WRITE("dexWrite"),
+        ZIP_COPY("zipCopy"),
+        SIGN("sign");
+
+        final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that closed the span, with the numbers of that
+         * span alone.
+         */
+        void onPhaseFinished(Phase phase, Stats span);
+    }
+
+    public static class Stats {
+        private int count;
+        private long wallNanos;
+        private long cpuNanos;
+        private long bytesRead;
+        private long bytesWritten;
+        private long entries;
+        private long peakHeapBytes;
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * @return -1 if thread CPU time is not available.
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * Peak used heap while a span of the phase ran, the largest if it
+         * was measured more than once. The peak is reset when a span
+         * begins, so with spans on several threads a span that begins
+         * during another one cuts that one's peak short. Without
+         * {@link #hasPeakHeap()} it is the heap used when the span ended.
+         */
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        void add(@NotNull Stats other) {
+            count += other.count;
+            wallNanos += other.wallNanos;
+            cpuNanos = cpuNanos < 0 || other.cpuNanos < 0 ? -1 : cpuNanos + other.cpuNanos;
+            bytesRead += other.bytesRead;
+            bytesWritten += other.bytesWritten;
+            entries += other.entries;
+            peakHeapBytes = Math.max(peakHeapBytes, other.peakHeapBytes);
+        }
+
+        @NotNull Stats copy() {
+            Stats stats = new Stats();
+            stats.add(this);
+            return stats;
+        }
+
+        void appendJson(@NotNull StringBuilder sb) {
+            sb.append(String.format(Locale.ROOT,
+                    "{\"count\":%d,\"wallMillis\":%.3f,\"cpuMillis\":%s,\"bytesRead\":%d,"
+                            + "\"bytesWritten\":%d,\"entries\":%d,\"%s\":%d}",
+                    count, wallNanos / 1e6,
+                    cpuNanos < 0 ? "null" : String.format(Locale.ROOT, "%.3f", cpuNanos / 1e6),
+                    bytesRead, bytesWritten, entries,
+                    hasPeakHeap() ? "peakHeapBytes" : "heapAtEndBytes", peakHeapBytes));
+        }
+    }
+
+    public class Span implements AutoCloseable {
+        private final Phase phase;
+        private final long startNanos = System.nanoTime();
+        private final long startCpuNanos = threadCpuNanos();
+        private final Stats stats = new Stats();
+        private boolean closed;
+
+        private Span(Phase phase) {
+            this.phase = phase;
+            resetPeakHeap();
+        }
+
+        public void addBytesRead(long bytes) {
+            stats.bytesRead += bytes;
+        }
+
+        public void addBytesWritten(long bytes) {
+            stats.bytesWritten += bytes;
+        }
+
+        public void addEntries(long entries) {
+            stats.entries += entries;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            long endCpuNanos = threadCpuNanos();
+            stats.count = 1;
+            stats.wallNanos = System.nanoTime() - startNanos;
+            stats.cpuNanos = startCpuNanos < 0 || endCpuNanos < 0 ? -1 : endCpuNanos - startCpuNanos;
+            stats.peakHeapBytes = peakHeap();
+            synchronized (totals) {
+                Stats total = totals.get(phase);
+                if (total == null) {
+                    total = new Stats();
+                    totals.put(phase, total);
+                }
+                total.add(stats);
+            }
+            Listener listener = PatchMetrics.this.listener;
+            if (listener != null)
+                listener.onPhaseFinished(phase, stats.copy());
+        }
+    }
+}
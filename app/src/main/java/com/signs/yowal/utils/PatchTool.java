@@ -0,0 +1,23 @@
+package com.signs.yowal.utils;
+
+/**
+ * Common entry point of the signature tools, so batch jobs can run any of
+ * them. Instances hold per-APK state and must not be shared between threads.
+ */
+public interface PatchTool {
+    void setPath(String input, String output);
+
+    /**
+     * Phase timings of the following {@link #process()} calls are added to
+     * {@code metrics}.
+     */
+    void setMetrics(PatchMetrics metrics);
+
+    /**
+     * Number of threads one {@link #process()} call may use, e.g. to
+     * deflate entries. Defaults to the number of processors.
+     */
+    void setParallelism(int parallelism);
+
+    void process() throws Exception;
+}
@@ -387,7 +387,7 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
                 classDef.getAnnotations(), fields, methods);
     }
 
-    private MethodImplementation copyMethodImplementation(MethodImplementation implementation) {
+    public MethodImplementation copyMethodImplementation(MethodImplementation implementation) {
         MethodImplementation methodImplementation;
         if (implementation == null)
             methodImplementation = null;
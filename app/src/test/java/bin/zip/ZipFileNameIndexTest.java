@@ -0,0 +1,289 @@
+package bin.zip;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that {@link ZipFile#getEntry(String)}, which looks names up in a
+ * hash table over the raw bytes of the central directory, finds the same
+ * entries as a HashMap filled with every entry's decoded name in central
+ * directory order, as ZipFile used to keep.
+ */
+public class ZipFileNameIndexTest {
+    private static final int UTF8_FLAG = 0x800;
+    private static final int PLATFORM_FAT = 0;
+    private static final int PLATFORM_UNIX = 3;
+    private static final Charset GBK = Charset.forName("GBK");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void asciiNames() throws IOException {
+        List<Name> names = new ArrayList<>();
+        // enough names for the table to have collisions
+        for (int i = 0; i < 500; i++) {
+            names.add(Name.utf8("res/drawable/icon_" + i + ".png", 0));
+        }
+        names.add(Name.utf8("", 0));
+        names.add(Name.utf8("dir/", 0));
+        assertSameAsHashMap(write(names), "UTF-8",
+                "res/drawable/icon_500.png", "res/drawable/icon_1", "RES/drawable/icon_1.png", "dir");
+    }
+
+    @Test
+    public void utf8Names() throws IOException {
+        List<Name> names = Arrays.asList(
+                Name.utf8("assets/über.txt", UTF8_FLAG),
+                Name.utf8("assets/中文.txt", UTF8_FLAG),
+                Name.utf8("assets/😀.txt", UTF8_FLAG),
+                // valid UTF-8 without the flag, indexed as the default encoding is UTF-8
+                Name.utf8("assets/été.txt", 0),
+                Name.utf8("assets/ࠀ￿.txt", 0));
+        assertSameAsHashMap(write(names), "UTF-8",
+                "assets/uber.txt", "assets/中.txt", "assets/😁.txt", "assets/été");
+    }
+
+    @Test
+    public void loneSurrogates() throws IOException {
+        List<Name> names = Arrays.asList(
+                // what String.getBytes makes of a lone surrogate
+                Name.utf8("a?", 0),
+                Name.utf8("?", 0),
+                Name.utf8("b𐀀", UTF8_FLAG),
+                // CESU-8 surrogates, not UTF-8 that round-trips
+                Name.raw(new byte[]{'c', (byte) 0xed, (byte) 0xa0, (byte) 0x80}, UTF8_FLAG));
+        File file = write(names);
+        assertSameAsHashMap(file, "UTF-8",
+                "a\ud800", "a\udc00", "\ud800", "\udfff", "b\ud800", "b\udc00", "c\ud800", "\udc00\ud800");
+        try (ZipFile zipFile = new ZipFile(file, "UTF-8")) {
+            assertNull(zipFile.getEntry("a\ud800"));
+            assertNotNull(zipFile.getEntry("a?"));
+        }
+    }
+
+    @Test
+    public void nonUtf8Names() throws IOException {
+        List<Name> names = Arrays.asList(
+                Name.raw("中文/名字.txt".getBytes(GBK), 0),
+                Name.raw("café".getBytes(StandardCharsets.ISO_8859_1), 0),
+                Name.raw(new byte[]{'x', (byte) 0xff, 'y'}, 0),
+                Name.utf8("plain.txt", 0),
+                Name.utf8("flagged/ü.txt", UTF8_FLAG));
+        File file = write(names);
+        assertSameAsHashMap(file, "GBK", "中文/名字.txt", "flagged/ü.txt");
+        assertSameAsHashMap(file, "ISO-8859-1", "café", "xÿy");
+        assertSameAsHashMap(file, "UTF-8", "caf�", "x�y");
+    }
+
+    @Test
+    public void shadowedDuplicates() throws IOException {
+        List<Name> names = Arrays.asList(
+                Name.utf8("AndroidManifest.xml", 0),
+                Name.utf8("classes.dex", 0),
+                Name.utf8("AndroidManifest.xml", 0),
+                Name.utf8("ü.txt", UTF8_FLAG),
+                Name.utf8("ü.txt", 0),
+                // the same name from the hash table and from a decoded name
+                Name.raw("é.txt".getBytes(StandardCharsets.ISO_8859_1), 0),
+                Name.utf8("é.txt", UTF8_FLAG),
+                Name.utf8("è.txt", UTF8_FLAG),
+                Name.raw("è.txt".getBytes(StandardCharsets.ISO_8859_1), 0),
+                Name.utf8("classes.dex", 0));
+        File file = write(names);
+        assertSameAsHashMap(file, "UTF-8");
+        assertSameAsHashMap(file, "ISO-8859-1");
+        try (ZipFile zipFile = new ZipFile(file, "ISO-8859-1")) {
+            List<ZipEntry> entries = list(zipFile);
+            assertSame(entries.get(2), zipFile.getEntry("AndroidManifest.xml"));
+            assertSame(entries.get(9), zipFile.getEntry("classes.dex"));
+            assertSame(entries.get(6), zipFile.getEntry("é.txt"));
+            assertSame(entries.get(8), zipFile.getEntry("è.txt"));
+        }
+    }
+
+    @Test
+    public void renamedNames() throws IOException {
+        List<Name> names = Arrays.asList(
+                // ZipEntry turns backslashes into slashes for FAT
+                Name.utf8("res\\raw\\a.bin", 0).platform(PLATFORM_FAT),
+                Name.utf8("res/raw/a.bin", 0),
+                Name.utf8("res\\raw\\b.bin", 0).platform(PLATFORM_UNIX),
+                Name.raw("中\\c.txt".getBytes(GBK), 0).platform(PLATFORM_FAT),
+                // an InfoZIP Unicode path extra field overrides the name
+                Name.utf8("old.txt", 0).unicodePath("new/ü.txt"),
+                Name.utf8("stale.txt", 0).unicodePath("fresh.txt").unicodePathCrc(0));
+        File file = write(names);
+        assertSameAsHashMap(file, "UTF-8", "res\\raw\\a.bin", "res/raw/b.bin", "old.txt", "stale.txt");
+        assertSameAsHashMap(file, "GBK", "中/c.txt");
+        try (ZipFile zipFile = new ZipFile(file, "UTF-8", false)) {
+            assertSameAsHashMap(zipFile, "old.txt", "new/ü.txt");
+        }
+    }
+
+    private void assertSameAsHashMap(File file, String encoding, String... otherNames) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file, encoding)) {
+            assertSameAsHashMap(zipFile, otherNames);
+        }
+    }
+
+    private static void assertSameAsHashMap(ZipFile zipFile, String... otherNames) {
+        Map<String, ZipEntry> nameMap = new HashMap<>();
+        for (ZipEntry ze : list(zipFile)) {
+            nameMap.put(ze.getName(), ze);
+        }
+        for (Map.Entry<String, ZipEntry> entry : nameMap.entrySet()) {
+            assertSame(entry.getKey(), entry.getValue(), zipFile.getEntry(entry.getKey()));
+        }
+        for (String name : otherNames) {
+            assertSame(name, nameMap.get(name), zipFile.getEntry(name));
+        }
+    }
+
+    private static List<ZipEntry> list(ZipFile zipFile) {
+        List<ZipEntry> entries = new ArrayList<>();
+        Enumeration<ZipEntry> enumeration = zipFile.getEntries();
+        while (enumeration.hasMoreElements()) {
+            entries.add(enumeration.nextElement());
+        }
+        assertEquals(zipFile.getEntrySize(), entries.size());
+        return entries;
+    }
+
+    /**
+     * Writes empty STORED entries with exactly the given name bytes, which
+     * ZipOutputStream would not do for duplicates or broken encodings.
+     */
+    private File write(List<Name> names) throws IOException {
+        File file = folder.newFile();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream cd = new ByteArrayOutputStream();
+        for (Name name : names) {
+            int offset = out.size();
+            writeInt(out, 0x04034b50);
+            writeShort(out, 10);
+            writeShort(out, name.flags);
+            writeShort(out, ZipEntry.STORED);
+            writeInt(out, 0x00210000);
+            writeInt(out, 0);
+            writeInt(out, 0);
+            writeInt(out, 0);
+            writeShort(out, name.raw.length);
+            writeShort(out, name.extra.length);
+            out.write(name.raw);
+            out.write(name.extra);
+
+            writeInt(cd, 0x02014b50);
+            writeShort(cd, name.platform << 8 | 20);
+            writeShort(cd, 10);
+            writeShort(cd, name.flags);
+            writeShort(cd, ZipEntry.STORED);
+            writeInt(cd, 0x00210000);
+            writeInt(cd, 0);
+            writeInt(cd, 0);
+            writeInt(cd, 0);
+            writeShort(cd, name.raw.length);
+            writeShort(cd, name.extra.length);
+            writeShort(cd, 0);
+            writeShort(cd, 0);
+            writeShort(cd, 0);
+            writeInt(cd, 0);
+            writeInt(cd, offset);
+            cd.write(name.raw);
+            cd.write(name.extra);
+        }
+        int cdOffset = out.size();
+        cd.writeTo(out);
+        writeInt(out, 0x06054b50);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, names.size());
+        writeShort(out, names.size());
+        writeInt(out, cd.size());
+        writeInt(out, cdOffset);
+        writeShort(out, 0);
+        try (OutputStream os = new FileOutputStream(file)) {
+            out.writeTo(os);
+        }
+        return file;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >> 8);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value);
+        writeShort(out, value >> 16);
+    }
+
+    private static class Name {
+        final byte[] raw;
+        final int flags;
+        int platform = PLATFORM_UNIX;
+        byte[] extra = new byte[0];
+        private String unicodePath;
+
+        private Name(byte[] raw, int flags) {
+            this.raw = raw;
+            this.flags = flags;
+        }
+
+        static Name utf8(String name, int flags) {
+            return new Name(name.getBytes(StandardCharsets.UTF_8), flags);
+        }
+
+        static Name raw(byte[] name, int flags) {
+            return new Name(name, flags);
+        }
+
+        Name platform(int platform) {
+            this.platform = platform;
+            return this;
+        }
+
+        Name unicodePath(String path) {
+            CRC32 crc = new CRC32();
+            crc.update(raw);
+            unicodePath = path;
+            return unicodePathCrc((int) crc.getValue());
+        }
+
+        /**
+         * A CRC that doesn't match the name makes readers ignore the field.
+         */
+        Name unicodePathCrc(int crc) {
+            byte[] path = unicodePath.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeShort(out, 0x7075);
+            writeShort(out, 5 + path.length);
+            out.write(1);
+            writeInt(out, crc);
+            out.write(path, 0, path.length);
+            extra = out.toByteArray();
+            return this;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.signs.yowal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import bin.io.ZOutput;
+import bin.xml.decode.AXmlDecoder;
+import bin.xml.decode.AXmlResourceParser;
+import bin.xml.decode.ManifestFacts;
+import bin.xml.decode.XmlPullParser;
+import bin.xml.edit.AXmlEditor;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AXmlBenchmark {
+    private byte[] manifest;
+    private AXmlDecoder decoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        manifest = SyntheticApk.manifest("com.bench.axml", 21);
+        decoded = AXmlDecoder.decode(new ByteArrayInputStream(manifest));
+    }
+
+    @Benchmark
+    public AXmlDecoder decode() throws IOException {
+        return AXmlDecoder.decode(new ByteArrayInputStream(manifest));
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(manifest.length);
+        decoded.write(new ZOutput(baos));
+        return baos.size();
+    }
+
+    @Benchmark
+    public int decodeAndWrite() throws IOException {
+        AXmlDecoder axml = AXmlDecoder.decode(new ByteArrayInputStream(manifest));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(manifest.length);
+        axml.write(new ZOutput(baos));
+        return baos.size();
+    }
+
+    @Benchmark
+    public int editApplication() throws IOException {
+        AXmlEditor editor = new AXmlEditor(manifest);
+        AXmlEditor.Element application = editor.findElement("application");
+        application.insertAttribute(AXmlEditor.ANDROID_NS, "name", 0x01010003, "com.bench.HookApplication");
+        return editor.toByteArray().length;
+    }
+
+    @Benchmark
+    public int parseStream() throws IOException {
+        AXmlResourceParser parser = new AXmlResourceParser();
+        parser.open(new ByteArrayInputStream(manifest));
+        return countAttributes(parser);
+    }
+
+    @Benchmark
+    public int parseBuffer() throws IOException {
+        AXmlResourceParser parser = new AXmlResourceParser();
+        parser.open(ByteBuffer.wrap(manifest));
+        return countAttributes(parser);
+    }
+
+    @Benchmark
+    public ManifestFacts manifestFacts() throws IOException {
+        return ManifestFacts.read(manifest);
+    }
+
+    private static int countAttributes(AXmlResourceParser parser) throws IOException {
+        int count = 0;
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG)
+                count += parser.getAttributeCount();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,68 @@
+package com.signs.yowal.benchmark;
+
+import com.android.dex.Dex;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.merge.CollisionPolicy;
+import com.android.dx.merge.DexMerger;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DexBenchmark {
+    @Param({"500", "5000"})
+    public int classCount;
+
+    private byte[] dexData;
+    private byte[] otherDexData;
+    private DexBackedDexFile dex;
+
+    @Setup
+    public void setUp() throws Exception {
+        dexData = SyntheticApk.dex(1, classCount);
+        otherDexData = SyntheticApk.dex(2, classCount / 10);
+        dex = new DexBackedDexFile(Opcodes.getDefault(), dexData);
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        DexBackedDexFile loaded = DexBackedDexFile.fromInputStream(Opcodes.getDefault(),
+                new ByteArrayInputStream(dexData));
+        return loaded.getClasses().size();
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.getDefault());
+        for (DexBackedClassDef classDef : dex.getClasses()) {
+            dexBuilder.internClassDef(classDef);
+        }
+        MemoryDataStore store = new MemoryDataStore();
+        dexBuilder.writeTo(store);
+        return store.getSize();
+    }
+
+    @Benchmark
+    public int merge() throws IOException {
+        Dex merged = new DexMerger(new Dex[]{new Dex(dexData), new Dex(otherDexData)},
+                CollisionPolicy.KEEP_FIRST, new DxContext()).merge();
+        return merged.getLength();
+    }
+}
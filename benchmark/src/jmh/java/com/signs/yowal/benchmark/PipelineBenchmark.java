@@ -0,0 +1,87 @@
+package com.signs.yowal.benchmark;
+
+import com.signs.yowal.utils.BinSignatureTool;
+import com.signs.yowal.utils.DirectoryHookResources;
+import com.signs.yowal.utils.HookResources;
+import com.signs.yowal.utils.PatchTool;
+import com.signs.yowal.utils.SignatureTool;
+import com.signs.yowal.utils.SuperSignatureTool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole patch of one APK, as run by the tools' {@code process()}. Hook
+ * templates stay cached between invocations, as in a batch run.
+ * <p>
+ * Needs {@code -Dbenchmark.hookResources=<app/src/main/res/raw>}, which the
+ * Gradle {@code jmh} task passes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PipelineBenchmark {
+    @Param({"bin", "heavenly", "super"})
+    public String tool;
+
+    @Param({"16", "21"})
+    public int minSdkVersion;
+
+    @Param({"1", "4"})
+    public int dexCount;
+
+    private File dir;
+    private File apk;
+    private File out;
+    private HookResources resources;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String resourcesDir = System.getProperty("benchmark.hookResources");
+        if (resourcesDir == null)
+            throw new IllegalStateException("benchmark.hookResources is not set");
+        resources = new DirectoryHookResources(new File(resourcesDir));
+        dir = Files.createTempDirectory("pipeline-bench").toFile();
+        apk = SyntheticApk.sign(SyntheticApk.create(dir, "com.bench.pipeline", minSdkVersion, dexCount, 2000, 500));
+        out = new File(dir, "out.apk");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long process() throws Exception {
+        PatchTool patchTool;
+        switch (tool) {
+            case "bin":
+                patchTool = new BinSignatureTool(resources);
+                break;
+            case "heavenly":
+                patchTool = new SignatureTool(resources);
+                break;
+            default:
+                patchTool = new SuperSignatureTool(resources);
+                break;
+        }
+        patchTool.setPath(apk.getPath(), out.getPath());
+        patchTool.process();
+        return out.length();
+    }
+}
@@ -0,0 +1,268 @@
+package com.signs.yowal.benchmark;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.smali.Smali;
+import org.jf.smali.SmaliOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import bin.signer.ApkSigner;
+import bin.signer.key.KeystoreKey;
+
+/**
+ * Generates APK-shaped archives locally, so benchmarks need no real APKs:
+ * a binary AndroidManifest.xml, {@code dexCount} dex files, a stored
+ * resource, a native library and {@code assetCount} small compressible
+ * assets. The output is deterministic for the same parameters.
+ */
+public final class SyntheticApk {
+    private static final int ATTR_MIN_SDK_VERSION = 1;
+
+    private SyntheticApk() {
+    }
+
+    public static File create(File dir, String packageName, int minSdkVersion, int dexCount, int classesPerDex,
+                              int assetCount) throws Exception {
+        File file = new File(dir, packageName + "-" + dexCount + "x" + classesPerDex + "-" + assetCount + ".apk");
+        Random random = new Random(42);
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+            putEntry(zos, "AndroidManifest.xml", manifest(packageName, minSdkVersion));
+            for (int i = 1; i <= dexCount; i++) {
+                putEntry(zos, i == 1 ? "classes.dex" : "classes" + i + ".dex", dex(i, classesPerDex));
+            }
+            byte[] noise = new byte[256 * 1024];
+            random.nextBytes(noise);
+            ZipEntry stored = new ZipEntry("res/raw/noise.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(noise.length);
+            CRC32 crc = new CRC32();
+            crc.update(noise);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(noise);
+            zos.closeEntry();
+            putEntry(zos, "lib/arm64-v8a/libnative.so", Arrays.copyOf(noise, 64 * 1024));
+            for (int i = 0; i < assetCount; i++) {
+                StringBuilder sb = new StringBuilder();
+                for (int line = 0; line < 64; line++) {
+                    sb.append("asset ").append(i).append(" line ").append(line).append(' ')
+                            .append(random.nextInt(1000)).append('\n');
+                }
+                putEntry(zos, "assets/data/" + i + ".txt", sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Signs {@code apk} (v1, v2 and v3) with the bundled benchmark key and
+     * returns the signed copy, so signature extraction has something to read.
+     */
+    public static File sign(File apk) throws Exception {
+        File keystore = new File(apk.getParentFile(), "benchmark.jks");
+        try (InputStream is = SyntheticApk.class.getResourceAsStream("/benchmark.jks")) {
+            Files.copy(is, keystore.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        File signed = new File(apk.getParentFile(), apk.getName().replace(".apk", "-signed.apk"));
+        ApkSigner.signApk(apk, signed, new KeystoreKey(keystore.getPath(), "android", "benchmark", "android"),
+                null);
+        return signed;
+    }
+
+    public static byte[] dex(int index, int classCount) throws Exception {
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.getDefault());
+        for (int i = 0; i < classCount; i++) {
+            String type = "Lcom/synthetic/d" + index + "/C" + i + ";";
+            String src = ".class public " + type + "\n"
+                    + ".super Ljava/lang/Object;\n"
+                    + ".source \"C" + i + ".java\"\n"
+                    + ".field private static counter:I\n"
+                    + ".method public constructor <init>()V\n"
+                    + "    .registers 1\n"
+                    + "    invoke-direct {p0}, Ljava/lang/Object;-><init>()V\n"
+                    + "    return-void\n"
+                    + ".end method\n"
+                    + ".method public static run(Ljava/lang/String;)Ljava/lang/String;\n"
+                    + "    .registers 3\n"
+                    + "    sget v1, " + type + "->counter:I\n"
+                    + "    add-int/lit8 v1, v1, 0x1\n"
+                    + "    sput v1, " + type + "->counter:I\n"
+                    + "    const-string v0, \"value-" + index + "-" + i + "\"\n"
+                    + "    invoke-virtual {p0, v0}, Ljava/lang/String;->concat(Ljava/lang/String;)Ljava/lang/String;\n"
+                    + "    move-result-object v1\n"
+                    + "    return-object v1\n"
+                    + ".end method\n";
+            Smali.assembleSmaliFile(src, dexBuilder, new SmaliOptions());
+        }
+        MemoryDataStore store = new MemoryDataStore();
+        dexBuilder.writeTo(store);
+        return Arrays.copyOf(store.getBufferData(), store.getSize());
+    }
+
+    /**
+     * A binary manifest with a package name, a {@code uses-sdk} element and
+     * an {@code application} element without a custom class.
+     */
+    public static byte[] manifest(String packageName, int minSdkVersion) {
+        AxmlWriter w = new AxmlWriter();
+        int[] resourceIds = {0x01010003, 0x0101020c};
+        w.string("name");
+        w.string("minSdkVersion");
+        int prefix = w.string("android");
+        int uri = w.string("http://schemas.android.com/apk/res/android");
+        w.namespace(0x0100, prefix, uri);
+        int pkg = w.string(packageName);
+        w.startElement("manifest", new int[][]{{-1, w.string("package"), pkg, 0x03, pkg}});
+        w.startElement("uses-sdk", new int[][]{{uri, ATTR_MIN_SDK_VERSION, -1, 0x10, minSdkVersion}});
+        w.endElement("uses-sdk");
+        w.startElement("application", new int[0][]);
+        w.endElement("application");
+        w.endElement("manifest");
+        w.namespace(0x0101, prefix, uri);
+        return w.toByteArray(resourceIds);
+    }
+
+    private static void putEntry(ZipOutputStream zos, String name, byte[] data) throws IOException {
+        zos.putNextEntry(new ZipEntry(name));
+        zos.write(data);
+        zos.closeEntry();
+    }
+
+    private static class AxmlWriter {
+        private final List<String> strings = new ArrayList<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        int string(String s) {
+            int index = strings.indexOf(s);
+            if (index < 0) {
+                strings.add(s);
+                index = strings.size() - 1;
+            }
+            return index;
+        }
+
+        void namespace(int type, int prefix, int uri) {
+            int16(body, type);
+            int16(body, 16);
+            int32(body, 24);
+            int32(body, 1);
+            int32(body, -1);
+            int32(body, prefix);
+            int32(body, uri);
+        }
+
+        /**
+         * @param attrs {namespace, name, raw value, type, data} per attribute
+         */
+        void startElement(String name, int[][] attrs) {
+            int16(body, 0x0102);
+            int16(body, 16);
+            int32(body, 36 + 20 * attrs.length);
+            int32(body, 1);
+            int32(body, -1);
+            int32(body, -1);
+            int32(body, string(name));
+            int16(body, 20);
+            int16(body, 20);
+            int16(body, attrs.length);
+            int16(body, 0);
+            int16(body, 0);
+            int16(body, 0);
+            for (int[] attr : attrs) {
+                int32(body, attr[0]);
+                int32(body, attr[1]);
+                int32(body, attr[2]);
+                int16(body, 8);
+                body.write(0);
+                body.write(attr[3]);
+                int32(body, attr[4]);
+            }
+        }
+
+        void endElement(String name) {
+            int16(body, 0x0103);
+            int16(body, 16);
+            int32(body, 24);
+            int32(body, 1);
+            int32(body, -1);
+            int32(body, -1);
+            int32(body, string(name));
+        }
+
+        byte[] toByteArray(int[] resourceIds) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int[] offsets = new int[strings.size()];
+            for (int i = 0; i < strings.size(); i++) {
+                offsets[i] = data.size();
+                String s = strings.get(i);
+                int16(data, s.length());
+                for (int j = 0; j < s.length(); j++) {
+                    int16(data, s.charAt(j));
+                }
+                int16(data, 0);
+            }
+            while (data.size() % 4 != 0) {
+                data.write(0);
+            }
+            ByteArrayOutputStream pool = new ByteArrayOutputStream();
+            int stringsStart = 28 + 4 * strings.size();
+            int16(pool, 0x0001);
+            int16(pool, 28);
+            int32(pool, stringsStart + data.size());
+            int32(pool, strings.size());
+            int32(pool, 0);
+            int32(pool, 0);
+            int32(pool, stringsStart);
+            int32(pool, 0);
+            for (int offset : offsets) {
+                int32(pool, offset);
+            }
+            pool.write(data.toByteArray(), 0, data.size());
+
+            ByteArrayOutputStream resourceMap = new ByteArrayOutputStream();
+            int16(resourceMap, 0x0180);
+            int16(resourceMap, 8);
+            int32(resourceMap, 8 + 4 * resourceIds.length);
+            for (int id : resourceIds) {
+                int32(resourceMap, id);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int16(out, 0x0003);
+            int16(out, 8);
+            int32(out, 8 + pool.size() + resourceMap.size() + body.size());
+            out.write(pool.toByteArray(), 0, pool.size());
+            out.write(resourceMap.toByteArray(), 0, resourceMap.size());
+            out.write(body.toByteArray(), 0, body.size());
+            return out.toByteArray();
+        }
+
+        private static void int16(ByteArrayOutputStream out, int v) {
+            out.write(v);
+            out.write(v >> 8);
+        }
+
+        private static void int32(ByteArrayOutputStream out, int v) {
+            out.write(v);
+            out.write(v >> 8);
+            out.write(v >> 16);
+            out.write(v >> 24);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.signs.yowal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import bin.zip.ZipEntry;
+import bin.zip.ZipFile;
+import bin.zip.ZipOutputStream;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ZipBenchmark {
+    @Param({"100", "5000"})
+    public int assetCount;
+
+    private File dir;
+    private File apk;
+    private File out;
+    private ZipFile zipFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("zip-bench").toFile();
+        apk = SyntheticApk.create(dir, "com.bench.zip", 21, 2, 500, assetCount);
+        out = new File(dir, "out.apk");
+        zipFile = new ZipFile(apk);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        zipFile.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        try (ZipFile z = new ZipFile(apk)) {
+            return z.getEntrySize();
+        }
+    }
+
+    @Benchmark
+    public void readAll(Blackhole bh) throws IOException {
+        byte[] buf = new byte[ZipOutputStream.BUFFER_SIZE];
+        Enumeration<ZipEntry> entries = zipFile.getEntries();
+        while (entries.hasMoreElements()) {
+            try (InputStream is = zipFile.getInputStream(entries.nextElement())) {
+                int len;
+                while ((len = is.read(buf)) != -1) {
+                    bh.consume(len);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public long rawCopy() throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(out)) {
+            Enumeration<ZipEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                zos.copyZipEntry(entries.nextElement(), zipFile);
+            }
+        }
+        return out.length();
+    }
+
+    @Benchmark
+    public long deflate() throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(out)) {
+            Enumeration<ZipEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                zos.putNextEntry(entry.getName());
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    zos.writeFully(is);
+                }
+                zos.closeEntry();
+            }
+        }
+        return out.length();
+    }
+}